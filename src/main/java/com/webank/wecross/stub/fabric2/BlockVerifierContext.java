@@ -0,0 +1,308 @@
+package com.webank.wecross.stub.fabric2;
+
+import static com.webank.wecross.stub.fabric2.common.FabricType.STUB_NAME;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.webank.wecross.exception.WeCrossException;
+import com.webank.wecross.stub.ObjectMapperFactory;
+import com.webank.wecross.stub.fabric2.utils.FabricUtils;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.PublicKey;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compiled form of the Fabric block verifier string: parsed once and holding the orderer and
+ * endorser CA certificates of every MSP, so verifying a block needs no JSON parsing or disk I/O.
+ * The identities checked against these CAs are cached in the context as well.
+ */
+public class BlockVerifierContext {
+    private static final Logger logger = LoggerFactory.getLogger(BlockVerifierContext.class);
+
+    private static final Pattern certPattern =
+            Pattern.compile(FabricUtils.CERT_PATTERN, Pattern.MULTILINE);
+
+    // Interval of checking whether the CA files have been modified
+    private static final long CA_FILE_CHECK_INTERVAL = 10000; // ms
+
+    private static final int MAX_VERIFIED_BLOCKS = 256;
+
+    private final String verifierString;
+    private final Map<String, CA> ordererCAs;
+    private final Map<String, CA> endorserCAs;
+    private final Map<String, Long> caFileLastModified;
+    private volatile long lastCAFileCheckTime;
+    private final IdentityCache ordererIdentities;
+    private final IdentityCache endorserIdentities;
+    // blockNumber => the blocks have been verified with this context
+    private final Map<Long, VerifiedBlock> verifiedBlocks =
+            Collections.synchronizedMap(new VerifiedBlocks());
+
+    private static class VerifiedBlock {
+        private final String headerHash;
+        private final String digest; // of the whole block bytes
+
+        VerifiedBlock(String headerHash, String digest) {
+            this.headerHash = headerHash;
+            this.digest = digest;
+        }
+    }
+
+    // Keeps the latest MAX_VERIFIED_BLOCKS verified blocks
+    private static class VerifiedBlocks extends LinkedHashMap<Long, VerifiedBlock> {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, VerifiedBlock> eldest) {
+            return size() > MAX_VERIFIED_BLOCKS;
+        }
+    }
+
+    private BlockVerifierContext(
+            String verifierString,
+            Map<String, CA> ordererCAs,
+            Map<String, CA> endorserCAs,
+            Map<String, Long> caFileLastModified) {
+        this.verifierString = verifierString;
+        this.ordererCAs = Collections.unmodifiableMap(ordererCAs);
+        this.endorserCAs = Collections.unmodifiableMap(endorserCAs);
+        this.caFileLastModified = caFileLastModified;
+        this.lastCAFileCheckTime = System.currentTimeMillis();
+        this.ordererIdentities = new IdentityCache(this.ordererCAs);
+        this.endorserIdentities = new IdentityCache(this.endorserCAs);
+    }
+
+    public static class CA {
+        private final String pem;
+        private final X509Certificate certificate;
+
+        CA(String pem, X509Certificate certificate) {
+            this.pem = pem;
+            this.certificate = certificate;
+        }
+
+        public String getPem() {
+            return pem;
+        }
+
+        public X509Certificate getCertificate() {
+            return certificate;
+        }
+
+        public PublicKey getPublicKey() {
+            return certificate.getPublicKey();
+        }
+    }
+
+    public static BlockVerifierContext build(String blockVerifierString) throws WeCrossException {
+        if (blockVerifierString == null) {
+            throw new WeCrossException(
+                    WeCrossException.ErrorCode.UNEXPECTED_CONFIG, "Fabric Block Verifier is null.");
+        }
+
+        Map<String, Object> fabricVerifier = parseVerifierString(blockVerifierString);
+
+        Object chainType = fabricVerifier.get("chainType");
+        if (!STUB_NAME.equals(chainType)) {
+            throw new WeCrossException(
+                    WeCrossException.ErrorCode.UNEXPECTED_CONFIG,
+                    "Fabric Block Verifier chainType error, chainType in verifier is " + chainType);
+        }
+
+        Map<String, String> ordererCAMap = getMapInVerifier(fabricVerifier, "ordererCA");
+        Map<String, String> endorserCAMap = getMapInVerifier(fabricVerifier, "endorserCA");
+        if (ordererCAMap == null
+                || endorserCAMap == null
+                || endorserCAMap.size() == 0
+                || ordererCAMap.size() == 0) {
+            throw new WeCrossException(
+                    WeCrossException.ErrorCode.UNEXPECTED_CONFIG,
+                    "Did not full config Fabric Block Verifier, ordererCA and endorserCA are required.");
+        }
+
+        Map<String, Long> caFileLastModified = new HashMap<>();
+        Map<String, CA> ordererCAs = loadCAs(ordererCAMap, caFileLastModified);
+        Map<String, CA> endorserCAs = loadCAs(endorserCAMap, caFileLastModified);
+
+        if (logger.isDebugEnabled()) {
+            logger.debug(
+                    "Build block verifier context, ordererCA:{}, endorserCA:{}",
+                    ordererCAMap,
+                    endorserCAMap);
+        }
+
+        return new BlockVerifierContext(
+                blockVerifierString, ordererCAs, endorserCAs, caFileLastModified);
+    }
+
+    public String getVerifierString() {
+        return verifierString;
+    }
+
+    public CA getOrdererCA(String mspId) {
+        return ordererCAs.get(mspId);
+    }
+
+    public CA getEndorserCA(String mspId) {
+        return endorserCAs.get(mspId);
+    }
+
+    public IdentityCache getOrdererIdentities() {
+        return ordererIdentities;
+    }
+
+    public IdentityCache getEndorserIdentities() {
+        return endorserIdentities;
+    }
+
+    /** Whether the block of the digest of its bytes has been verified */
+    public boolean isVerified(long blockNumber, String blockDigest) {
+        VerifiedBlock verifiedBlock = verifiedBlocks.get(blockNumber);
+        return verifiedBlock != null
+                && blockDigest != null
+                && blockDigest.equals(verifiedBlock.digest);
+    }
+
+    /** Whether a block of the header has been verified, its orderer signatures are valid then */
+    public boolean isHeaderVerified(long blockNumber, String headerHash) {
+        VerifiedBlock verifiedBlock = verifiedBlocks.get(blockNumber);
+        return verifiedBlock != null
+                && headerHash != null
+                && headerHash.equals(verifiedBlock.headerHash);
+    }
+
+    public void markVerified(long blockNumber, String headerHash, String blockDigest) {
+        verifiedBlocks.put(blockNumber, new VerifiedBlock(headerHash, blockDigest));
+    }
+
+    public Map<String, CA> getOrdererCAs() {
+        return ordererCAs;
+    }
+
+    public Map<String, CA> getEndorserCAs() {
+        return endorserCAs;
+    }
+
+    /**
+     * Whether the context is out of date and should be rebuilt: the verifier string has changed, or
+     * a CA file has been modified since the context was built. CA files are stat at most once per
+     * CA_FILE_CHECK_INTERVAL.
+     */
+    public boolean isExpired(String blockVerifierString) {
+        if (!verifierString.equals(blockVerifierString)) {
+            return true;
+        }
+
+        if (caFileLastModified.isEmpty()) {
+            return false;
+        }
+
+        long now = System.currentTimeMillis();
+        if (now - lastCAFileCheckTime < CA_FILE_CHECK_INTERVAL) {
+            return false;
+        }
+        lastCAFileCheckTime = now;
+
+        for (Map.Entry<String, Long> entry : caFileLastModified.entrySet()) {
+            if (FabricUtils.getFileLastModified(entry.getKey()) != entry.getValue()) {
+                logger.info("CA file {} has been modified", entry.getKey());
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Map<String, CA> loadCAs(
+            Map<String, String> caMap, Map<String, Long> caFileLastModified)
+            throws WeCrossException {
+        // caMap: <MSP, cert path or cert content> => <MSP, CA>
+        Map<String, CA> result = new HashMap<>();
+        for (Map.Entry<String, String> entry : caMap.entrySet()) {
+            String value = entry.getValue();
+            String pem;
+            if (certPattern.matcher(value).matches()) {
+                pem = value;
+            } else {
+                if (!FabricUtils.fileIsExists(value)) {
+                    throw new WeCrossException(
+                            WeCrossException.ErrorCode.DIR_NOT_EXISTS,
+                            "File: " + value + " is not exists");
+                }
+                try {
+                    caFileLastModified.put(value, FabricUtils.getFileLastModified(value));
+                    pem = FabricUtils.readFileContent(value);
+                } catch (Exception e) {
+                    throw new WeCrossException(
+                            WeCrossException.ErrorCode.DIR_NOT_EXISTS,
+                            "Read Cert fail: " + entry.getKey() + value);
+                }
+            }
+
+            if (!certPattern.matcher(pem).matches()) {
+                throw new WeCrossException(
+                        WeCrossException.ErrorCode.UNEXPECTED_CONFIG,
+                        "Fabric cert pattern matches error, please check. MSP: " + entry.getKey());
+            }
+
+            try {
+                CertificateFactory cf = CertificateFactory.getInstance("X.509");
+                X509Certificate certificate =
+                        (X509Certificate)
+                                cf.generateCertificate(
+                                        new ByteArrayInputStream(
+                                                pem.getBytes(StandardCharsets.UTF_8)));
+                result.put(entry.getKey(), new CA(pem, certificate));
+            } catch (Exception e) {
+                throw new WeCrossException(
+                        WeCrossException.ErrorCode.UNEXPECTED_CONFIG,
+                        "Parse CA cert of " + entry.getKey() + " error, " + e.getMessage(),
+                        e);
+            }
+        }
+        return result;
+    }
+
+    private static Map<String, Object> parseVerifierString(String blockVerifierString)
+            throws WeCrossException {
+        ObjectMapper objectMapper = ObjectMapperFactory.getObjectMapper();
+        try {
+            return objectMapper.readValue(
+                    blockVerifierString, new TypeReference<Map<String, Object>>() {});
+        } catch (JsonProcessingException e) {
+            throw new WeCrossException(
+                    WeCrossException.ErrorCode.UNEXPECTED_CONFIG,
+                    "Parse Json to FabricVerifier Error, " + e.getMessage(),
+                    e.getCause());
+        } catch (Exception e) {
+            throw new WeCrossException(
+                    WeCrossException.ErrorCode.UNEXPECTED_CONFIG,
+                    "Read FabricVerifier Json Error, " + e.getMessage(),
+                    e.getCause());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, String> getMapInVerifier(
+            Map<String, Object> fabricVerifier, String key) throws WeCrossException {
+        Object value = fabricVerifier.get(key);
+        if (value == null) {
+            return null;
+        }
+        if (!(value instanceof Map)) {
+            throw new WeCrossException(
+                    WeCrossException.ErrorCode.UNEXPECTED_CONFIG,
+                    "Fabric Block Verifier field " + key + " is not a map");
+        }
+        return (Map<String, String>) value;
+    }
+}
@@ -2,6 +2,7 @@ package com.webank.wecross.stub.fabric2;
 
 import com.webank.wecross.stub.ResourceInfo;
 import com.webank.wecross.stub.fabric2.common.FabricType;
+import com.webank.wecross.stub.fabric2.endorser.EndorsementPolicy;
 import com.webank.wecross.stub.fabric2.utils.HashUtils;
 import java.util.Collection;
 import java.util.HashSet;
@@ -20,6 +21,7 @@ public class ChaincodeResource {
     private long proposalWaitTime;
     private Collection<Peer> endorsers;
     private String channelName;
+    private EndorsementPolicy endorsementPolicy; // null: unknown, endorse with all the endorsers
 
     public ChaincodeResource(
             String name, String chainCodeName, String version, String channelName) {
@@ -58,6 +60,14 @@ public class ChaincodeResource {
         endorsers.add(endorser);
     }
 
+    public EndorsementPolicy getEndorsementPolicy() {
+        return endorsementPolicy;
+    }
+
+    public void setEndorsementPolicy(EndorsementPolicy endorsementPolicy) {
+        this.endorsementPolicy = endorsementPolicy;
+    }
+
     public String getName() {
         return name;
     }
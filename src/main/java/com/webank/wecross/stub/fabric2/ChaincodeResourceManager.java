@@ -2,6 +2,7 @@ package com.webank.wecross.stub.fabric2;
 
 import com.webank.wecross.stub.ResourceInfo;
 import com.webank.wecross.stub.fabric2.common.FabricType;
+import com.webank.wecross.stub.fabric2.endorser.EndorsementPolicy;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -59,6 +60,12 @@ public class ChaincodeResourceManager {
                 updateChaincodeMapExpires);
     }
 
+    public void stop() {
+        if (mainloopTimer != null) {
+            mainloopTimer.cancel();
+        }
+    }
+
     public void setEventHandler(EventHandler eventHandler) {
         this.eventHandler = eventHandler;
     }
@@ -89,7 +96,8 @@ public class ChaincodeResourceManager {
     }
 
     private Map<String, ChaincodeResource> queryChaincodeMap() {
-        Map<String, String> chaincode2Version = queryActiveChaincode();
+        Map<String, EndorsementPolicy> chaincode2Policy = new HashMap<>();
+        Map<String, String> chaincode2Version = queryActiveChaincode(chaincode2Policy);
         Map<String, ChaincodeResource> currentChaincodeMap = new HashMap<>();
         for (String chaincodeName : chaincode2Version.keySet()) {
             for (Peer peer : peersMap.values()) {
@@ -102,6 +110,9 @@ public class ChaincodeResourceManager {
                                         chaincodeName,
                                         chaincode2Version.get(chaincodeName),
                                         channel.getName()));
+                        currentChaincodeMap
+                                .get(chaincodeName)
+                                .setEndorsementPolicy(chaincode2Policy.get(chaincodeName));
                     }
                     currentChaincodeMap.get(chaincodeName).addEndorser(peer);
                 }
@@ -157,15 +168,14 @@ public class ChaincodeResourceManager {
         return isActive;
     }
 
-    private Map<String, String> queryActiveChaincode() {
+    private Map<String, String> queryActiveChaincode(Map<String, EndorsementPolicy> name2Policy) {
         Map<String, String> name2Version = new HashMap<>();
 
         Collection<Peer> peers = new HashSet<>();
 
         // Only query peers with same mspID as for orderer
         String mspID =
-                channel.getOrderers()
-                        .stream()
+                channel.getOrderers().stream()
                         .findFirst()
                         .get()
                         .getProperties()
@@ -209,6 +219,16 @@ public class ChaincodeResourceManager {
                         }
                         String version = respons2.getVersion();
                         name2Version.put(chaincodeName, version);
+                        try {
+                            name2Policy.put(
+                                    chaincodeName,
+                                    EndorsementPolicy.parse(respons2.getValidationParameter()));
+                        } catch (Exception e) {
+                            logger.warn(
+                                    "Could not parse endorsement policy of {}: {}",
+                                    chaincodeName,
+                                    e.getMessage());
+                        }
                     }
                 }
             }
@@ -3,35 +3,50 @@ package com.webank.wecross.stub.fabric2;
 import static java.lang.String.format;
 
 import com.google.protobuf.ByteString;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
 import org.hyperledger.fabric.sdk.ProposalResponse;
 import org.hyperledger.fabric.sdk.SDKUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Checks the proposal responses in one pass. The consistency grouping is computed at most once and
+ * kept in primitive fields, the diagnostic text is only built when it is asked for.
+ */
 public class EndorsementPolicyAnalyzer {
-    // TODO: Use service discovery
-    private Logger logger = LoggerFactory.getLogger(EndorsementPolicyAnalyzer.class);
+    private static final Logger logger = LoggerFactory.getLogger(EndorsementPolicyAnalyzer.class);
 
-    private Collection<ProposalResponse> successResponse;
-    private Collection<ProposalResponse> failedResponse;
-    private Set<ByteString> payloadSet;
+    private static final int NOT_CHECKED = -1;
+
+    private List<ProposalResponse> successResponse;
+    private List<ProposalResponse> failedResponse;
+    private ByteString firstPayload;
+    private boolean samePayload = true;
+
+    // outcome of SDKUtils.getProposalConsistencySets, computed on first use
+    private int consistencyGroups = NOT_CHECKED;
+    private int invalidCount = 0;
+    private String consistencyError;
 
     public EndorsementPolicyAnalyzer(Collection<ProposalResponse> proposalResponses) {
-        successResponse = new LinkedList<>();
-        failedResponse = new LinkedList<>();
-        payloadSet = new HashSet<>();
+        successResponse = new ArrayList<>(proposalResponses.size());
+        failedResponse = new ArrayList<>(0);
 
         for (ProposalResponse response : proposalResponses) {
             if (response.getStatus() == ProposalResponse.Status.SUCCESS) {
                 ByteString payload = response.getProposalResponse().getResponse().getPayload();
-                payloadSet.add(payload);
+                if (firstPayload == null) {
+                    firstPayload = payload;
+                } else if (samePayload && !firstPayload.equals(payload)) {
+                    samePayload = false;
+                }
                 successResponse.add(response);
             } else {
-                String status = response.getStatus().toString();
                 failedResponse.add(response);
             }
         }
@@ -40,12 +55,12 @@ public class EndorsementPolicyAnalyzer {
     public boolean allSuccess() {
         return failedResponse.isEmpty()
                 && !successResponse.isEmpty()
-                && samePayload()
+                && samePayload
                 && sameSuccessResponse();
     }
 
     public boolean hasSameSuccess() {
-        return !successResponse.isEmpty() && samePayload() && sameSuccessResponse();
+        return !successResponse.isEmpty() && samePayload && sameSuccessResponse();
     }
 
     public boolean hasSuccess() {
@@ -53,100 +68,99 @@ public class EndorsementPolicyAnalyzer {
     }
 
     public byte[] getPayload() {
-        if (hasSuccess()) {
-            for (ByteString payload : payloadSet) {
-                return payload.toByteArray(); // return first element
-            }
-        } else {
-            return null;
+        return firstPayload == null ? null : firstPayload.toByteArray(); // the first payload
+    }
+
+    /** The full diagnostics only if some endorser failed or debug is on, else the counts */
+    public String summary() {
+        if (failedResponse.isEmpty() && samePayload && !logger.isDebugEnabled()) {
+            return "Success endorser: " + successResponse.size() + " Failed endorser: 0";
         }
-        return null;
+        return info();
     }
 
     public String info() {
-        String infoStr =
-                "Success endorser: "
-                        + successResponse.size()
-                        + " Failed endorser: "
-                        + failedResponse.size()
-                        + "[";
-
-        for (ProposalResponse failedResponse : failedResponse) {
-            infoStr += dumpResponse(failedResponse) + ", ";
+        StringBuilder info = new StringBuilder(256);
+        info.append("Success endorser: ")
+                .append(successResponse.size())
+                .append(" Failed endorser: ")
+                .append(failedResponse.size())
+                .append('[');
+        for (ProposalResponse response : failedResponse) {
+            dumpResponse(info, response).append(", ");
         }
-        infoStr += "] payloads:" + dumpPayloadSet() + " " + dumpConsistencyInfo();
-        return infoStr;
+        info.append("] payloads:");
+        dumpPayloadSet(info).append(' ');
+        dumpConsistencyInfo(info);
+        return info.toString();
     }
 
-    private String dumpResponse(ProposalResponse response) {
-        return "\"peer: "
-                + response.getPeer().getName()
-                + " status: "
-                + response.getStatus()
-                + " message: "
-                + response.getMessage()
-                + "\"";
+    private StringBuilder dumpResponse(StringBuilder info, ProposalResponse response) {
+        return info.append("\"peer: ")
+                .append(response.getPeer().getName())
+                .append(" status: ")
+                .append(response.getStatus())
+                .append(" message: ")
+                .append(response.getMessage())
+                .append('"');
     }
 
-    private boolean samePayload() {
-        return payloadSet.size() == 1;
+    private boolean sameSuccessResponse() {
+        checkConsistency();
+        if (consistencyError != null) {
+            logger.error(consistencyError);
+            return false;
+        }
+        return true;
     }
 
-    private boolean sameSuccessResponse() {
+    private void checkConsistency() {
+        if (consistencyGroups != NOT_CHECKED) {
+            return;
+        }
+
         try {
             HashSet<ProposalResponse> invalid = new HashSet<>();
-            int consistencyGroups =
+            consistencyGroups =
                     SDKUtils.getProposalConsistencySets(successResponse, invalid).size();
+            invalidCount = invalid.size();
 
-            if (consistencyGroups != 1 || !invalid.isEmpty()) {
-                throw new IllegalArgumentException(
+            if (consistencyGroups != 1 || invalidCount != 0) {
+                consistencyError =
                         format(
                                 "The proposal responses have %d inconsistent groups with %d that are invalid."
                                         + " Expected all to be consistent and none to be invalid.",
-                                consistencyGroups, invalid.size()));
+                                consistencyGroups, invalidCount);
             }
         } catch (Exception e) {
-            logger.error(e.getMessage());
-            return false;
+            consistencyGroups = 0;
+            consistencyError = e.getMessage();
         }
-        return true;
     }
 
-    private String dumpPayloadSet() {
-        String res = "size: " + payloadSet.size() + " [";
+    private StringBuilder dumpPayloadSet(StringBuilder info) {
+        Set<ByteString> payloadSet = new LinkedHashSet<>();
+        for (ProposalResponse response : successResponse) {
+            payloadSet.add(response.getProposalResponse().getResponse().getPayload());
+        }
 
+        info.append("size: ").append(payloadSet.size()).append(" [");
         boolean firstIn = true;
         for (ByteString bs : payloadSet) {
             if (firstIn) {
                 firstIn = false;
             } else {
-                res += ", ";
+                info.append(", ");
             }
-
-            res += bs.toStringUtf8();
+            info.append(bs.toStringUtf8());
         }
-        res += "]";
-
-        return res;
+        return info.append(']');
     }
 
-    private String dumpConsistencyInfo() {
-        try {
-            HashSet<ProposalResponse> invalid = new HashSet<>();
-            int consistencyGroups =
-                    SDKUtils.getProposalConsistencySets(successResponse, invalid).size();
-
-            if (consistencyGroups != 1 || !invalid.isEmpty()) {
-                throw new IllegalArgumentException(
-                        format(
-                                "The proposal responses have %d inconsistent groups with %d that are invalid."
-                                        + " Expected all to be consistent and none to be invalid.",
-                                consistencyGroups, invalid.size()));
-            }
-        } catch (Exception e) {
-            return "proposal response consistency: " + e.getMessage();
-        }
-        return "proposal response consistency: ok";
+    private StringBuilder dumpConsistencyInfo(StringBuilder info) {
+        checkConsistency();
+        return info.append("proposal response consistency: ")
+                .append(consistencyError == null ? "ok" : consistencyError);
     }
 
     public Collection<ProposalResponse> getSuccessResponse() {
@@ -1,39 +1,21 @@
 package com.webank.wecross.stub.fabric2;
 
-import static com.webank.wecross.stub.fabric2.common.FabricType.STUB_NAME;
-
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.protobuf.ByteString;
 import com.webank.wecross.exception.WeCrossException;
 import com.webank.wecross.stub.BlockHeader;
-import com.webank.wecross.stub.ObjectMapperFactory;
-import com.webank.wecross.stub.fabric2.utils.FabricUtils;
-import java.io.ByteArrayInputStream;
+import com.webank.wecross.stub.fabric2.utils.HashUtils;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
-import java.security.NoSuchProviderException;
-import java.security.PublicKey;
-import java.security.Signature;
-import java.security.SignatureException;
-import java.security.cert.CertificateException;
-import java.security.cert.CertificateFactory;
-import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.HashSet;
-import java.util.Map;
-import java.util.Objects;
+import java.util.List;
 import java.util.Set;
-import java.util.regex.Pattern;
+import java.util.concurrent.ForkJoinPool;
 import org.apache.commons.codec.binary.Hex;
 import org.bouncycastle.asn1.ASN1Integer;
 import org.bouncycastle.asn1.DEROctetString;
 import org.bouncycastle.asn1.DERSequenceGenerator;
 import org.hyperledger.fabric.protos.common.Common;
-import org.hyperledger.fabric.protos.msp.Identities;
 import org.hyperledger.fabric.protos.peer.ProposalResponsePackage;
 import org.hyperledger.fabric.protos.peer.TransactionPackage;
 import org.hyperledger.fabric.sdk.exception.InvalidArgumentException;
@@ -52,9 +34,17 @@ public class FabricBlock {
 
     private String hash;
     private Set<String> validTxs;
+    private byte[] blockBytes;
+    private String digest;
 
     public FabricBlock(byte[] blockBytes) throws Exception {
-        this.block = Common.Block.parseFrom(blockBytes);
+        this(Common.Block.parseFrom(blockBytes), blockBytes);
+    }
+
+    /** For a block parsed already, blockBytes must be the bytes of it */
+    public FabricBlock(Common.Block block, byte[] blockBytes) {
+        this.blockBytes = blockBytes;
+        this.block = block;
         this.header = new Header(block.getHeader());
         this.blockData = new BlockData(block.getData());
         this.metaData = new MetaData(block.getMetadata());
@@ -75,11 +65,7 @@ public class FabricBlock {
         blockHeader.setPrevHash(header.getPrevHash());
         blockHeader.setTransactionRoot(header.getDataHash());
         try {
-            Common.Envelope envelope = Common.Envelope.parseFrom(blockData.blockData.getData(0));
-            Common.Payload payload = Common.Payload.parseFrom(envelope.getPayload());
-            Common.ChannelHeader channelHeader =
-                    Common.ChannelHeader.parseFrom(payload.getHeader().getChannelHeader());
-            blockHeader.setTimestamp(channelHeader.getTimestamp().getSeconds());
+            blockHeader.setTimestamp(blockData.getEnvelopes().get(0).getTimestamp());
         } catch (Exception ignored) {
             blockHeader.setTimestamp(0);
         }
@@ -93,6 +79,25 @@ public class FabricBlock {
         return hash;
     }
 
+    /**
+     * Digest of the whole block bytes. Unlike the header hash, which covers the data hash but not
+     * the data, it differs for blocks of the same header with other envelopes or metadata.
+     */
+    public String getDigest() {
+        if (digest == null) {
+            digest = digestOf(blockBytes);
+        }
+        return digest;
+    }
+
+    public static String digestOf(byte[] blockBytes) {
+        return Hex.encodeHexString(HashUtils.sha256(blockBytes));
+    }
+
+    public byte[] getBlockBytes() {
+        return blockBytes;
+    }
+
     public boolean hasTransaction(String txID) {
         return getValidTxs().contains(txID);
     }
@@ -156,15 +161,36 @@ public class FabricBlock {
         }
     }
 
+    public BlockData getBlockData() {
+        return blockData;
+    }
+
+    public MetaData getMetaData() {
+        return metaData;
+    }
+
     public static class BlockData {
         private Logger logger = LoggerFactory.getLogger(BlockData.class);
         private Common.BlockData blockData;
+        private List<TxEnvelope> envelopes;
         private ArrayList<String> txIDList;
 
         public BlockData(Common.BlockData blockData) {
             this.blockData = blockData;
         }
 
+        // Every envelope of the block is decoded here once and shared by all users of the block
+        public List<TxEnvelope> getEnvelopes() throws Exception {
+            if (envelopes == null) {
+                List<TxEnvelope> list = new ArrayList<>(blockData.getDataCount());
+                for (ByteString envelopeBytes : blockData.getDataList()) {
+                    list.add(new TxEnvelope(envelopeBytes));
+                }
+                envelopes = list;
+            }
+            return envelopes;
+        }
+
         public ArrayList<String> getTxIDList() {
             if (txIDList == null || txIDList.isEmpty()) {
                 txIDList = getTxIDListFromBlockData();
@@ -178,13 +204,8 @@ public class FabricBlock {
             try {
 
                 list = new ArrayList<>();
-                for (ByteString envelopeBytes : blockData.getDataList()) {
-                    Common.Envelope envelope = Common.Envelope.parseFrom(envelopeBytes);
-                    Common.Payload payload = Common.Payload.parseFrom(envelope.getPayload());
-                    Common.ChannelHeader channelHeader =
-                            Common.ChannelHeader.parseFrom(payload.getHeader().getChannelHeader());
-                    String txID = channelHeader.getTxId();
-                    list.add(txID);
+                for (TxEnvelope envelope : getEnvelopes()) {
+                    list.add(envelope.getTxID());
                 }
                 logger.debug("Block txID list(" + list.size() + "): " + list.toString());
 
@@ -196,6 +217,61 @@ public class FabricBlock {
         }
     }
 
+    public static class TxEnvelope {
+        private ByteString envelopeBytes;
+        private Common.Envelope envelope;
+        private Common.Payload payload;
+        private Common.ChannelHeader channelHeader;
+        private TransactionPackage.Transaction transaction;
+        private FabricTransaction fabricTransaction;
+
+        public TxEnvelope(ByteString envelopeBytes) throws Exception {
+            this.envelopeBytes = envelopeBytes;
+            this.envelope = Common.Envelope.parseFrom(envelopeBytes);
+            this.payload = Common.Payload.parseFrom(envelope.getPayload());
+            this.channelHeader =
+                    Common.ChannelHeader.parseFrom(payload.getHeader().getChannelHeader());
+        }
+
+        public ByteString getEnvelopeBytes() {
+            return envelopeBytes;
+        }
+
+        public Common.Envelope getEnvelope() {
+            return envelope;
+        }
+
+        public Common.Payload getPayload() {
+            return payload;
+        }
+
+        public Common.ChannelHeader getChannelHeader() {
+            return channelHeader;
+        }
+
+        public String getTxID() {
+            return channelHeader.getTxId();
+        }
+
+        public long getTimestamp() {
+            return channelHeader.getTimestamp().getSeconds();
+        }
+
+        public TransactionPackage.Transaction getTransaction() throws Exception {
+            if (transaction == null) {
+                transaction = TransactionPackage.Transaction.parseFrom(payload.getData());
+            }
+            return transaction;
+        }
+
+        public FabricTransaction getFabricTransaction() throws Exception {
+            if (fabricTransaction == null) {
+                fabricTransaction = new FabricTransaction(payload, channelHeader, getTransaction());
+            }
+            return fabricTransaction;
+        }
+    }
+
     public static class MetaData {
         private Common.BlockMetadata metadata;
 
@@ -204,6 +280,10 @@ public class FabricBlock {
         }
 
         public byte[] getTransactionFilter() {
+            if (metadata.getMetadataCount()
+                    <= Common.BlockMetadataIndex.TRANSACTIONS_FILTER_VALUE) {
+                return new byte[0];
+            }
             return metadata.getMetadata(Common.BlockMetadataIndex.TRANSACTIONS_FILTER_VALUE)
                     .toByteArray();
         }
@@ -215,12 +295,16 @@ public class FabricBlock {
     }
 
     public static String calculateBlockHashString(Common.Block block) {
+        return calculateBlockHashString(block.getHeader());
+    }
+
+    public static String calculateBlockHashString(Common.BlockHeader header) {
         try {
             CryptoSuite cryptoSuite = CryptoSuite.Factory.getCryptoSuite();
             if (null == cryptoSuite) {
                 throw new InvalidArgumentException("Client crypto suite has not  been set.");
             }
-            return Hex.encodeHexString(cryptoSuite.hash(calculateBlockHeader(block)));
+            return Hex.encodeHexString(cryptoSuite.hash(calculateBlockHeader(header)));
         } catch (Exception e) {
             Logger logger = LoggerFactory.getLogger(MetaData.class);
             logger.error("Could not calculate block hash: " + e);
@@ -234,44 +318,9 @@ public class FabricBlock {
     }
 
     public boolean verify(String blockVerifierString) {
+        BlockVerifierContext context;
         try {
-            String chainType = getStringInVerifierString(blockVerifierString, "chainType");
-            if (!STUB_NAME.equals(chainType)) {
-                logger.error(
-                        "Verify error: Fabric Block Verifier chainType error, chainType in verifier is {}.",
-                        chainType);
-                return false;
-            }
-            Map<String, String> ordererCAMap =
-                    getMapperInVerifierString(blockVerifierString, "ordererCA");
-            Map<String, String> endorserCAMap =
-                    getMapperInVerifierString(blockVerifierString, "endorserCA");
-            if (ordererCAMap == null
-                    || endorserCAMap == null
-                    || endorserCAMap.size() == 0
-                    || ordererCAMap.size() == 0) {
-                logger.error(
-                        "Did not full config Fabric Block Verifier, will skip block verification on what field didn't config.");
-                return false;
-            }
-            // CAMap: <MSP, cert path> => <MSP, cert content>
-            ordererCAMap = FabricUtils.readFileInMap(ordererCAMap);
-            endorserCAMap = FabricUtils.readFileInMap(endorserCAMap);
-            if (logger.isDebugEnabled()) {
-                ObjectMapper objectMapper = new ObjectMapper();
-                logger.debug(
-                        "ordererCA:{}, endorserCA:{}",
-                        objectMapper.writeValueAsString(ordererCAMap),
-                        objectMapper.writeValueAsString(endorserCAMap));
-            }
-            if (!verifyBlockCreator(ordererCAMap)) {
-                logger.warn("Verify creator in block {} failed.", header.getNumber());
-                return false;
-            }
-            if (!verifyTransactions(endorserCAMap)) {
-                logger.warn("Verify transaction in block {} failed.", header.getNumber());
-                return false;
-            }
+            context = BlockVerifierContext.build(blockVerifierString);
         } catch (WeCrossException e) {
             logger.error(
                     "Verify block error, errorCode:{}, error: {}, caused by: {}",
@@ -279,6 +328,29 @@ public class FabricBlock {
                     e.getMessage(),
                     e.getCause());
             return false;
+        }
+        return verifyWithContext(context);
+    }
+
+    public boolean verifyWithContext(BlockVerifierContext context) {
+        return verifyWithContext(context, null, 0);
+    }
+
+    /**
+     * Verify the block with endorsements checked in the pool when the block carries at least
+     * parallelThreshold of them, sequentially otherwise or if the pool is null
+     */
+    public boolean verifyWithContext(
+            BlockVerifierContext context, ForkJoinPool pool, int parallelThreshold) {
+        try {
+            if (!verifyBlockCreator(context)) {
+                logger.warn("Verify creator in block {} failed.", header.getNumber());
+                return false;
+            }
+            if (!verifyTransactions(context, pool, parallelThreshold)) {
+                logger.warn("Verify transaction in block {} failed.", header.getNumber());
+                return false;
+            }
         } catch (Exception e) {
             logger.error("Verify block error, error: ", e);
             return false;
@@ -286,13 +358,25 @@ public class FabricBlock {
         return true;
     }
 
-    public boolean verifyBlockCreator(Map<String, String> ordererCAs) {
+    public boolean verifyBlockCreator(BlockVerifierContext context) {
+        try {
+            return verifyBlockSignatures(block.getHeader(), metaData.getBlockSignatures(), context);
+        } catch (Exception e) {
+            logger.warn("Verify block creator exception: ", e);
+            return false;
+        }
+    }
+
+    // Verify the orderer signatures of the block header
+    static boolean verifyBlockSignatures(
+            Common.BlockHeader blockHeader,
+            Common.Metadata metadata,
+            BlockVerifierContext context) {
         try {
-            Common.Metadata metadata = metaData.getBlockSignatures();
             if (logger.isTraceEnabled()) {
                 logger.trace(
                         "Verifying Fabric block, ordererCAs is {}, SignatureList is {}.",
-                        ordererCAs,
+                        context.getOrdererCAs().keySet(),
                         metadata.getSignaturesList());
             }
 
@@ -301,29 +385,25 @@ public class FabricBlock {
                 byte[] signBytes = signature.toByteArray();
                 Common.SignatureHeader header =
                         Common.SignatureHeader.parseFrom(metadataSignature.getSignatureHeader());
-                Identities.SerializedIdentity serializedIdentity =
-                        Identities.SerializedIdentity.parseFrom(header.getCreator());
 
-                ByteString blockHeaderBytes = ByteString.copyFrom(calculateBlockHeader(block));
+                ByteString blockHeaderBytes =
+                        ByteString.copyFrom(calculateBlockHeader(blockHeader));
                 ByteString plainText =
                         metadata.getValue()
                                 .concat(metadataSignature.getSignatureHeader())
                                 .concat(blockHeaderBytes);
 
-                String mspId = serializedIdentity.getMspid();
-                if (ordererCAs.containsKey(mspId)
-                        && checkCert(
-                                ordererCAs.get(mspId),
-                                serializedIdentity.getIdBytes().toByteArray())) {
-                    if (!verifySignature(
-                            serializedIdentity.getIdBytes(), signBytes, plainText.toByteArray())) {
+                IdentityCache.Identity orderer =
+                        context.getOrdererIdentities().get(header.getCreator());
+                if (orderer != null && orderer.isTrusted()) {
+                    if (!orderer.verifySignature(signBytes, plainText.toByteArray())) {
                         return false;
                     }
                 } else {
                     logger.error(
                             "VerifyBlockCreator error, ordererCAMap didn't have a key of {} or checkCert error, ordererCAMap: {}",
-                            serializedIdentity.getMspid(),
-                            ordererCAs);
+                            orderer == null ? null : orderer.getMspId(),
+                            context.getOrdererCAs().keySet());
                     return false;
                 }
             }
@@ -335,13 +415,13 @@ public class FabricBlock {
         }
     }
 
-    private static byte[] calculateBlockHeader(Common.Block block) throws IOException {
+    private static byte[] calculateBlockHeader(Common.BlockHeader header) throws IOException {
         ByteArrayOutputStream s = new ByteArrayOutputStream();
         DERSequenceGenerator seq = new DERSequenceGenerator(s);
         try {
-            seq.addObject(new ASN1Integer(block.getHeader().getNumber()));
-            seq.addObject(new DEROctetString(block.getHeader().getPreviousHash().toByteArray()));
-            seq.addObject(new DEROctetString(block.getHeader().getDataHash().toByteArray()));
+            seq.addObject(new ASN1Integer(header.getNumber()));
+            seq.addObject(new DEROctetString(header.getPreviousHash().toByteArray()));
+            seq.addObject(new DEROctetString(header.getDataHash().toByteArray()));
         } catch (Exception e) {
             logger.error("calculateBlockHeader error, e: ", e);
         } finally {
@@ -351,9 +431,16 @@ public class FabricBlock {
     }
 
     // Verify every transaction's endorsement
-    public boolean verifyTransactions(Map<String, String> endorserCAs) {
+    public boolean verifyTransactions(BlockVerifierContext context) {
+        return verifyTransactions(context, null, 0);
+    }
+
+    public boolean verifyTransactions(
+            BlockVerifierContext context, ForkJoinPool pool, int parallelThreshold) {
         if (logger.isTraceEnabled()) {
-            logger.trace("Verifying Fabric transactions, endorserCAs: {}", endorserCAs);
+            logger.trace(
+                    "Verifying Fabric transactions, endorserCAs: {}",
+                    context.getEndorserCAs().keySet());
         }
         try {
             byte[] txFilter = metaData.getTransactionFilter();
@@ -366,28 +453,23 @@ public class FabricBlock {
                                 + txFilter.length);
             }
 
-            for (int i = 0; i < block.getData().getDataCount(); i++) {
+            List<EndorsementCheck> checks = new ArrayList<>();
+            List<TxEnvelope> envelopes = blockData.getEnvelopes();
+            for (int i = 0; i < envelopes.size(); i++) {
                 // a tx
-                ByteString envelopeBytes = block.getData().getData(i);
-
                 if (txFilter[i] != TransactionPackage.TxValidationCode.VALID_VALUE) {
                     // jump illegal tx
                     continue;
                 }
 
-                Common.Envelope envelope = Common.Envelope.parseFrom(envelopeBytes);
-                Common.Payload payload = Common.Payload.parseFrom(envelope.getPayload());
-
-                Common.ChannelHeader channelHeader =
-                        Common.ChannelHeader.parseFrom(payload.getHeader().getChannelHeader());
-                String txID = channelHeader.getTxId();
+                TxEnvelope envelope = envelopes.get(i);
+                String txID = envelope.getTxID();
                 if (txID == null || txID.length() == 0) {
                     // ignore system tx
                     continue;
                 }
 
-                TransactionPackage.Transaction transaction =
-                        TransactionPackage.Transaction.parseFrom(payload.getData());
+                TransactionPackage.Transaction transaction = envelope.getTransaction();
                 for (TransactionPackage.TransactionAction action : transaction.getActionsList()) {
                     // an action of tx
                     TransactionPackage.ChaincodeActionPayload chaincodeActionPayload =
@@ -399,9 +481,6 @@ public class FabricBlock {
                     for (ProposalResponsePackage.Endorsement endorsement :
                             chaincodeEndorsedAction.getEndorsementsList()) {
                         // a endorsement of tx
-                        Identities.SerializedIdentity endorser =
-                                Identities.SerializedIdentity.parseFrom(endorsement.getEndorser());
-
                         if (!chaincodeEndorsedAction
                                 .getProposalResponsePayload()
                                 .startsWith(ByteString.copyFromUtf8("\n"))) {
@@ -414,146 +493,72 @@ public class FabricBlock {
                                         .getProposalResponsePayload()
                                         .concat(endorsement.getEndorser());
 
-                        ByteString endorserCertificate = endorser.getIdBytes();
-                        byte[] signBytes = endorsement.getSignature().toByteArray();
-                        String mspId = endorser.getMspid();
-
-                        // verify endorser certificate
-                        if (endorserCAs.containsKey(mspId)
-                                && checkCert(
-                                        endorserCAs.get(mspId),
-                                        endorserCertificate.toByteArray())) {
-                            if (!verifySignature(
-                                    endorserCertificate, signBytes, plainText.toByteArray())) {
-                                return false;
-                            }
-                        } else {
+                        IdentityCache.Identity endorser =
+                                context.getEndorserIdentities().get(endorsement.getEndorser());
+                        if (endorser == null) {
                             logger.error(
-                                    "Error occurs in verifyTransactions: endorserCAMap may not contains {} or cert is wrong. cert: {}",
-                                    endorser.getMspid(),
-                                    endorserCertificate.toByteArray());
+                                    "Error occurs in verifyTransactions: endorserCAMap does not contain the MSP of {}",
+                                    endorsement.getEndorser().toStringUtf8());
                             return false;
                         }
+
+                        checks.add(
+                                new EndorsementCheck(
+                                        endorser,
+                                        endorsement.getSignature().toByteArray(),
+                                        plainText.toByteArray()));
                     }
                 }
             }
-            return true;
-        } catch (Exception e) {
-            logger.warn("verify block txs failed: ", e);
-            return false;
-        }
-    }
-
-    private boolean verifySignature(ByteString identity, byte[] signBytes, byte[] data) {
-        try {
-            ByteArrayInputStream bis = new ByteArrayInputStream(identity.toByteArray());
-            CertificateFactory cf = CertificateFactory.getInstance("X.509");
-            X509Certificate certificate = (X509Certificate) cf.generateCertificate(bis);
-
-            Signature signer = Signature.getInstance(certificate.getSigAlgName());
-            signer.initVerify(certificate);
-            signer.update(data);
-            boolean ok = signer.verify(signBytes);
 
-            if (logger.isTraceEnabled()) {
-                logger.trace(
-                        "verifySignature: {}, identity: {}, signBytes:{}, data: {} ",
-                        ok,
-                        identity.toStringUtf8(),
-                        Hex.encodeHexString(signBytes),
-                        Hex.encodeHexString(data));
+            if (pool == null || checks.size() < parallelThreshold) {
+                for (EndorsementCheck check : checks) {
+                    if (!verifyEndorsement(check)) {
+                        return false;
+                    }
+                }
+                return true;
             }
 
-            return ok;
+            // allMatch stops at the first failed endorsement
+            return pool.submit(() -> checks.parallelStream().allMatch(this::verifyEndorsement))
+                    .get();
         } catch (Exception e) {
-            logger.error("verifySignature in block exception: ", e);
+            logger.warn("verify block txs failed: ", e);
             return false;
         }
     }
 
-    private boolean checkCert(String caCert, byte[] cert) throws WeCrossException {
-        if (!Pattern.compile(FabricUtils.CERT_PATTERN, Pattern.MULTILINE)
-                .matcher(caCert)
-                .matches()) {
-            throw new WeCrossException(
-                    WeCrossException.ErrorCode.UNEXPECTED_CONFIG,
-                    "Fabric cert pattern matches error, please check.");
-        }
-        ByteArrayInputStream caByteStream = new ByteArrayInputStream(caCert.getBytes());
-        ByteArrayInputStream certByteStrean = new ByteArrayInputStream(cert);
-        CertificateFactory cf = null;
-        try {
-            cf = CertificateFactory.getInstance("X.509");
-            X509Certificate caCertificate = (X509Certificate) cf.generateCertificate(caByteStream);
-            X509Certificate certificate = (X509Certificate) cf.generateCertificate(certByteStrean);
-            PublicKey caKey = caCertificate.getPublicKey();
-            certificate.verify(caKey);
-        } catch (CertificateException
-                | NoSuchAlgorithmException
-                | InvalidKeyException
-                | NoSuchProviderException
-                | SignatureException e) {
-            logger.error("Check Cert fail, caCert: {}, cert: {}", caCert, cert);
-            return false;
+    private static class EndorsementCheck {
+        private final IdentityCache.Identity endorser;
+        private final byte[] signBytes;
+        private final byte[] plainText;
+
+        EndorsementCheck(IdentityCache.Identity endorser, byte[] signBytes, byte[] plainText) {
+            this.endorser = endorser;
+            this.signBytes = signBytes;
+            this.plainText = plainText;
         }
-        return true;
     }
 
-    private Map<String, String> getMapperInVerifierString(String blockVerifierString, String key)
-            throws WeCrossException {
-        ObjectMapper objectMapper = ObjectMapperFactory.getObjectMapper();
-        if (blockVerifierString == null || key == null) return null;
-        try {
-            Objects.requireNonNull(
-                    blockVerifierString,
-                    "'blockVerifierString' in getPubKeyInBCOSVerifier is null.");
-            Map<String, Object> fabricVerifier =
-                    objectMapper.readValue(
-                            blockVerifierString, new TypeReference<Map<String, Object>>() {});
-            if (!Objects.isNull(fabricVerifier.get(key))) {
-                return (Map<String, String>) fabricVerifier.get(key);
-            } else {
-                return null;
-            }
-        } catch (JsonProcessingException e) {
-            throw new WeCrossException(
-                    WeCrossException.ErrorCode.UNEXPECTED_CONFIG,
-                    "Parse Json to BCOSVerifier Error, " + e.getMessage(),
-                    e.getCause());
-        } catch (Exception e) {
-            throw new WeCrossException(
-                    WeCrossException.ErrorCode.UNEXPECTED_CONFIG,
-                    "Read BCOSVerifier Json Error, " + e.getMessage(),
-                    e.getCause());
+    private boolean verifyEndorsement(EndorsementCheck check) {
+        // verify endorser certificate
+        if (!check.endorser.isTrusted()) {
+            logger.error(
+                    "Error occurs in verifyTransactions: endorser cert of {} is wrong.",
+                    check.endorser.getMspId());
+            return false;
         }
-    }
 
-    private String getStringInVerifierString(String blockVerifierString, String key)
-            throws WeCrossException {
-        ObjectMapper objectMapper = ObjectMapperFactory.getObjectMapper();
-        if (blockVerifierString == null || key == null) return null;
-        try {
-            Objects.requireNonNull(
-                    blockVerifierString,
-                    "'blockVerifierString' in getPubKeyInBCOSVerifier is null.");
-            Map<String, Object> fabricVerifier =
-                    objectMapper.readValue(
-                            blockVerifierString, new TypeReference<Map<String, Object>>() {});
-            if (!Objects.isNull(fabricVerifier.get(key))) {
-                return (String) fabricVerifier.get(key);
-            } else {
-                return null;
-            }
-        } catch (JsonProcessingException e) {
-            throw new WeCrossException(
-                    WeCrossException.ErrorCode.UNEXPECTED_CONFIG,
-                    "Parse Json to BCOSVerifier Error, " + e.getMessage(),
-                    e.getCause());
-        } catch (Exception e) {
-            throw new WeCrossException(
-                    WeCrossException.ErrorCode.UNEXPECTED_CONFIG,
-                    "Read BCOSVerifier Json Error, " + e.getMessage(),
-                    e.getCause());
+        boolean ok = check.endorser.verifySignature(check.signBytes, check.plainText);
+        if (logger.isTraceEnabled()) {
+            logger.trace(
+                    "verifySignature: {}, mspId: {}, signBytes:{}, data: {} ",
+                    ok,
+                    check.endorser.getMspId(),
+                    Hex.encodeHexString(check.signBytes),
+                    Hex.encodeHexString(check.plainText));
         }
+        return ok;
     }
 }
@@ -0,0 +1,171 @@
+package com.webank.wecross.stub.fabric2;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.ExtensionRegistryLite;
+import com.google.protobuf.WireFormat;
+import com.webank.wecross.stub.BlockHeader;
+import java.io.IOException;
+import org.apache.commons.codec.binary.Hex;
+import org.hyperledger.fabric.protos.common.Common;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Header of a block decoded without its transactions. Only the block header, the metadata and the
+ * first envelope (for the timestamp) are read, the rest of the data section is skipped.
+ */
+public class FabricBlockHeader {
+    private static final Logger logger = LoggerFactory.getLogger(FabricBlockHeader.class);
+
+    // field numbers of the protos read here
+    private static final int BLOCK_HEADER = 1; // Block.header
+    private static final int BLOCK_DATA = 2; // Block.data
+    private static final int BLOCK_METADATA = 3; // Block.metadata
+    private static final int BLOCK_DATA_DATA = 1; // BlockData.data
+    private static final int ENVELOPE_PAYLOAD = 1; // Envelope.payload
+    private static final int PAYLOAD_HEADER = 1; // Payload.header
+    private static final int HEADER_CHANNEL_HEADER = 1; // Header.channel_header
+
+    private Common.BlockHeader header;
+    private Common.BlockMetadata metadata;
+    private ByteString firstEnvelope;
+    private String hash;
+
+    private FabricBlockHeader() {}
+
+    public static FabricBlockHeader decode(byte[] blockBytes) throws IOException {
+        FabricBlockHeader blockHeader = new FabricBlockHeader();
+        CodedInputStream input = CodedInputStream.newInstance(blockBytes);
+        while (true) {
+            int tag = input.readTag();
+            if (tag == 0) {
+                break;
+            }
+
+            switch (WireFormat.getTagFieldNumber(tag)) {
+                case BLOCK_HEADER:
+                    blockHeader.header =
+                            input.readMessage(
+                                    Common.BlockHeader.parser(),
+                                    ExtensionRegistryLite.getEmptyRegistry());
+                    break;
+                case BLOCK_DATA:
+                    blockHeader.firstEnvelope = readFirstEnvelope(input);
+                    break;
+                case BLOCK_METADATA:
+                    blockHeader.metadata =
+                            input.readMessage(
+                                    Common.BlockMetadata.parser(),
+                                    ExtensionRegistryLite.getEmptyRegistry());
+                    break;
+                default:
+                    input.skipField(tag);
+            }
+        }
+
+        if (blockHeader.header == null) {
+            throw new IOException("Illegal block format, no block header");
+        }
+        return blockHeader;
+    }
+
+    // Read the first envelope of BlockData and skip the others
+    private static ByteString readFirstEnvelope(CodedInputStream input) throws IOException {
+        int length = input.readRawVarint32();
+        int oldLimit = input.pushLimit(length);
+        ByteString firstEnvelope = null;
+        while (firstEnvelope == null) {
+            int tag = input.readTag();
+            if (tag == 0) {
+                break;
+            }
+            if (WireFormat.getTagFieldNumber(tag) == BLOCK_DATA_DATA) {
+                firstEnvelope = input.readBytes();
+            } else {
+                input.skipField(tag);
+            }
+        }
+        input.skipRawBytes(input.getBytesUntilLimit());
+        input.popLimit(oldLimit);
+        return firstEnvelope;
+    }
+
+    // Get the first length delimited field of the number in a message, without parsing the message
+    private static ByteString readField(ByteString message, int fieldNumber) throws IOException {
+        CodedInputStream input = message.newCodedInput();
+        while (true) {
+            int tag = input.readTag();
+            if (tag == 0) {
+                return ByteString.EMPTY;
+            }
+            if (WireFormat.getTagFieldNumber(tag) == fieldNumber
+                    && WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+                return input.readBytes();
+            }
+            input.skipField(tag);
+        }
+    }
+
+    public long getNumber() {
+        return header.getNumber();
+    }
+
+    public String getHash() {
+        if (hash == null || hash.isEmpty()) {
+            hash = FabricBlock.calculateBlockHashString(header);
+        }
+        return hash;
+    }
+
+    public String getPrevHash() {
+        return Hex.encodeHexString(header.getPreviousHash().toByteArray());
+    }
+
+    public String getDataHash() {
+        return Hex.encodeHexString(header.getDataHash().toByteArray());
+    }
+
+    // Timestamp (seconds) of the first transaction of the block
+    public long getTimestamp() throws IOException {
+        if (firstEnvelope == null) {
+            throw new IOException("Block " + getNumber() + " has no transaction");
+        }
+
+        ByteString payload = readField(firstEnvelope, ENVELOPE_PAYLOAD);
+        ByteString header = readField(payload, PAYLOAD_HEADER);
+        ByteString channelHeader = readField(header, HEADER_CHANNEL_HEADER);
+        return Common.ChannelHeader.parseFrom(channelHeader).getTimestamp().getSeconds();
+    }
+
+    /** Verify the orderer signatures of the header, the transactions are not verified */
+    public boolean verifyBlockCreator(BlockVerifierContext context) {
+        try {
+            if (metadata == null) {
+                throw new Exception("Illegal block format, no block metadata");
+            }
+
+            Common.Metadata signatures =
+                    Common.Metadata.parseFrom(
+                            metadata.getMetadata(Common.BlockMetadataIndex.SIGNATURES_VALUE));
+            return FabricBlock.verifyBlockSignatures(header, signatures, context);
+        } catch (Exception e) {
+            logger.warn("Verify block {} creator exception: ", getNumber(), e);
+            return false;
+        }
+    }
+
+    public BlockHeader dumpWeCrossHeader() {
+        BlockHeader blockHeader = new BlockHeader();
+        blockHeader.setNumber(getNumber());
+        blockHeader.setHash(getHash());
+        blockHeader.setPrevHash(getPrevHash());
+        blockHeader.setTransactionRoot(getDataHash());
+        try {
+            blockHeader.setTimestamp(getTimestamp());
+        } catch (Exception ignored) {
+            blockHeader.setTimestamp(0);
+        }
+        return blockHeader;
+    }
+}
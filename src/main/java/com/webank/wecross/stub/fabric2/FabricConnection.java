@@ -6,19 +6,44 @@ import static java.lang.String.format;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.protobuf.ByteString;
+import com.webank.wecross.exception.WeCrossException;
 import com.webank.wecross.stub.Connection;
 import com.webank.wecross.stub.Request;
 import com.webank.wecross.stub.ResourceInfo;
 import com.webank.wecross.stub.Response;
 import com.webank.wecross.stub.StubConstant;
+import com.webank.wecross.stub.TransactionRequest;
 import com.webank.wecross.stub.fabric2.FabricCustomCommand.InstantiateChaincodeRequest;
+import com.webank.wecross.stub.fabric2.block.BlockPrefetcher;
+import com.webank.wecross.stub.fabric2.block.BlockRangeFetcher;
+import com.webank.wecross.stub.fabric2.block.BlockStore;
+import com.webank.wecross.stub.fabric2.block.CommitDispatcher;
+import com.webank.wecross.stub.fabric2.block.RecentBlockCache;
+import com.webank.wecross.stub.fabric2.block.TxIndex;
 import com.webank.wecross.stub.fabric2.common.FabricType;
+import com.webank.wecross.stub.fabric2.endorser.EndorsementPolicy;
+import com.webank.wecross.stub.fabric2.endorser.HedgedQuery;
+import com.webank.wecross.stub.fabric2.endorser.ProposalFanOut;
+import com.webank.wecross.stub.fabric2.endorser.QueryResultCache;
+import com.webank.wecross.stub.fabric2.orderer.BroadcastStream;
+import com.webank.wecross.stub.fabric2.orderer.OrdererSelector;
+import com.webank.wecross.stub.fabric2.timeout.Deadline;
+import com.webank.wecross.stub.fabric2.timeout.DeadlineRequest;
+import com.webank.wecross.stub.fabric2.timeout.RequestTimeouts;
 import io.netty.util.HashedWheelTimer;
 import io.netty.util.Timer;
 import java.io.ByteArrayInputStream;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Predicate;
 import org.hyperledger.fabric.protos.common.Common;
 import org.hyperledger.fabric.protos.msp.Identities;
 import org.hyperledger.fabric.protos.orderer.Ab;
@@ -31,23 +56,51 @@ import org.hyperledger.fabric.sdk.security.CryptoSuite;
 import org.hyperledger.fabric.sdk.transaction.TransactionContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.core.task.TaskRejectedException;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 
 /** @Description: fabric 链接对象，用于链接fabric链 发起交易 @Author: mirsu @Date: 2020/10/30 10:52 */
 public class FabricConnection implements Connection {
     private static ObjectMapper objectMapper = new ObjectMapper();
     private Logger logger = LoggerFactory.getLogger(FabricConnection.class);
+    private static final long BLOCK_RANGE_TIMEOUT = 60000; // ms
+    private static final long COMMIT_SWEEP_INTERVAL = 1000; // ms
+    private static final long ORDERER_PROBE_INTERVAL = 1000; // ms
+    private static final long PREFETCH_WAIT_TIMEOUT = 1000; // ms, then fetch the block itself
     private HFClient hfClient;
     private Channel channel;
     private String proxyChaincodeName;
     private Map<String, Peer> peersMap;
     private ChaincodeResourceManager chaincodeResourceManager;
     private FabricInnerFunction fabricInnerFunction;
+    private BlockRangeFetcher blockRangeFetcher;
+    private CommitDispatcher commitDispatcher;
+    private Map<String, BroadcastStream> broadcastStreams = new ConcurrentHashMap<>(); // by url
+    private OrdererSelector ordererSelector;
+    private HedgedQuery hedgedQuery; // null: query all the endorsers of the chaincode
+    private boolean policyAwareEndorsement = true;
+    private ProposalFanOut proposalFanOut; // null: wait for all the endorsers
+    private int endorsementQuorum = 0; // orgs enough to endorse, 0: by the endorsement policy
+    private QueryResultCache queryResultCache; // null: call results are not cached
+    private Map<String, AtomicInteger> peerLoads = new ConcurrentHashMap<>(); // proposals in flight
+    private RequestTimeouts requestTimeouts = new RequestTimeouts();
     private Timer timeoutHandler;
+    private volatile boolean closed = false;
     private long latestBlockNumber = 0;
     private ThreadPoolTaskExecutor threadPool;
+    private ThreadPoolTaskExecutor queryThreadPool; // for block and transaction queries
     private String blockListenerHandler;
     private Map<String, String> properties = new HashMap<>();
+    private volatile BlockVerifierContext blockVerifierContext;
+    private ForkJoinPool blockVerifyPool; // null: verify blocks sequentially
+    private int blockVerifyParallelThreshold;
+    private RecentBlockCache recentBlockCache = new RecentBlockCache();
+    private BlockStore blockStore; // null: local block store is disabled
+    private TxIndex txIndex; // null: tx index is disabled
+    private BlockPrefetcher blockPrefetcher; // null: prefetch is disabled
+    private ThreadPoolTaskExecutor prefetchThreadPool;
+    private ThreadPoolTaskExecutor proposalThreadPool; // for the proposals sent in parallel
+    private ThreadPoolTaskExecutor blockStoreThreadPool; // null: delivered blocks stored inline
 
     public FabricConnection(
             HFClient hfClient,
@@ -64,6 +117,12 @@ public class FabricConnection implements Connection {
 
         this.fabricInnerFunction = new FabricInnerFunction(channel);
 
+        this.blockRangeFetcher = new BlockRangeFetcher(hfClient, channel, fabricInnerFunction);
+
+        this.commitDispatcher = new CommitDispatcher(channel.getName());
+
+        this.ordererSelector = new OrdererSelector(this::probeOrderer);
+
         this.timeoutHandler = new HashedWheelTimer();
 
         this.threadPool = threadPool;
@@ -77,18 +136,193 @@ public class FabricConnection implements Connection {
                 channel.registerBlockListener(
                         blockEvent -> {
                             long currentBlockNumber = blockEvent.getBlockNumber();
+                            commitDispatcher.onBlockEvent(blockEvent);
+                            invalidateQueryResults(blockEvent);
+                            if (!blockEvent.isFiltered()) {
+                                byte[] blockBytes = blockEvent.getBlock().toByteArray();
+                                recentBlockCache.put(currentBlockNumber, blockBytes);
+                                asyncStoreBlock(
+                                        currentBlockNumber, blockBytes, blockEvent.getBlock());
+                            }
                             if (this.latestBlockNumber < currentBlockNumber) {
                                 this.latestBlockNumber = currentBlockNumber;
                             }
+                            if (blockPrefetcher != null) {
+                                blockPrefetcher.onNewBlock(currentBlockNumber);
+                            }
                         });
 
         channel.initialize();
 
+        scheduleCommitSweep();
+        scheduleOrdererProbe();
+
         threadPool.initialize();
+        if (queryThreadPool == null) {
+            queryThreadPool = threadPool;
+        } else {
+            queryThreadPool.initialize();
+        }
 
         chaincodeResourceManager.start();
     }
 
+    /** Release the resources owned by the connection, it can not be used after that */
+    public void shutdown() {
+        closed = true;
+        if (blockListenerHandler != null) {
+            try {
+                channel.unregisterBlockListener(blockListenerHandler);
+            } catch (Exception e) {
+                logger.warn("Unregister block listener exception: ", e);
+            }
+            blockListenerHandler = null;
+        }
+        timeoutHandler.stop();
+        chaincodeResourceManager.stop();
+
+        threadPool.shutdown();
+        if (queryThreadPool != null) {
+            queryThreadPool.shutdown();
+        }
+        if (blockVerifyPool != null) {
+            blockVerifyPool.shutdown();
+        }
+        if (prefetchThreadPool != null) {
+            prefetchThreadPool.shutdown();
+        }
+        if (proposalThreadPool != null) {
+            proposalThreadPool.shutdown();
+        }
+        if (blockStoreThreadPool != null) {
+            blockStoreThreadPool.shutdown();
+        }
+        blockRangeFetcher.shutdown();
+        // kept closed in the map, so that a late broadcast fails instead of reconnecting
+        for (BroadcastStream broadcastStream : broadcastStreams.values()) {
+            broadcastStream.close();
+        }
+
+        if (blockStore != null) {
+            blockStore.close();
+        }
+        if (txIndex != null) {
+            txIndex.close();
+        }
+        logger.info("Fabric connection of channel {} shut down", channel.getName());
+    }
+
+    // One timer for the commit timeouts of all the transactions in flight
+    private void scheduleCommitSweep() {
+        timeoutHandler.newTimeout(
+                timeout -> {
+                    try {
+                        commitDispatcher.expire(System.currentTimeMillis());
+                    } finally {
+                        if (!closed) {
+                            scheduleCommitSweep();
+                        }
+                    }
+                },
+                COMMIT_SWEEP_INTERVAL,
+                TimeUnit.MILLISECONDS);
+    }
+
+    // Probe the orderers whose circuit breaker is open, and fail the timed out broadcasts
+    private void scheduleOrdererProbe() {
+        timeoutHandler.newTimeout(
+                timeout -> {
+                    try {
+                        long now = System.currentTimeMillis();
+                        ordererSelector.probe(now);
+                        for (BroadcastStream broadcastStream : broadcastStreams.values()) {
+                            broadcastStream.expire(now);
+                        }
+                    } finally {
+                        if (!closed) {
+                            scheduleOrdererProbe();
+                        }
+                    }
+                },
+                ORDERER_PROBE_INTERVAL,
+                TimeUnit.MILLISECONDS);
+    }
+
+    private boolean probeOrderer(String url) {
+        BroadcastStream broadcastStream = broadcastStreams.get(url);
+        try {
+            return broadcastStream != null && broadcastStream.probe();
+        } catch (Exception e) {
+            logger.debug("Probe orderer {} exception: ", url, e);
+            return false;
+        }
+    }
+
+    public void setHedgedQuery(HedgedQuery hedgedQuery) {
+        this.hedgedQuery = hedgedQuery;
+    }
+
+    public HedgedQuery getHedgedQuery() {
+        return hedgedQuery;
+    }
+
+    public void setQueryResultCache(QueryResultCache queryResultCache) {
+        this.queryResultCache = queryResultCache;
+    }
+
+    public QueryResultCache getQueryResultCache() {
+        return queryResultCache;
+    }
+
+    private void invalidateQueryResults(BlockEvent blockEvent) {
+        if (queryResultCache == null) {
+            return;
+        }
+
+        if (blockEvent.isFiltered()) {
+            boolean hasValidTransaction = false;
+            for (BlockEvent.TransactionEvent transactionEvent : blockEvent.getTransactionEvents()) {
+                hasValidTransaction |= transactionEvent.isValid();
+            }
+            queryResultCache.onFilteredBlock(blockEvent.getBlockNumber(), hasValidTransaction);
+        } else {
+            queryResultCache.onBlock(blockEvent.getBlock());
+        }
+    }
+
+    public OrdererSelector getOrdererSelector() {
+        return ordererSelector;
+    }
+
+    public CommitDispatcher getCommitDispatcher() {
+        return commitDispatcher;
+    }
+
+    public void setRequestTimeouts(RequestTimeouts requestTimeouts) {
+        this.requestTimeouts = requestTimeouts;
+    }
+
+    public RequestTimeouts getRequestTimeouts() {
+        return requestTimeouts;
+    }
+
+    // Deadline carried by the request, or a new one from the budget of its resource
+    private Deadline getDeadline(Request request, RequestTimeouts.Stage... stages) {
+        Deadline deadline = DeadlineRequest.deadlineOf(request);
+        if (deadline == null) {
+            String resourceName =
+                    request.getResourceInfo() == null ? null : request.getResourceInfo().getName();
+            deadline = requestTimeouts.newDeadline(resourceName, stages);
+        }
+        return deadline;
+    }
+
+    private FabricConnectionResponse timeoutResponse(String stage) {
+        return FabricConnectionResponse.build()
+                .errorCode(FabricType.TransactionResponseStatus.REQUEST_TIMEOUT)
+                .errorMessage("Request timeout before " + stage);
+    }
+
     private Response send(Request request) {
         switch (request.getType()) {
             case FabricType.ConnectionMessage.FABRIC_CALL:
@@ -109,6 +343,9 @@ public class FabricConnection implements Connection {
             case FabricType.ConnectionMessage.FABRIC_GET_TRANSACTION:
                 return handleGetTransaction(request);
 
+            case FabricType.ConnectionMessage.FABRIC_GET_BLOCK_RANGE:
+                return handleGetBlockRange(request);
+
             case FabricType.ConnectionMessage.FABRIC_SENDTRANSACTION_ORG_ENDORSER:
                 return handleSendTransactionToOrgsEndorsor(request);
 
@@ -137,6 +374,24 @@ public class FabricConnection implements Connection {
             case FabricType.ConnectionMessage.FABRIC_SENDTRANSACTION_ORG_ENDORSER:
                 handleAsyncInstallChaincodeProposal(request, callback);
                 break;
+
+            case FabricType.ConnectionMessage.FABRIC_GET_BLOCK_NUMBER:
+                // in memory, no need to switch thread
+                callback.onResponse(handleGetBlockNumber(request));
+                break;
+
+            case FabricType.ConnectionMessage.FABRIC_GET_BLOCK:
+                handleAsyncGetBlock(request, callback);
+                break;
+
+            case FabricType.ConnectionMessage.FABRIC_GET_TRANSACTION:
+                asyncQuery(request, callback, this::handleGetTransaction);
+                break;
+
+            case FabricType.ConnectionMessage.FABRIC_GET_BLOCK_RANGE:
+                asyncQuery(request, callback, this::handleGetBlockRange);
+                break;
+
             default:
                 callback.onResponse(send(request));
         }
@@ -189,6 +444,133 @@ public class FabricConnection implements Connection {
         return this.properties;
     }
 
+    /**
+     * Get the compiled block verifier of the FABRIC_VERIFIER property, it is rebuilt only when the
+     * property or the CA files change
+     *
+     * @return null if FABRIC_VERIFIER is not set
+     */
+    public BlockVerifierContext getBlockVerifierContext() throws WeCrossException {
+        String blockVerifierString = properties.get(FabricType.FABRIC_VERIFIER);
+        if (blockVerifierString == null) {
+            return null;
+        }
+
+        BlockVerifierContext context = blockVerifierContext;
+        if (context != null && !context.isExpired(blockVerifierString)) {
+            return context;
+        }
+
+        synchronized (this) {
+            if (blockVerifierContext == context) {
+                // nobody has rebuilt it before us
+                blockVerifierContext = BlockVerifierContext.build(blockVerifierString);
+                logger.info("Block verifier context has been (re)built");
+            }
+            return blockVerifierContext;
+        }
+    }
+
+    public void setBlockVerifyPool(ForkJoinPool blockVerifyPool, int parallelThreshold) {
+        this.blockVerifyPool = blockVerifyPool;
+        this.blockVerifyParallelThreshold = parallelThreshold;
+    }
+
+    public void setQueryThreadPool(ThreadPoolTaskExecutor queryThreadPool) {
+        this.queryThreadPool = queryThreadPool;
+    }
+
+    /**
+     * Enable block prefetching
+     *
+     * @param executor executor for fetching blocks, shut down with the connection
+     * @param window max number of blocks prefetched ahead of the requested one
+     * @param maxBytes memory limit of the prefetched blocks
+     * @param verify verify the prefetched blocks in advance
+     */
+    public void enableBlockPrefetch(
+            ThreadPoolTaskExecutor executor, int window, long maxBytes, boolean verify) {
+        BlockPrefetcher prefetcher =
+                new BlockPrefetcher(this::fetchBlockBytes, executor, window, maxBytes);
+        if (verify) {
+            prefetcher.setProcessor(
+                    (blockNumber, blockBytes) -> {
+                        BlockVerifierContext context = getBlockVerifierContext();
+                        if (context != null) {
+                            verifyBlock(FabricBlock.encode(blockBytes), context);
+                        }
+                    });
+        }
+        this.blockPrefetcher = prefetcher;
+        this.prefetchThreadPool = executor;
+    }
+
+    public BlockPrefetcher getBlockPrefetcher() {
+        return blockPrefetcher;
+    }
+
+    /** Verify the block with the context, the result is remembered by the context */
+    public boolean verifyBlock(FabricBlock fabricBlock, BlockVerifierContext context) {
+        long blockNumber = fabricBlock.getHeader().getNumber();
+        String blockDigest = fabricBlock.getDigest();
+        if (context.isVerified(blockNumber, blockDigest)) {
+            return true;
+        }
+
+        boolean ok =
+                fabricBlock.verifyWithContext(
+                        context, blockVerifyPool, blockVerifyParallelThreshold);
+        if (ok) {
+            context.markVerified(blockNumber, fabricBlock.getHash(), blockDigest);
+        }
+        return ok;
+    }
+
+    /** Verify the orderer signatures of the header, skipped if the whole block is verified */
+    public boolean verifyBlockHeader(FabricBlockHeader blockHeader, BlockVerifierContext context) {
+        if (context.isHeaderVerified(blockHeader.getNumber(), blockHeader.getHash())) {
+            return true;
+        }
+        return blockHeader.verifyBlockCreator(context);
+    }
+
+    public void setRecentBlockCache(RecentBlockCache recentBlockCache) {
+        this.recentBlockCache = recentBlockCache;
+    }
+
+    public RecentBlockCache getRecentBlockCache() {
+        return recentBlockCache;
+    }
+
+    public void setBlockStore(BlockStore blockStore) {
+        this.blockStore = blockStore;
+    }
+
+    public BlockStore getBlockStore() {
+        return blockStore;
+    }
+
+    public void setTxIndex(TxIndex txIndex) {
+        this.txIndex = txIndex;
+    }
+
+    public TxIndex getTxIndex() {
+        return txIndex;
+    }
+
+    /** One thread verifying, storing and indexing the delivered blocks in order */
+    public void setBlockStoreThreadPool(ThreadPoolTaskExecutor blockStoreThreadPool) {
+        this.blockStoreThreadPool = blockStoreThreadPool;
+    }
+
+    public ForkJoinPool getBlockVerifyPool() {
+        return blockVerifyPool;
+    }
+
+    public int getBlockVerifyParallelThreshold() {
+        return blockVerifyParallelThreshold;
+    }
+
     @Override
     public void setConnectionEventHandler(ConnectionEventHandler eventHandler) {
         chaincodeResourceManager.setEventHandler(
@@ -204,6 +586,10 @@ public class FabricConnection implements Connection {
         ChaincodeResource chaincodeResource =
                 chaincodeResourceManager.getChaincodeResource(request.getResourceInfo().getName());
         if (chaincodeResource != null) {
+            if (queryResultCache != null
+                    && queryResultCache.isCached(request.getResourceInfo().getName())) {
+                return cachedCall(request, chaincodeResource);
+            }
             return call(request, chaincodeResource.getEndorsers());
         } else {
             return FabricConnectionResponse.build()
@@ -214,6 +600,50 @@ public class FabricConnection implements Connection {
         }
     }
 
+    // Answer from the query result cache, or call and cache the result
+    private Response cachedCall(Request request, ChaincodeResource chaincodeResource) {
+        String key;
+        String[] namespaces;
+        try {
+            TransactionParams transactionParams = TransactionParams.parseFrom(request.getData());
+            TransactionRequest transactionRequest = transactionParams.getOriginTransactionRequest();
+            key =
+                    QueryResultCache.keyOf(
+                            recoverSigner(
+                                    ProposalPackage.SignedProposal.parseFrom(
+                                            transactionParams.getData())),
+                            chaincodeResource.getName(),
+                            transactionRequest.getMethod(),
+                            transactionRequest.getArgs(),
+                            transactionRequest.getOptions());
+            // a call by proxy reads the state of the proxy chaincode too
+            namespaces =
+                    transactionParams.isByProxy()
+                            ? new String[] {
+                                chaincodeResource.getChainCodeName(), proxyChaincodeName
+                            }
+                            : new String[] {chaincodeResource.getChainCodeName()};
+        } catch (Exception e) {
+            logger.debug("Build query result cache key exception: ", e);
+            return call(request, chaincodeResource.getEndorsers());
+        }
+
+        QueryResultCache.Entry entry = queryResultCache.get(key);
+        if (entry != null) {
+            return FabricConnectionResponse.build()
+                    .errorCode(FabricType.TransactionResponseStatus.SUCCESS)
+                    .errorMessage("Cached result of block " + entry.getBlockNumber())
+                    .data(entry.getResult());
+        }
+
+        long writeSequence = queryResultCache.getWriteSequence();
+        Response response = call(request, chaincodeResource.getEndorsers());
+        if (response.getErrorCode() == FabricType.TransactionResponseStatus.SUCCESS) {
+            queryResultCache.put(key, response.getData(), writeSequence, namespaces);
+        }
+        return response;
+    }
+
     private void handleAsyncCall(Request request, Connection.Callback callback) {
         // chaincode call is sync, use thread pool to simulate async for better performance
         threadPool.execute(() -> callback.onResponse(handleCall(request)));
@@ -223,7 +653,10 @@ public class FabricConnection implements Connection {
         ChaincodeResource chaincodeResource =
                 chaincodeResourceManager.getChaincodeResource(request.getResourceInfo().getName());
         if (chaincodeResource != null) {
-            return sendTransactionEndorser(request, chaincodeResource.getEndorsers());
+            return sendTransactionEndorser(
+                    request,
+                    chaincodeResource.getEndorsers(),
+                    chaincodeResource.getEndorsementPolicy());
         } else {
             return FabricConnectionResponse.build()
                     .errorCode(FabricType.TransactionResponseStatus.RESOURCE_NOT_FOUND)
@@ -240,8 +673,10 @@ public class FabricConnection implements Connection {
     private Response handleSendTransactionOrderer(Request request) {
         CompletableFuture<Response> responseFuture = new CompletableFuture<>();
 
+        Deadline deadline =
+                getDeadline(request, RequestTimeouts.Stage.ORDER, RequestTimeouts.Stage.COMMIT);
         handleAsyncSendTransactionOrderer(
-                request,
+                DeadlineRequest.withDeadline(request, deadline),
                 new Callback() {
                     @Override
                     public void onResponse(Response response) {
@@ -250,7 +685,9 @@ public class FabricConnection implements Connection {
                 });
 
         try {
-            return responseFuture.get(10000, TimeUnit.MILLISECONDS);
+            // commit timeouts are reported by the sweep, wait for one more round of it
+            return responseFuture.get(
+                    deadline.remaining() + COMMIT_SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
         } catch (Exception e) {
             return FabricConnectionResponse.build()
                     .errorCode(FabricType.TransactionResponseStatus.INTERNAL_ERROR)
@@ -279,6 +716,57 @@ public class FabricConnection implements Connection {
                 .data(numberBytes);
     }
 
+    private void handleAsyncGetBlock(Request request, Connection.Callback callback) {
+        byte[] blockBytes = null;
+        try {
+            long blockNumber = bytesToLong(request.getData());
+            if (blockPrefetcher != null) {
+                blockPrefetcher.onRequest(blockNumber);
+            }
+            blockBytes = recentBlockCache.get(blockNumber);
+        } catch (Exception e) {
+            // let handleGetBlock report it
+        }
+
+        if (blockBytes != null) {
+            // hit in memory, no need to switch thread
+            callback.onResponse(
+                    FabricConnectionResponse.build()
+                            .errorCode(FabricType.TransactionResponseStatus.SUCCESS)
+                            .errorMessage("Success")
+                            .data(blockBytes));
+        } else {
+            asyncQuery(request, callback, this::handleGetBlock);
+        }
+    }
+
+    // Blocking queries run in the query thread pool, away from the caller and transaction threads
+    private void asyncQuery(
+            Request request, Connection.Callback callback, Function<Request, Response> handler) {
+        try {
+            CompletableFuture.supplyAsync(() -> handler.apply(request), queryThreadPool)
+                    .whenComplete(
+                            (response, e) -> {
+                                if (e != null) {
+                                    callback.onResponse(
+                                            FabricConnectionResponse.build()
+                                                    .errorCode(
+                                                            FabricType.TransactionResponseStatus
+                                                                    .INTERNAL_ERROR)
+                                                    .errorMessage("Query exception: " + e));
+                                } else {
+                                    callback.onResponse(response);
+                                }
+                            });
+        } catch (TaskRejectedException e) {
+            logger.warn("Query thread pool is full, request type: {}", request.getType());
+            callback.onResponse(
+                    FabricConnectionResponse.build()
+                            .errorCode(FabricType.TransactionResponseStatus.INTERNAL_ERROR)
+                            .errorMessage("Too many queries, query thread pool is full"));
+        }
+    }
+
     private Response handleGetBlock(Request request) {
 
         Response response;
@@ -286,8 +774,7 @@ public class FabricConnection implements Connection {
             long blockNumber = bytesToLong(request.getData());
 
             // Fabric Just return block
-            BlockInfo blockInfo = channel.queryBlockByNumber(blockNumber);
-            byte[] blockBytes = blockInfo.getBlock().toByteArray();
+            byte[] blockBytes = recentBlockCache.getOrLoad(blockNumber, this::loadBlockBytes);
 
             response =
                     FabricConnectionResponse.build()
@@ -304,16 +791,171 @@ public class FabricConnection implements Connection {
         return response;
     }
 
+    private Response handleGetBlockRange(Request request) {
+        Response response;
+        try {
+            long[] range = BlockRangeFetcher.decodeRange(request.getData());
+
+            // Fetch blocks [start, end] from the deliver service of one peer
+            Exception lastException = null;
+            List<byte[]> blocks = null;
+            for (Peer peer : peersMap.values()) {
+                try {
+                    blocks = blockRangeFetcher.fetch(peer, range[0], range[1], BLOCK_RANGE_TIMEOUT);
+                    break;
+                } catch (Exception e) {
+                    logger.warn("Get block range from {} exception: {}", peer.getUrl(), e);
+                    lastException = e;
+                }
+            }
+            if (blocks == null) {
+                throw lastException != null ? lastException : new Exception("No peer");
+            }
+
+            for (int i = 0; i < blocks.size(); i++) {
+                storeBlock(range[0] + i, blocks.get(i), null);
+            }
+
+            response =
+                    FabricConnectionResponse.build()
+                            .errorCode(FabricType.TransactionResponseStatus.SUCCESS)
+                            .errorMessage("Success")
+                            .data(BlockRangeFetcher.encodeBlocks(blocks));
+
+        } catch (Exception e) {
+            response =
+                    FabricConnectionResponse.build()
+                            .errorCode(FabricType.TransactionResponseStatus.INTERNAL_ERROR)
+                            .errorMessage("Get block range exception: " + e);
+        }
+        return response;
+    }
+
+    private byte[] loadBlockBytes(long blockNumber) throws Exception {
+        if (blockPrefetcher != null) {
+            byte[] blockBytes = blockPrefetcher.take(blockNumber, PREFETCH_WAIT_TIMEOUT);
+            if (blockBytes != null) {
+                return blockBytes;
+            }
+        }
+        return fetchBlockBytes(blockNumber);
+    }
+
+    // Fetch block from local block store or peers
+    private byte[] fetchBlockBytes(long blockNumber) throws Exception {
+        if (blockStore != null) {
+            byte[] blockBytes = blockStore.get(blockNumber);
+            if (blockBytes != null) {
+                return blockBytes;
+            }
+        }
+
+        BlockInfo blockInfo = channel.queryBlockByNumber(blockNumber);
+        byte[] blockBytes = blockInfo.getBlock().toByteArray();
+        storeBlock(blockNumber, blockBytes, blockInfo.getBlock());
+        return blockBytes;
+    }
+
+    // Store the delivered block away from the event thread, the next blocks are not held up
+    private void asyncStoreBlock(long blockNumber, byte[] blockBytes, Common.Block block) {
+        if (blockStoreThreadPool == null) {
+            storeBlock(blockNumber, blockBytes, block);
+            return;
+        }
+
+        try {
+            blockStoreThreadPool.execute(() -> storeBlock(blockNumber, blockBytes, block));
+        } catch (TaskRejectedException e) {
+            logger.warn("Block {} is not stored, block store thread pool is full", blockNumber);
+        }
+    }
+
+    // Store the block and index its transactions, decoded once for the verification, the store
+    // and the index. The block is parsed only if block is null.
+    private void storeBlock(long blockNumber, byte[] blockBytes, Common.Block block) {
+        if (closed || (blockStore == null && txIndex == null)) {
+            return;
+        }
+
+        try {
+            if (block == null) {
+                block = Common.Block.parseFrom(blockBytes);
+            }
+            FabricBlock fabricBlock = new FabricBlock(block, blockBytes);
+            if (!isTrustedBlock(fabricBlock)) {
+                logger.warn("Block {} is not stored, verify failed", blockNumber);
+                return;
+            }
+            if (blockStore != null) {
+                blockStore.put(blockNumber, blockBytes, block);
+            }
+            if (txIndex != null) {
+                List<String> txIDs = fabricBlock.getBlockData().getTxIDList();
+                if (txIDs != null) {
+                    txIndex.indexBlock(
+                            blockNumber, txIDs, fabricBlock.getMetaData().getTransactionFilter());
+                } else {
+                    txIndex.indexBlock(block); // some envelope can't be decoded
+                }
+            }
+        } catch (Exception e) {
+            logger.warn("Store block {} exception: ", blockNumber, e);
+        }
+    }
+
+    // Only the blocks verified by FABRIC_VERIFIER are stored and indexed, all if it is not set
+    private boolean isTrustedBlock(FabricBlock fabricBlock) throws Exception {
+        BlockVerifierContext context = getBlockVerifierContext();
+        return context == null || verifyBlock(fabricBlock, context);
+    }
+
+    // Get the transaction envelope from the cached or stored block located by the tx index
+    private byte[] getIndexedTransaction(String txID) {
+        if (txIndex == null) {
+            return null;
+        }
+
+        long entry = txIndex.get(txID);
+        if (entry == TxIndex.NOT_FOUND) {
+            return null;
+        }
+
+        try {
+            long blockNumber = TxIndex.getBlockNumber(entry);
+            byte[] blockBytes = recentBlockCache.get(blockNumber);
+            if (blockBytes == null && blockStore != null) {
+                blockBytes = blockStore.get(blockNumber);
+            }
+            if (blockBytes == null) {
+                return null;
+            }
+
+            Common.Block block = Common.Block.parseFrom(blockBytes);
+            int txIndexInBlock = TxIndex.getTxIndex(entry);
+            if (txIndexInBlock >= block.getData().getDataCount()) {
+                return null;
+            }
+            return block.getData().getData(txIndexInBlock).toByteArray();
+        } catch (Exception e) {
+            logger.debug("Get indexed transaction {} exception: ", txID, e);
+            return null;
+        }
+    }
+
     public Response handleGetTransaction(Request request) {
         Response response;
         try {
             String txID = new String(request.getData());
-            TransactionInfo transactionInfo = channel.queryTransactionByID(txID);
+            byte[] envelopeBytes = getIndexedTransaction(txID);
+            if (envelopeBytes == null) {
+                TransactionInfo transactionInfo = channel.queryTransactionByID(txID);
+                envelopeBytes = transactionInfo.getEnvelope().toByteArray();
+            }
             response =
                     FabricConnectionResponse.build()
                             .errorCode(FabricType.TransactionResponseStatus.SUCCESS)
                             .errorMessage("Success")
-                            .data(transactionInfo.getEnvelope().toByteArray());
+                            .data(envelopeBytes);
 
         } catch (Exception e) {
             response =
@@ -376,7 +1018,7 @@ public class FabricConnection implements Connection {
                 response =
                         FabricConnectionResponse.build()
                                 .errorCode(FabricType.TransactionResponseStatus.SUCCESS)
-                                .errorMessage(analyzer.info())
+                                .errorMessage(analyzer.summary())
                                 .data(ordererPayloadToSign);
             } else {
                 response =
@@ -415,19 +1057,30 @@ public class FabricConnection implements Connection {
                     .errorMessage("Illegal request type: " + request.getType());
         }
 
+        Deadline deadline = getDeadline(request, RequestTimeouts.Stage.ENDORSE);
+        if (deadline.isExpired()) {
+            return timeoutResponse("endorsement");
+        }
+
         FabricConnectionResponse response;
         try {
             TransactionParams transactionParams = TransactionParams.parseFrom(request.getData());
 
             Collection<ProposalResponse> proposalResponses =
-                    queryEndorser(transactionParams.getData(), endorsers);
+                    hedgedQuery != null
+                            ? queryOneEndorser(transactionParams.getData(), endorsers, deadline)
+                            : queryEndorser(
+                                    transactionParams.getData(),
+                                    endorsers,
+                                    deadline,
+                                    successResponses -> true); // a query needs one answer
             EndorsementPolicyAnalyzer analyzer = new EndorsementPolicyAnalyzer(proposalResponses);
 
             if (analyzer.hasSuccess()) {
                 response =
                         FabricConnectionResponse.build()
                                 .errorCode(FabricType.TransactionResponseStatus.SUCCESS)
-                                .errorMessage(analyzer.info())
+                                .errorMessage(analyzer.summary())
                                 .data(analyzer.getPayload());
             } else {
                 response =
@@ -437,6 +1090,8 @@ public class FabricConnection implements Connection {
                                                 .FABRIC_INVOKE_CHAINCODE_FAILED)
                                 .errorMessage("Query endorser failed: " + analyzer.info());
             }
+        } catch (TimeoutException e) {
+            response = timeoutResponse("endorsement");
         } catch (Exception e) {
             response =
                     FabricConnectionResponse.build()
@@ -448,21 +1103,64 @@ public class FabricConnection implements Connection {
         return response;
     }
 
-    private Response sendTransactionEndorser(Request request, Collection<Peer> endorsers) {
+    private Response sendTransactionEndorser(
+            Request request, Collection<Peer> endorsers, EndorsementPolicy endorsementPolicy) {
         if (request.getType() != FabricType.ConnectionMessage.FABRIC_SENDTRANSACTION_ENDORSER) {
             return FabricConnectionResponse.build()
                     .errorCode(FabricType.TransactionResponseStatus.ILLEGAL_REQUEST_TYPE)
                     .errorMessage("Illegal request type: " + request.getType());
         }
 
+        Deadline deadline =
+                getDeadline(
+                        request,
+                        RequestTimeouts.Stage.ENDORSE,
+                        RequestTimeouts.Stage.ORDER,
+                        RequestTimeouts.Stage.COMMIT);
+        if (deadline.isExpired()) {
+            return timeoutResponse("endorsement");
+        }
+
         FabricConnectionResponse response;
         try {
             TransactionParams transactionParams = TransactionParams.parseFrom(request.getData());
 
+            Set<String> orgs = new HashSet<>();
+            for (Peer endorser : endorsers) {
+                orgs.add(getMspID(endorser));
+            }
+
+            EndorsementPolicy policy = getTransactionPolicy(transactionParams, endorsementPolicy);
+            Collection<Peer> selected = selectEndorsers(endorsers, policy);
             Collection<ProposalResponse> proposalResponses =
-                    queryEndorser(transactionParams.getData(), endorsers);
+                    queryEndorser(
+                            transactionParams.getData(),
+                            selected,
+                            deadline,
+                            successResponses -> isEnoughEndorsed(successResponses, policy, orgs));
             EndorsementPolicyAnalyzer analyzer = new EndorsementPolicyAnalyzer(proposalResponses);
 
+            List<ProposalResponse> endorsed = new ArrayList<>(analyzer.getSuccessResponse());
+            if (selected.size() < endorsers.size()
+                    && !isEnoughEndorsed(endorsed, policy, orgs)
+                    && !deadline.isExpired()) {
+                // some of the selected endorsers failed, ask the others too
+                List<Peer> others = new ArrayList<>(endorsers);
+                others.removeAll(selected);
+                proposalResponses = new ArrayList<>(proposalResponses);
+                proposalResponses.addAll(
+                        queryEndorser(
+                                transactionParams.getData(),
+                                others,
+                                deadline,
+                                successResponses -> {
+                                    List<ProposalResponse> all = new ArrayList<>(endorsed);
+                                    all.addAll(successResponses);
+                                    return isEnoughEndorsed(all, policy, orgs);
+                                }));
+                analyzer = new EndorsementPolicyAnalyzer(proposalResponses);
+            }
+
             // if (analyzer.allSuccess()) { // All success endorsement policy, TODO: pull policy
             if (analyzer.hasSameSuccess()) {
                 // has success policy: for not all org has deploy a chiancode but WeCrossProxy has
@@ -473,7 +1171,7 @@ public class FabricConnection implements Connection {
                 response =
                         FabricConnectionResponse.build()
                                 .errorCode(FabricType.TransactionResponseStatus.SUCCESS)
-                                .errorMessage(analyzer.info())
+                                .errorMessage(analyzer.summary())
                                 .data(ordererPayloadToSign);
             } else {
                 response =
@@ -503,67 +1201,63 @@ public class FabricConnection implements Connection {
                             .errorMessage("Illegal request type: " + request.getType()));
         }
 
+        Deadline deadline =
+                getDeadline(request, RequestTimeouts.Stage.ORDER, RequestTimeouts.Stage.COMMIT);
+        if (deadline.isExpired()) {
+            callback.onResponseInternal(timeoutResponse("ordering"));
+            return;
+        }
+
         try {
             Common.Envelope envelope = Common.Envelope.parseFrom(request.getData());
             byte[] payload = envelope.getPayload().toByteArray();
             final String proposalTransactionID = getTxIDFromProposalBytes(payload);
 
-            sendOrdererPayload(envelope, proposalTransactionID)
-                    .thenApply(
-                            transactionEvent -> {
-                                FabricConnectionResponse response;
-                                if (transactionEvent.isValid()) {
-                                    long blockNumber =
-                                            transactionEvent.getBlockEvent().getBlockNumber();
-                                    byte[] blockNumberBytes = longToBytes(blockNumber);
-                                    response =
-                                            FabricConnectionResponse.build()
-                                                    .errorCode(
-                                                            FabricType.TransactionResponseStatus
-                                                                    .SUCCESS)
-                                                    .data(blockNumberBytes);
-                                    // success is blockNumber
-
-                                    logger.info(
-                                            "Wait event success: "
-                                                    + transactionEvent.getChannelId()
-                                                    + " "
-                                                    + transactionEvent.getTransactionID()
-                                                    + " "
-                                                    + transactionEvent.getType()
-                                                    + " "
-                                                    + transactionEvent.getValidationCode());
-                                } else {
-                                    response =
-                                            FabricConnectionResponse.build()
-                                                    .errorCode(
-                                                            FabricType.TransactionResponseStatus
-                                                                    .FABRIC_EXECUTE_CHAINCODE_FAILED)
-                                                    .data(
-                                                            new byte[] {
-                                                                transactionEvent.getValidationCode()
-                                                            });
-                                    // error is TxValidationCode of fabric define in
-                                    // Transaction.proto
-
-                                    logger.info(
-                                            "Wait event failed: "
-                                                    + transactionEvent.getChannelId()
-                                                    + " "
-                                                    + transactionEvent.getTransactionID()
-                                                    + " "
-                                                    + transactionEvent.getType()
-                                                    + " "
-                                                    + transactionEvent.getValidationCode());
-                                }
-                                callback.onResponseInternal(response);
-
-                                return transactionEvent;
-                            });
-            // TODO: 2020/10/28 超时时间需要动态配置
-            callback.setTimeout(
-                    timeoutHandler.newTimeout(
-                            timeout -> callback.onTimeout(), 20000, TimeUnit.MILLISECONDS));
+            CompletableFuture<CommitDispatcher.Commit> commitFuture =
+                    sendOrdererPayload(envelope, proposalTransactionID, deadline);
+
+            commitFuture.whenComplete(
+                    (commit, e) -> {
+                        if (e != null) {
+                            Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+                            if (cause instanceof TimeoutException) {
+                                callback.onTimeout();
+                            } else {
+                                callback.onResponseInternal(
+                                        FabricConnectionResponse.build()
+                                                .errorCode(
+                                                        FabricType.TransactionResponseStatus
+                                                                .FABRIC_COMMIT_CHAINCODE_FAILED)
+                                                .errorMessage(
+                                                        "Invoke orderer exception: " + cause));
+                            }
+                            return;
+                        }
+
+                        FabricConnectionResponse response;
+                        if (commit.isValid()) {
+                            byte[] blockNumberBytes = longToBytes(commit.getBlockNumber());
+                            response =
+                                    FabricConnectionResponse.build()
+                                            .errorCode(FabricType.TransactionResponseStatus.SUCCESS)
+                                            .data(blockNumberBytes);
+                            // success is blockNumber
+
+                            logger.info("Wait event success: {} {}", channel.getName(), commit);
+                        } else {
+                            response =
+                                    FabricConnectionResponse.build()
+                                            .errorCode(
+                                                    FabricType.TransactionResponseStatus
+                                                            .FABRIC_EXECUTE_CHAINCODE_FAILED)
+                                            .data(new byte[] {(byte) commit.getValidationCode()});
+                            // error is TxValidationCode of fabric define in
+                            // Transaction.proto
+
+                            logger.info("Wait event failed: {} {}", channel.getName(), commit);
+                        }
+                        callback.onResponseInternal(response);
+                    });
 
         } catch (Exception e) {
             FabricConnectionResponse response =
@@ -576,153 +1270,151 @@ public class FabricConnection implements Connection {
         }
     }
 
-    private CompletableFuture<BlockEvent.TransactionEvent> sendOrdererPayload(
-            Common.Envelope transactionEnvelope, String proposalTransactionID) throws Exception {
+    private CompletableFuture<CommitDispatcher.Commit> sendOrdererPayload(
+            Common.Envelope transactionEnvelope, String proposalTransactionID, Deadline deadline) {
         // make certain we have our own copy
+        final List<Orderer> rankedOrderers =
+                ordererSelector.rank(channel.getOrderers(), Orderer::getUrl);
+
+        logger.debug(
+                "Channel {} sending transaction to orderer(s) with TxID {} ",
+                channel.getName(),
+                proposalTransactionID);
+
+        // registered before sending, the block may arrive before the orderer response
+        CompletableFuture<CommitDispatcher.Commit> commitFuture =
+                commitDispatcher.register(proposalTransactionID, deadline.remaining());
+
+        long start = System.currentTimeMillis();
+        AtomicLong ordered = new AtomicLong(0);
+        CompletableFuture<CommitDispatcher.Commit> future = new CompletableFuture<>();
+        broadcast(transactionEnvelope, proposalTransactionID, rankedOrderers, 0, null)
+                .whenComplete(
+                        (resp, e) -> {
+                            if (e != null) {
+                                commitDispatcher.cancel(proposalTransactionID);
+                                future.completeExceptionally(e);
+                                return;
+                            }
 
-        final List<Orderer> shuffeledOrderers = new ArrayList<>(channel.getOrderers());
-        final String name = channel.getName();
-        Channel.TransactionOptions transactionOptions =
-                Channel.TransactionOptions.createTransactionOptions()
-                        .orderers(channel.getOrderers())
-                        .userContext(hfClient.getUserContext());
-        try {
-            Collections.shuffle(shuffeledOrderers);
-
-            logger.debug(
-                    "Channel {} sending transaction to orderer(s) with TxID {} ",
-                    name,
-                    proposalTransactionID);
-            boolean success = false;
-            Exception lException =
-                    null; // Save last exception to report to user .. others are just logged.
-
-            CompletableFuture<BlockEvent.TransactionEvent> sret =
-                    createTransactionEvent(proposalTransactionID);
-
-            Ab.BroadcastResponse resp = null;
-            Orderer failed = null;
-
-            for (Orderer orderer : shuffeledOrderers) {
-                if (failed != null) {
-                    logger.warn("Channel {}  {} failed. Now trying {}.", name, failed, orderer);
-                }
-                failed = orderer;
-                try {
+                            ordered.set(System.currentTimeMillis());
+                            requestTimeouts.record(
+                                    RequestTimeouts.Stage.ORDER, ordered.get() - start);
+                            logger.debug(
+                                    "Channel {} successful sent to Orderer transaction id: {}",
+                                    channel.getName(),
+                                    proposalTransactionID);
+                        });
 
-                    resp =
-                            fabricInnerFunction.sendTransactionToOrderer(
-                                    orderer, transactionEnvelope);
-
-                    lException = null; // no longer last exception .. maybe just failed.
-                    if (resp.getStatus() == Common.Status.SUCCESS) {
-                        success = true;
-                        break;
-                    } else {
-                        logger.warn(
-                                format(
-                                        "Channel %s %s failed. Status returned %s",
-                                        name, orderer, dumpRespData(resp)));
-                    }
-                } catch (Exception e) {
-                    String emsg =
-                            format(
-                                    "Channel %s unsuccessful sendTransaction to orderer %s (%s)",
-                                    name, orderer.getName(), orderer.getUrl());
-                    if (resp != null) {
-
-                        emsg =
-                                format(
-                                        "Channel %s unsuccessful sendTransaction to orderer %s (%s).  %s",
-                                        name,
-                                        orderer.getName(),
-                                        orderer.getUrl(),
-                                        dumpRespData(resp));
+        // the block may be delivered before the orderer response
+        commitFuture.whenComplete(
+                (commit, e) -> {
+                    if (e != null) {
+                        future.completeExceptionally(e);
+                        return;
                     }
 
-                    logger.error(emsg);
-                    lException = new Exception(emsg, e);
-                }
-            }
+                    if (ordered.get() > 0) {
+                        requestTimeouts.record(
+                                RequestTimeouts.Stage.COMMIT,
+                                System.currentTimeMillis() - ordered.get());
+                    }
+                    future.complete(commit);
+                });
+        return future;
+    }
 
-            if (success) {
-                logger.debug(
-                        format(
-                                "Channel %s successful sent to Orderer transaction id: %s",
-                                name, proposalTransactionID));
+    // Send the envelope to the orderers one by one until one of them accepts it
+    private CompletableFuture<Ab.BroadcastResponse> broadcast(
+            Common.Envelope transactionEnvelope,
+            String proposalTransactionID,
+            List<Orderer> orderers,
+            int index,
+            Exception lastException) {
+        final String name = channel.getName();
+        if (index >= orderers.size()) {
+            String emsg =
+                    format(
+                            "Channel %s failed to place transaction %s on Orderer. Cause: UNSUCCESSFUL.",
+                            name, proposalTransactionID);
+            CompletableFuture<Ab.BroadcastResponse> failed = new CompletableFuture<>();
+            failed.completeExceptionally(
+                    lastException != null
+                            ? new Exception(emsg, lastException)
+                            : new Exception(emsg));
+            return failed;
+        }
 
-                // sret.complete(null); // just say we're done.
+        Orderer orderer = orderers.get(index);
+        if (index > 0) {
+            logger.warn(
+                    "Channel {}  {} failed. Now trying {}.",
+                    name,
+                    orderers.get(index - 1),
+                    orderer);
+        }
 
-                return sret;
-            } else {
+        long start = System.currentTimeMillis();
+        ordererSelector.onSend(orderer.getUrl());
+        return getBroadcastStream(orderer)
+                .send(transactionEnvelope)
+                .handle(
+                        (resp, e) -> {
+                            if (e == null && resp.getStatus() == Common.Status.SUCCESS) {
+                                ordererSelector.onSuccess(
+                                        orderer.getUrl(), System.currentTimeMillis() - start);
+                                return CompletableFuture.completedFuture(resp);
+                            }
 
-                String emsg =
-                        format(
-                                "Channel %s failed to place transaction %s on Orderer. Cause: UNSUCCESSFUL. %s",
-                                name, proposalTransactionID, dumpRespData(resp));
+                            // a rejected envelope is not a failure of the orderer
+                            if (e != null || resp.getStatusValue() >= 500) {
+                                ordererSelector.onFailure(orderer.getUrl());
+                            } else {
+                                ordererSelector.onSuccess(
+                                        orderer.getUrl(), System.currentTimeMillis() - start);
+                            }
 
-                CompletableFuture<BlockEvent.TransactionEvent> ret = new CompletableFuture<>();
-                ret.completeExceptionally(
-                        lException != null ? new Exception(emsg, lException) : new Exception(emsg));
-                return ret;
-            }
-        } catch (Exception e) {
+                            String emsg =
+                                    e == null
+                                            ? format(
+                                                    "Channel %s %s failed. Status returned %s",
+                                                    name, orderer, dumpRespData(resp))
+                                            : format(
+                                                    "Channel %s unsuccessful sendTransaction to orderer %s (%s)",
+                                                    name, orderer.getName(), orderer.getUrl());
+                            logger.error(emsg);
+                            return broadcast(
+                                    transactionEnvelope,
+                                    proposalTransactionID,
+                                    orderers,
+                                    index + 1,
+                                    e == null ? new Exception(emsg) : new Exception(emsg, e));
+                        })
+                .thenCompose(next -> next);
+    }
 
-            CompletableFuture<BlockEvent.TransactionEvent> future = new CompletableFuture<>();
-            future.completeExceptionally(e);
-            return future;
+    private BroadcastStream getBroadcastStream(Orderer orderer) {
+        BroadcastStream broadcastStream =
+                broadcastStreams.computeIfAbsent(
+                        orderer.getUrl(),
+                        url ->
+                                new BroadcastStream(
+                                        url,
+                                        () -> fabricInnerFunction.newOrdererManagedChannel(orderer),
+                                        getOrdererWaitTime(orderer)));
+        if (closed) {
+            broadcastStream.close(); // created while shutting down
         }
+        return broadcastStream;
     }
 
-    private CompletableFuture<BlockEvent.TransactionEvent> createTransactionEvent(
-            String proposalTransactionID) {
+    private long getOrdererWaitTime(Orderer orderer) {
+        String waitTime = orderer.getProperties().getProperty("ordererWaitTimeMilliSecs");
         try {
-            String name = channel.getName();
-            Channel.NOfEvents nOfEvents = Channel.NOfEvents.createNofEvents();
-            Collection<Peer> eventingPeers =
-                    channel.getPeers(EnumSet.of(Peer.PeerRole.EVENT_SOURCE));
-            boolean anyAdded = false;
-            if (!eventingPeers.isEmpty()) {
-                anyAdded = true;
-                nOfEvents.addPeers(eventingPeers);
-            }
-            //            Collection<EventHub> eventHubs = channel.getEventHubs();
-            //        if (!eventHubs.isEmpty()) {
-            //                anyAdded = true;
-            //                nOfEvents.addEventHubs(channel.getEventHubs());
-            //            }
-
-            if (!anyAdded) {
-                nOfEvents = Channel.NOfEvents.createNoEvents();
-            }
-
-            final boolean replyonly =
-                    nOfEvents == Channel.NOfEvents.nofNoEvents
-                            || (channel.getPeers(EnumSet.of(Peer.PeerRole.EVENT_SOURCE)).isEmpty());
-            // channel.getEventHubs().isEmpty()
-            //                                    &&
-
-            CompletableFuture<BlockEvent.TransactionEvent> sret;
-
-            if (replyonly) { // If there are no eventhubs to complete the future, complete it
-                // immediately but give no transaction event
-                logger.debug(
-                        "Completing transaction id {} immediately no event hubs or peer eventing services found in channel {}.",
-                        proposalTransactionID,
-                        name);
-                sret = new CompletableFuture<>();
-            } else {
-                sret =
-                        fabricInnerFunction.registerTxListener(
-                                proposalTransactionID, nOfEvents, true);
-            }
-
-            return sret;
-        } catch (Exception e) {
-
-            CompletableFuture<BlockEvent.TransactionEvent> future = new CompletableFuture<>();
-            future.completeExceptionally(e);
-            return future;
+            return waitTime == null ? BroadcastStream.DEFAULT_TIMEOUT : Long.parseLong(waitTime);
+        } catch (NumberFormatException e) {
+            logger.warn("Illegal ordererWaitTimeMilliSecs of {}: {}", orderer.getUrl(), waitTime);
+            return BroadcastStream.DEFAULT_TIMEOUT;
         }
     }
 
@@ -765,15 +1457,162 @@ public class FabricConnection implements Connection {
     public Collection<ProposalResponse> queryEndorser(byte[] data, Collection<Peer> endorsers)
             throws Exception {
         ProposalPackage.SignedProposal sp = ProposalPackage.SignedProposal.parseFrom(data);
-        TransactionContext transactionContext = getTransactionContext(sp);
+        TransactionContext transactionContext =
+                getTransactionContext(sp, FabricStubConfigParser.DEFAULT_PROPOSAL_WAIT_TIME);
 
         Collection<ProposalResponse> endorserResponses =
                 fabricInnerFunction.sendProposalToPeers(endorsers, sp, transactionContext);
         return endorserResponses;
     }
 
-    private TransactionContext getTransactionContext(ProposalPackage.SignedProposal signedProposal)
+    // The endorsers are waited for the remaining time of the deadline, or until enough of them
+    // succeed
+    private Collection<ProposalResponse> queryEndorser(
+            byte[] data,
+            Collection<Peer> endorsers,
+            Deadline deadline,
+            Predicate<List<ProposalResponse>> isEnough)
             throws Exception {
+        ProposalPackage.SignedProposal sp = ProposalPackage.SignedProposal.parseFrom(data);
+        TransactionContext transactionContext = getTransactionContext(sp, deadline.remaining());
+
+        long start = System.currentTimeMillis();
+        Collection<ProposalResponse> endorserResponses =
+                proposalFanOut == null || endorsers.size() <= 1
+                        ? sendProposalToPeers(endorsers, sp, transactionContext)
+                        : proposalFanOut.send(
+                                endorsers,
+                                Peer::getName,
+                                peer -> sendProposalToPeer(peer, sp, transactionContext),
+                                proposalResponse ->
+                                        proposalResponse.getStatus()
+                                                == ChaincodeResponse.Status.SUCCESS,
+                                isEnough,
+                                deadline.remaining());
+        requestTimeouts.record(RequestTimeouts.Stage.ENDORSE, System.currentTimeMillis() - start);
+        return endorserResponses;
+    }
+
+    // Send the proposal and count it in the load of the endorsers
+    private Collection<ProposalResponse> sendProposalToPeers(
+            Collection<Peer> endorsers,
+            ProposalPackage.SignedProposal sp,
+            TransactionContext transactionContext)
+            throws Exception {
+        for (Peer endorser : endorsers) {
+            getPeerLoad(endorser).incrementAndGet();
+        }
+        try {
+            return fabricInnerFunction.sendProposalToPeers(endorsers, sp, transactionContext);
+        } finally {
+            for (Peer endorser : endorsers) {
+                getPeerLoad(endorser).decrementAndGet();
+            }
+        }
+    }
+
+    private ProposalResponse sendProposalToPeer(
+            Peer peer, ProposalPackage.SignedProposal sp, TransactionContext transactionContext)
+            throws Exception {
+        return sendProposalToPeers(Collections.singletonList(peer), sp, transactionContext)
+                .iterator()
+                .next();
+    }
+
+    // Endorsed by the quorum of orgs if configured, or satisfies the policy of the transaction
+    private boolean isEnoughEndorsed(
+            List<ProposalResponse> successResponses,
+            EndorsementPolicy endorsementPolicy,
+            Set<String> orgs) {
+        Map<String, Integer> endorsements = new HashMap<>(); // distinct endorsers of each org
+        Set<String> endorsers = new HashSet<>();
+        for (ProposalResponse response : successResponses) {
+            if (endorsers.add(response.getPeer().getName())) {
+                endorsements.merge(getMspID(response.getPeer()), 1, Integer::sum);
+            }
+        }
+
+        if (endorsementQuorum > 0) {
+            return endorsements.size() >= endorsementQuorum;
+        }
+        if (endorsementPolicy != null) {
+            return endorsementPolicy.isSatisfiedBy(endorsements, orgs);
+        }
+        return endorsements.keySet().containsAll(orgs); // unknown policy, one of each org
+    }
+
+    private static String getMspID(Peer peer) {
+        return peer.getProperties().getProperty(FabricType.ORG_MSP_DEF);
+    }
+
+    /** The executor of the proposals sent in parallel, shut down with the connection */
+    public void setProposalThreadPool(ThreadPoolTaskExecutor proposalThreadPool) {
+        this.proposalThreadPool = proposalThreadPool;
+    }
+
+    public void setProposalFanOut(ProposalFanOut proposalFanOut, int endorsementQuorum) {
+        this.proposalFanOut = proposalFanOut;
+        this.endorsementQuorum = endorsementQuorum;
+    }
+
+    public ProposalFanOut getProposalFanOut() {
+        return proposalFanOut;
+    }
+
+    private AtomicInteger getPeerLoad(Peer peer) {
+        return peerLoads.computeIfAbsent(peer.getName(), name -> new AtomicInteger(0));
+    }
+
+    // A transaction by proxy writes to the proxy chaincode too, both of the policies are checked
+    private EndorsementPolicy getTransactionPolicy(
+            TransactionParams transactionParams, EndorsementPolicy endorsementPolicy) {
+        if (!transactionParams.isByProxy()) {
+            return endorsementPolicy;
+        }
+
+        ChaincodeResource proxyResource =
+                chaincodeResourceManager.getChaincodeResource(proxyChaincodeName);
+        return EndorsementPolicy.allOf(
+                endorsementPolicy,
+                proxyResource == null ? null : proxyResource.getEndorsementPolicy());
+    }
+
+    // The fewest endorsers satisfying the policy, spread by their load
+    private Collection<Peer> selectEndorsers(
+            Collection<Peer> endorsers, EndorsementPolicy endorsementPolicy) {
+        if (!policyAwareEndorsement || endorsementPolicy == null) {
+            return endorsers;
+        }
+
+        return endorsementPolicy.select(
+                endorsers, FabricConnection::getMspID, peer -> getPeerLoad(peer).get());
+    }
+
+    public void setPolicyAwareEndorsement(boolean policyAwareEndorsement) {
+        this.policyAwareEndorsement = policyAwareEndorsement;
+    }
+
+    // Query one endorser at a time, hedged to the next one if it is slow
+    private Collection<ProposalResponse> queryOneEndorser(
+            byte[] data, Collection<Peer> endorsers, Deadline deadline) throws Exception {
+        ProposalPackage.SignedProposal sp = ProposalPackage.SignedProposal.parseFrom(data);
+        TransactionContext transactionContext = getTransactionContext(sp, deadline.remaining());
+
+        long start = System.currentTimeMillis();
+        Collection<ProposalResponse> endorserResponses =
+                hedgedQuery.query(
+                        endorsers,
+                        Peer::getName,
+                        peer -> sendProposalToPeer(peer, sp, transactionContext),
+                        proposalResponse ->
+                                proposalResponse.getStatus() == ChaincodeResponse.Status.SUCCESS,
+                        deadline.remaining());
+        requestTimeouts.record(RequestTimeouts.Stage.ENDORSE, System.currentTimeMillis() - start);
+        return endorserResponses;
+    }
+
+    private TransactionContext getTransactionContext(
+            ProposalPackage.SignedProposal signedProposal, long proposalWaitTime) throws Exception {
         User userContext = hfClient.getUserContext();
         User.userContextCheck(userContext);
 
@@ -781,7 +1620,7 @@ public class FabricConnection implements Connection {
 
         TransactionContext transactionContext =
                 new TransactionContextMask(txID, channel, userContext, hfClient.getCryptoSuite());
-        transactionContext.setProposalWaitTime(FabricStubConfigParser.DEFAULT_PROPOSAL_WAIT_TIME);
+        transactionContext.setProposalWaitTime(proposalWaitTime);
 
         return transactionContext;
     }
@@ -810,6 +1649,22 @@ public class FabricConnection implements Connection {
         return txID;
     }
 
+    // The hash of the serialized identity which signed the proposal
+    private String recoverSigner(ProposalPackage.SignedProposal signedProposal) throws Exception {
+        ProposalPackage.Proposal proposal =
+                ProposalPackage.Proposal.parseFrom(signedProposal.getProposalBytes());
+
+        Common.Header header = Common.Header.parseFrom(proposal.getHeader());
+
+        Common.SignatureHeader signatureHeader =
+                Common.SignatureHeader.parseFrom(header.getSignatureHeader());
+
+        byte[] hash =
+                CryptoSuite.Factory.getCryptoSuite()
+                        .hash(signatureHeader.getCreator().toByteArray());
+        return new String(Utils.toHexString(hash));
+    }
+
     private Response handleInstantiateChaincodeProposal(Request request) {
         FabricConnectionResponse response;
         try {
@@ -852,7 +1707,7 @@ public class FabricConnection implements Connection {
                 response =
                         FabricConnectionResponse.build()
                                 .errorCode(FabricType.TransactionResponseStatus.SUCCESS)
-                                .errorMessage(analyzer.info())
+                                .errorMessage(analyzer.summary())
                                 .data(analyzer.getPayload());
             } else {
                 response =
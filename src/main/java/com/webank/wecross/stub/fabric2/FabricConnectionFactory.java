@@ -2,12 +2,22 @@ package com.webank.wecross.stub.fabric2;
 
 import com.webank.wecross.stub.StubConstant;
 import com.webank.wecross.stub.fabric2.account.FabricAccountFactory;
+import com.webank.wecross.stub.fabric2.block.BlockStore;
+import com.webank.wecross.stub.fabric2.block.RecentBlockCache;
+import com.webank.wecross.stub.fabric2.block.TxIndex;
 import com.webank.wecross.stub.fabric2.common.FabricType;
+import com.webank.wecross.stub.fabric2.endorser.HedgedQuery;
+import com.webank.wecross.stub.fabric2.endorser.ProposalFanOut;
+import com.webank.wecross.stub.fabric2.endorser.QueryResultCache;
+import com.webank.wecross.stub.fabric2.timeout.RequestTimeouts;
+import com.webank.wecross.stub.fabric2.utils.FabricUtils;
 import java.io.File;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadPoolExecutor;
 import org.hyperledger.fabric.sdk.Channel;
 import org.hyperledger.fabric.sdk.HFClient;
 import org.hyperledger.fabric.sdk.Orderer;
@@ -21,6 +31,7 @@ import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 
 public class FabricConnectionFactory {
     private static Logger logger = LoggerFactory.getLogger(FabricConnectionFactory.class);
+    private static final int BLOCK_STORE_QUEUE_CAPACITY = 1024; // blocks waiting to be stored
 
     /**
      * @Description: 构建fabric链接
@@ -31,28 +42,52 @@ public class FabricConnectionFactory {
      */
     public static FabricConnection build(String path) {
         String stubPath = path;
+        FabricConnection fabricConnection = null;
         try {
             FabricStubConfigParser configFile = new FabricStubConfigParser(stubPath);
             HFClient hfClient = buildClient(configFile);
             Map<String, Peer> peersMap = buildPeersMap(hfClient, configFile);
             Channel channel = buildChannel(hfClient, peersMap, configFile);
-            ThreadPoolTaskExecutor threadPool = buildThreadPool(configFile);
+            fabricConnection = buildConnection(hfClient, channel, peersMap, configFile);
 
-            return new FabricConnection(
-                    hfClient, channel, peersMap, StubConstant.PROXY_NAME, threadPool);
+            FabricStubConfigParser.Advanced.BlockStore blockStore =
+                    configFile.getAdvanced().getBlockStore();
+            if (blockStore.isEnable()) {
+                String blockStorePath =
+                        FabricUtils.getPath(stubPath)
+                                + File.separator
+                                + blockStore.getPath()
+                                + File.separator
+                                + channel.getName();
+                fabricConnection.setBlockStore(
+                        BlockStore.open(
+                                blockStorePath, blockStore.getSegmentSizeMB() * 1024L * 1024L));
+
+                FabricStubConfigParser.Advanced.TxIndex txIndex =
+                        configFile.getAdvanced().getTxIndex();
+                if (txIndex.isEnable()) {
+                    // persisted next to the blocks it points to
+                    fabricConnection.setTxIndex(
+                            TxIndex.open(blockStorePath, txIndex.getMaxEntries()));
+                }
+            }
+            return fabricConnection;
 
         } catch (Exception e) {
             Logger logger = LoggerFactory.getLogger(FabricConnectionFactory.class);
             logger.error("FabricConnection build exception: " + e);
+            if (fabricConnection != null) {
+                fabricConnection.shutdown();
+            }
             return null;
         }
     }
 
     public static Map<String, FabricConnection> buildOrgConnections(String path) {
         String stubPath = path;
+        Map<String, FabricConnection> orgConnections = new HashMap<>();
         try {
             FabricStubConfigParser configFile = new FabricStubConfigParser(stubPath);
-            Map<String, FabricConnection> orgConnections = new HashMap<>();
             for (Map.Entry<String, FabricStubConfigParser.Orgs.Org> orgEntry :
                     configFile.getOrgs().entrySet()) {
 
@@ -60,10 +95,8 @@ public class FabricConnectionFactory {
                 Map<String, Peer> peersMap =
                         buildOrgPeersMap(hfClient, orgEntry.getKey(), orgEntry.getValue());
                 Channel channel = buildChannel(hfClient, peersMap, configFile);
-                ThreadPoolTaskExecutor threadPool = buildThreadPool(configFile);
                 FabricConnection fabricConnection =
-                        new FabricConnection(
-                                hfClient, channel, peersMap, StubConstant.PROXY_NAME, threadPool);
+                        buildConnection(hfClient, channel, peersMap, configFile);
                 orgConnections.put(orgEntry.getKey(), fabricConnection);
             }
 
@@ -72,27 +105,161 @@ public class FabricConnectionFactory {
         } catch (Exception e) {
             Logger logger = LoggerFactory.getLogger(FabricConnectionFactory.class);
             logger.error("FabricConnection build exception: " + e);
+            for (FabricConnection fabricConnection : orgConnections.values()) {
+                fabricConnection.shutdown();
+            }
             return null;
         }
     }
 
-    private static ThreadPoolTaskExecutor buildThreadPool(FabricStubConfigParser configFile) {
+    private static FabricConnection buildConnection(
+            HFClient hfClient,
+            Channel channel,
+            Map<String, Peer> peersMap,
+            FabricStubConfigParser configFile) {
+        ThreadPoolTaskExecutor threadPool =
+                buildThreadPool(configFile.getAdvanced().getThreadPool(), "FabricConnection-");
+        FabricConnection fabricConnection =
+                new FabricConnection(
+                        hfClient, channel, peersMap, StubConstant.PROXY_NAME, threadPool);
+        fabricConnection.setQueryThreadPool(
+                buildThreadPool(configFile.getAdvanced().getQueryThreadPool(), "FabricQuery-"));
+
+        FabricStubConfigParser.Advanced.BlockVerifier blockVerifier =
+                configFile.getAdvanced().getBlockVerifier();
+        if (blockVerifier.isParallel()) {
+            fabricConnection.setBlockVerifyPool(
+                    new ForkJoinPool(blockVerifier.getThreads()),
+                    blockVerifier.getParallelThreshold());
+            logger.info(
+                    "Init block verify pool with threads:{}, parallelThreshold:{}",
+                    blockVerifier.getThreads(),
+                    blockVerifier.getParallelThreshold());
+        }
+
+        FabricStubConfigParser.Advanced.BlockCache blockCache =
+                configFile.getAdvanced().getBlockCache();
+        fabricConnection.setRecentBlockCache(
+                new RecentBlockCache(
+                        blockCache.getMaxBlocks(), blockCache.getMaxMemoryMB() * 1024L * 1024L));
+
+        FabricStubConfigParser.Advanced.EndorserSelection endorserSelection =
+                configFile.getAdvanced().getEndorserSelection();
+        fabricConnection.setPolicyAwareEndorsement(endorserSelection.isPolicyAware());
+        FabricStubConfigParser.Advanced.Call call = configFile.getAdvanced().getCall();
+        ThreadPoolTaskExecutor proposalThreadPool = null;
+        if (endorserSelection.isEarlyReturn() || call.isHedged()) {
+            // not the connection pools: their threads wait for the proposals
+            proposalThreadPool = buildProposalThreadPool(configFile.getAdvanced().getThreadPool());
+            fabricConnection.setProposalThreadPool(proposalThreadPool);
+        }
+        if (endorserSelection.isEarlyReturn()) {
+            fabricConnection.setProposalFanOut(
+                    new ProposalFanOut(proposalThreadPool), endorserSelection.getQuorum());
+        }
+        if (call.isHedged()) {
+            fabricConnection.setHedgedQuery(
+                    new HedgedQuery(proposalThreadPool, call.getHedgePercentile() / 100.0));
+        }
+
+        FabricStubConfigParser.Advanced.CallCache callCache =
+                configFile.getAdvanced().getCallCache();
+        if (!callCache.getResources().isEmpty()) {
+            fabricConnection.setQueryResultCache(
+                    new QueryResultCache(
+                            callCache.getResources(),
+                            callCache.getMaxEntries(),
+                            callCache.getMaxMemoryMB() * 1024L * 1024L,
+                            callCache.getMaxStaleBlocks(),
+                            callCache.getMaxStaleSeconds() * 1000L));
+        }
+
+        fabricConnection
+                .getOrdererSelector()
+                .setStrategy(configFile.getAdvanced().getOrdererSelection().getStrategy());
+
+        FabricStubConfigParser.Advanced.Timeout timeout = configFile.getAdvanced().getTimeout();
+        fabricConnection.setRequestTimeouts(
+                new RequestTimeouts(
+                        timeout.getDefaultTimeout(),
+                        timeout.getResourceTimeouts(),
+                        timeout.isAdaptive()));
+
+        FabricStubConfigParser.Advanced.TxIndex txIndex = configFile.getAdvanced().getTxIndex();
+        if (txIndex.isEnable() && !configFile.getAdvanced().getBlockStore().isEnable()) {
+            // in memory, else it is persisted with the block store
+            fabricConnection.setTxIndex(new TxIndex(txIndex.getMaxEntries()));
+        }
+        if (txIndex.isEnable() || configFile.getAdvanced().getBlockStore().isEnable()) {
+            // one thread keeps the blocks in order, the event thread waits only if it is behind
+            ThreadPoolTaskExecutor blockStoreThreadPool = new ThreadPoolTaskExecutor();
+            blockStoreThreadPool.setCorePoolSize(1);
+            blockStoreThreadPool.setMaxPoolSize(1);
+            blockStoreThreadPool.setQueueCapacity(BLOCK_STORE_QUEUE_CAPACITY);
+            blockStoreThreadPool.setRejectedExecutionHandler(
+                    new ThreadPoolExecutor.CallerRunsPolicy());
+            blockStoreThreadPool.setThreadNamePrefix("FabricBlockStore-");
+            blockStoreThreadPool.initialize();
+            fabricConnection.setBlockStoreThreadPool(blockStoreThreadPool);
+        }
+
+        FabricStubConfigParser.Advanced.BlockPrefetch blockPrefetch =
+                configFile.getAdvanced().getBlockPrefetch();
+        if (blockPrefetch.isEnable()) {
+            ThreadPoolTaskExecutor prefetchThreadPool = new ThreadPoolTaskExecutor();
+            prefetchThreadPool.setCorePoolSize(blockPrefetch.getThreads());
+            prefetchThreadPool.setMaxPoolSize(blockPrefetch.getThreads());
+            prefetchThreadPool.setQueueCapacity(blockPrefetch.getWindow() * 2);
+            prefetchThreadPool.setThreadNamePrefix("FabricPrefetch-");
+            prefetchThreadPool.initialize();
+            fabricConnection.enableBlockPrefetch(
+                    prefetchThreadPool,
+                    blockPrefetch.getWindow(),
+                    blockPrefetch.getMaxMemoryMB() * 1024L * 1024L,
+                    blockPrefetch.isVerify());
+            logger.info(
+                    "Init block prefetch with window:{}, threads:{}, maxMemoryMB:{}, verify:{}",
+                    blockPrefetch.getWindow(),
+                    blockPrefetch.getThreads(),
+                    blockPrefetch.getMaxMemoryMB(),
+                    blockPrefetch.isVerify());
+        }
+        return fabricConnection;
+    }
+
+    private static ThreadPoolTaskExecutor buildThreadPool(
+            FabricStubConfigParser.Advanced.ThreadPool config, String threadNamePrefix) {
         ThreadPoolTaskExecutor threadPool = new ThreadPoolTaskExecutor();
-        int corePoolSize = configFile.getAdvanced().getThreadPool().getCorePoolSize();
-        int maxPoolSize = configFile.getAdvanced().getThreadPool().getMaxPoolSize();
-        int queueCapacity = configFile.getAdvanced().getThreadPool().getQueueCapacity();
+        int corePoolSize = config.getCorePoolSize();
+        int maxPoolSize = config.getMaxPoolSize();
+        int queueCapacity = config.getQueueCapacity();
         threadPool.setCorePoolSize(corePoolSize);
         threadPool.setMaxPoolSize(maxPoolSize);
         threadPool.setQueueCapacity(queueCapacity);
-        threadPool.setThreadNamePrefix("FabricConnection-");
+        threadPool.setThreadNamePrefix(threadNamePrefix);
         logger.info(
-                "Init threadPool with corePoolSize:{}, maxPoolSize:{}, queueCapacity:{}",
+                "Init {}threadPool with corePoolSize:{}, maxPoolSize:{}, queueCapacity:{}",
+                threadNamePrefix,
                 corePoolSize,
                 maxPoolSize,
                 queueCapacity);
         return threadPool;
     }
 
+    // Sends single proposals only, the tasks never wait for the pool itself. The queue is unbounded
+    // and the idle threads time out.
+    private static ThreadPoolTaskExecutor buildProposalThreadPool(
+            FabricStubConfigParser.Advanced.ThreadPool config) {
+        ThreadPoolTaskExecutor proposalThreadPool = new ThreadPoolTaskExecutor();
+        proposalThreadPool.setCorePoolSize(config.getMaxPoolSize());
+        proposalThreadPool.setMaxPoolSize(config.getMaxPoolSize());
+        proposalThreadPool.setAllowCoreThreadTimeOut(true);
+        proposalThreadPool.setThreadNamePrefix("FabricProposal-");
+        proposalThreadPool.initialize();
+        logger.info("Init FabricProposal-threadPool with poolSize:{}", config.getMaxPoolSize());
+        return proposalThreadPool;
+    }
+
     public static HFClient buildClient(FabricStubConfigParser fabricStubConfigParser)
             throws Exception {
         HFClient hfClient = HFClient.createNewInstance();
@@ -192,9 +359,16 @@ public class FabricConnectionFactory {
                 FabricAccountFactory.getMspID(
                         orgUserName, "classpath:accounts" + File.separator + orgUserName);
 
-        Orderer orderer = buildOrderer(client, fabricStubConfigParser, mspID);
-
-        channel.addOrderer(orderer);
+        for (Map.Entry<String, FabricStubConfigParser.Orderers.Orderer> entry :
+                fabricStubConfigParser.getOrderers().entrySet()) {
+            channel.addOrderer(
+                    buildOrderer(
+                            client,
+                            entry.getKey(),
+                            entry.getValue(),
+                            fabricStubConfigParser,
+                            mspID));
+        }
 
         for (Peer peer : peersMap.values()) {
             channel.addPeer(peer);
@@ -205,27 +379,28 @@ public class FabricConnectionFactory {
     }
 
     public static Orderer buildOrderer(
-            HFClient client, FabricStubConfigParser fabricStubConfigParser, String mspID)
+            HFClient client,
+            String name,
+            FabricStubConfigParser.Orderers.Orderer ordererConfig,
+            FabricStubConfigParser fabricStubConfigParser,
+            String mspID)
             throws InvalidArgumentException {
         Properties orderer1Prop = new Properties();
-        orderer1Prop.setProperty(
-                "pemFile", fabricStubConfigParser.getFabricServices().getOrdererTlsCaFile());
+        orderer1Prop.setProperty("pemFile", ordererConfig.getTlsCaFile());
         // orderer1Prop.setProperty("sslProvider", "openSSL");
         orderer1Prop.setProperty("sslProvider", "JDK");
         orderer1Prop.setProperty("negotiationType", "TLS");
-        orderer1Prop.setProperty("ordererWaitTimeMilliSecs", "300000");
+        // a request never waits the orderer longer than its whole budget
         orderer1Prop.setProperty(
-                "hostnameOverride",
-                fabricStubConfigParser.getFabricServices().getHostnameOverride());
+                "ordererWaitTimeMilliSecs",
+                String.valueOf(
+                        fabricStubConfigParser.getAdvanced().getTimeout().getDefaultTimeout()));
+        orderer1Prop.setProperty("hostnameOverride", ordererConfig.getHostnameOverride());
         orderer1Prop.setProperty("trustServerCertificate", "true");
         orderer1Prop.setProperty("allowAllHostNames", "true");
         orderer1Prop.setProperty(
                 FabricType.ORG_MSP_DEF, mspID); // ORG_NAME_DEF is only used by wecross
-        Orderer orderer =
-                client.newOrderer(
-                        "orderer",
-                        fabricStubConfigParser.getFabricServices().getOrdererAddress(),
-                        orderer1Prop);
+        Orderer orderer = client.newOrderer(name, ordererConfig.getAddress(), orderer1Prop);
         return orderer;
     }
 
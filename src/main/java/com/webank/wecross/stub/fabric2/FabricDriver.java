@@ -5,6 +5,7 @@ import static com.webank.wecross.stub.fabric2.utils.FabricUtils.longToBytes;
 
 import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
+import com.webank.wecross.exception.WeCrossException;
 import com.webank.wecross.stub.*;
 import com.webank.wecross.stub.fabric2.FabricCustomCommand.ApproveChaincodeRequest;
 import com.webank.wecross.stub.fabric2.FabricCustomCommand.CommitChaincodeRequest;
@@ -17,8 +18,13 @@ import com.webank.wecross.stub.fabric2.FabricCustomCommand.UpgradeChaincodeReque
 import com.webank.wecross.stub.fabric2.FabricCustomCommand.UpgradeCommand;
 import com.webank.wecross.stub.fabric2.account.FabricAccount;
 import com.webank.wecross.stub.fabric2.account.FabricAccountFactory;
+import com.webank.wecross.stub.fabric2.block.BlockMemo;
+import com.webank.wecross.stub.fabric2.block.TxIndex;
 import com.webank.wecross.stub.fabric2.common.FabricType;
 import com.webank.wecross.stub.fabric2.proxy.ProxyChaincodeResource;
+import com.webank.wecross.stub.fabric2.timeout.Deadline;
+import com.webank.wecross.stub.fabric2.timeout.DeadlineRequest;
+import com.webank.wecross.stub.fabric2.timeout.RequestTimeouts;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -27,7 +33,6 @@ import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.tuple.ImmutablePair;
-import org.hyperledger.fabric.protos.common.Common;
 import org.hyperledger.fabric.protos.peer.lifecycle.Lifecycle;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -35,6 +40,8 @@ import org.slf4j.LoggerFactory;
 public class FabricDriver implements Driver {
     private Logger logger = LoggerFactory.getLogger(FabricDriver.class);
 
+    private BlockMemo blockMemo = new BlockMemo();
+
     public byte[] encodeTransactionRequest(
             TransactionContext transactionContext, TransactionRequest transactionRequest) {
         try {
@@ -298,14 +305,18 @@ public class FabricDriver implements Driver {
             endorserRequest.setType(FabricType.ConnectionMessage.FABRIC_SENDTRANSACTION_ENDORSER);
             endorserRequest.setResourceInfo(transactionContext.getResourceInfo());
 
+            // one deadline for endorsing, ordering and committing
+            Deadline deadline =
+                    newTransactionDeadline(connection, transactionContext.getResourceInfo());
             connection.asyncSend(
-                    endorserRequest,
+                    DeadlineRequest.withDeadline(endorserRequest, deadline),
                     endorserResponse ->
                             asyncSendTransactionHandleEndorserResponse(
                                     transactionContext,
                                     data,
                                     endorserResponse,
                                     connection,
+                                    deadline,
                                     callback));
 
         } catch (Exception e) {
@@ -343,14 +354,18 @@ public class FabricDriver implements Driver {
             endorserRequest.setType(FabricType.ConnectionMessage.FABRIC_SENDTRANSACTION_ENDORSER);
             endorserRequest.setResourceInfo(transactionContext.getResourceInfo());
 
+            // one deadline for endorsing, ordering and committing
+            Deadline deadline =
+                    newTransactionDeadline(connection, transactionContext.getResourceInfo());
             connection.asyncSend(
-                    endorserRequest,
+                    DeadlineRequest.withDeadline(endorserRequest, deadline),
                     endorserResponse ->
                             asyncSendTransactionHandleEndorserResponse(
                                     transactionContext,
                                     data,
                                     endorserResponse,
                                     connection,
+                                    deadline,
                                     callback));
 
         } catch (Exception e) {
@@ -394,25 +409,55 @@ public class FabricDriver implements Driver {
         Request request = new Request();
         request.setType(FabricType.ConnectionMessage.FABRIC_GET_BLOCK);
         request.setData(numberBytes);
-        String blockVerifierString = connection.getProperties().get(FabricType.FABRIC_VERIFIER);
         connection.asyncSend(
                 request,
                 response -> {
                     if (response.getErrorCode() == FabricType.TransactionResponseStatus.SUCCESS) {
                         Block block = new Block();
-                        block.setRawBytes(response.getData());
+
+                        BlockVerifierContext verifierContext;
+                        try {
+                            verifierContext = getBlockVerifierContext(connection);
+                        } catch (WeCrossException e) {
+                            String errorMsg =
+                                    "Block verifier config error, errorCode: "
+                                            + e.getErrorCode()
+                                            + ", error: "
+                                            + e.getMessage();
+                            logger.error(errorMsg);
+                            callback.onResponse(
+                                    new Exception(
+                                            "block " + blockNumber + " verify failed: " + errorMsg),
+                                    null);
+                            return;
+                        }
+
+                        if (onlyHeader) {
+                            handleBlockHeaderResponse(
+                                    blockNumber,
+                                    response.getData(),
+                                    block,
+                                    connection,
+                                    verifierContext,
+                                    callback);
+                            return;
+                        }
 
                         FabricBlock fabricBlock = null;
                         try {
-                            fabricBlock = FabricBlock.encode(response.getData());
-                            if (blockVerifierString != null) {
+                            BlockMemo.Entry memo =
+                                    blockMemo.getOrParse(blockNumber, null, response.getData());
+                            fabricBlock = memo.getFabricBlock();
+                            // the bytes which are parsed and verified
+                            block.setRawBytes(memo.getBlockBytes());
+                            if (verifierContext != null && !memo.isVerified(verifierContext)) {
                                 if (logger.isDebugEnabled()) {
                                     logger.debug(
                                             "asyncGetBlock: blockVerifierString is not null, enable verify Fabric block, "
                                                     + "blockVerifierString is {}",
-                                            blockVerifierString);
+                                            verifierContext.getVerifierString());
                                 }
-                                if (!fabricBlock.verify(blockVerifierString)) {
+                                if (!verifyBlock(connection, fabricBlock, verifierContext)) {
 
                                     logger.error(
                                             "block {} verify failed: {}",
@@ -428,48 +473,41 @@ public class FabricDriver implements Driver {
                                             null);
                                     return;
                                 }
+                                memo.markVerified(verifierContext);
                             }
 
-                            if (!onlyHeader) {
-                                Common.Block b = Common.Block.parseFrom(response.getData());
-                                List<ByteString> dataList = b.getData().getDataList();
-                                for (ByteString data : dataList) {
-                                    try {
-                                        Common.Envelope envelope = Common.Envelope.parseFrom(data);
-                                        String payload = envelope.toString();
-                                        int from = payload.indexOf("-----BEGIN CERTIFICATE-----");
-                                        int end = payload.indexOf("-----END CERTIFICATE-----");
-                                        String identity =
-                                                payload.substring(from, end)
-                                                        + "-----END CERTIFICATE-----\n";
-                                        FabricTransaction fabricTransaction =
-                                                FabricTransaction.buildFromEnvelopeBytes(
-                                                        envelope.toByteArray());
-                                        if (StringUtils.isBlank(fabricTransaction.getTxID())) {
-                                            continue;
-                                        }
-                                        Transaction transaction =
-                                                parseFabricTransaction(fabricTransaction);
-                                        transaction
-                                                .getTransactionResponse()
-                                                .setErrorCode(
-                                                        FabricType.TransactionResponseStatus
-                                                                .SUCCESS);
-                                        transaction.setAccountIdentity(identity);
-                                        transaction
-                                                .getTransactionResponse()
-                                                .setHash(fabricTransaction.getTxID());
-                                        transaction.setTxBytes(data.toByteArray());
-                                        transaction
-                                                .getTransactionResponse()
-                                                .setBlockNumber(blockNumber);
-                                        block.getTransactionsWithDetail().add(transaction);
-                                    } catch (InvalidProtocolBufferException e) {
-                                        logger.warn(
-                                                "Invalid fabric block transactions,blockNumber: {},e: {}",
-                                                blockNumber,
-                                                e.getMessage());
+                            for (FabricBlock.TxEnvelope envelope :
+                                    fabricBlock.getBlockData().getEnvelopes()) {
+                                try {
+                                    if (StringUtils.isBlank(envelope.getTxID())) {
+                                        continue;
                                     }
+                                    // every transaction of the block, in block order
+                                    block.getTransactionsHashes().add(envelope.getTxID());
+                                    FabricTransaction fabricTransaction =
+                                            envelope.getFabricTransaction();
+                                    String identity = fabricTransaction.getCreatorIdentity();
+                                    Transaction transaction =
+                                            parseFabricTransaction(fabricTransaction);
+                                    transaction
+                                            .getTransactionResponse()
+                                            .setErrorCode(
+                                                    FabricType.TransactionResponseStatus.SUCCESS);
+                                    transaction.setAccountIdentity(identity);
+                                    transaction
+                                            .getTransactionResponse()
+                                            .setHash(fabricTransaction.getTxID());
+                                    transaction.setTxBytes(
+                                            envelope.getEnvelopeBytes().toByteArray());
+                                    transaction
+                                            .getTransactionResponse()
+                                            .setBlockNumber(blockNumber);
+                                    block.getTransactionsWithDetail().add(transaction);
+                                } catch (InvalidProtocolBufferException e) {
+                                    logger.warn(
+                                            "Invalid fabric block transactions,blockNumber: {},e: {}",
+                                            blockNumber,
+                                            e.getMessage());
                                 }
                             }
                             block.setBlockHeader(fabricBlock.dumpWeCrossHeader());
@@ -513,11 +551,7 @@ public class FabricDriver implements Driver {
                                     FabricTransaction.buildFromEnvelopeBytes(response.getData());
 
                             String txID = fabricTransaction.getTxID();
-                            String payload = new String(response.getData(), "UTF-8");
-                            int from = payload.indexOf("-----BEGIN CERTIFICATE-----");
-                            int end = payload.indexOf("-----END CERTIFICATE-----");
-                            String identity =
-                                    payload.substring(from, end) + "-----END CERTIFICATE-----\n";
+                            String identity = fabricTransaction.getCreatorIdentity();
 
                             if (!transactionHash.equals(txID)) {
                                 throw new Exception(
@@ -540,6 +574,7 @@ public class FabricDriver implements Driver {
                                         txID,
                                         blockNumber,
                                         blockManager,
+                                        connection,
                                         hasOnChain -> {
                                             if (!hasOnChain.booleanValue()) {
                                                 callback.onResponse(
@@ -572,6 +607,22 @@ public class FabricDriver implements Driver {
             Response endorserResponse,
             Connection connection,
             Driver.Callback callback) {
+        asyncSendTransactionHandleEndorserResponse(
+                transactionContext,
+                envelopeRequestData,
+                endorserResponse,
+                connection,
+                null,
+                callback);
+    }
+
+    private void asyncSendTransactionHandleEndorserResponse(
+            TransactionContext transactionContext,
+            byte[] envelopeRequestData,
+            Response endorserResponse,
+            Connection connection,
+            Deadline deadline,
+            Driver.Callback callback) {
         if (endorserResponse.getErrorCode() != FabricType.TransactionResponseStatus.SUCCESS) {
             TransactionResponse response = new TransactionResponse();
             TransactionException transactionException =
@@ -589,13 +640,14 @@ public class FabricDriver implements Driver {
                 ordererRequest.setResourceInfo(transactionContext.getResourceInfo());
 
                 connection.asyncSend(
-                        ordererRequest,
+                        DeadlineRequest.withDeadline(ordererRequest, deadline),
                         ordererResponse ->
                                 asyncSendTransactionHandleOrdererResponse(
                                         transactionContext,
                                         envelopeRequestData,
                                         ordererPayloadToSign,
                                         ordererResponse,
+                                        connection,
                                         callback));
 
             } catch (Exception e) {
@@ -614,6 +666,7 @@ public class FabricDriver implements Driver {
             byte[] envelopeRequestData,
             byte[] ordererPayloadToSign,
             Response ordererResponse,
+            Connection connection,
             Driver.Callback callback) {
         try {
             if (ordererResponse.getErrorCode() == FabricType.TransactionResponseStatus.SUCCESS) {
@@ -625,6 +678,7 @@ public class FabricDriver implements Driver {
                         txID,
                         txBlockNumber,
                         transactionContext.getBlockManager(),
+                        connection,
                         verifyResult -> {
                             TransactionResponse response = new TransactionResponse();
                             TransactionException transactionException = null;
@@ -1250,35 +1304,150 @@ public class FabricDriver implements Driver {
         }
     }
 
+    // Header only: the transactions are neither decoded nor verified, so no raw bytes are returned
+    private void handleBlockHeaderResponse(
+            long blockNumber,
+            byte[] blockBytes,
+            Block block,
+            Connection connection,
+            BlockVerifierContext verifierContext,
+            GetBlockCallback callback) {
+        try {
+            FabricBlockHeader blockHeader = FabricBlockHeader.decode(blockBytes);
+            if (verifierContext != null
+                    && !verifyBlockHeader(connection, blockHeader, verifierContext)) {
+                logger.error("block header {} verify failed", blockHeader.getNumber());
+                callback.onResponse(
+                        new Exception("block " + blockHeader.getNumber() + " verify failed"), null);
+                return;
+            }
+
+            block.setBlockHeader(blockHeader.dumpWeCrossHeader());
+            callback.onResponse(null, block);
+        } catch (Exception e) {
+            logger.warn("Invalid fabric block {} format, e: ", blockNumber, e);
+            callback.onResponse(new Exception("Invalid fabric block format: " + e), null);
+        }
+    }
+
     private void asyncVerifyTransactionOnChain(
             String txID,
             long blockNumber,
             BlockManager blockHeaderManager,
+            Connection connection,
             Consumer<Boolean> callback) {
+        TxIndex txIndex =
+                connection instanceof FabricConnection
+                        ? ((FabricConnection) connection).getTxIndex()
+                        : null;
+        long entry = txIndex == null ? TxIndex.NOT_FOUND : txIndex.get(txID);
+        if (entry != TxIndex.NOT_FOUND && TxIndex.isValidated(entry)) {
+            boolean verifyResult =
+                    TxIndex.getBlockNumber(entry) == blockNumber && TxIndex.isValid(entry);
+            logger.debug(
+                    "Tx(block: {}): {} verify by tx index: {}", blockNumber, txID, verifyResult);
+            callback.accept(verifyResult);
+            return;
+        }
+
         logger.debug("To verify transaction, waiting fabric block syncing ...");
         blockHeaderManager.asyncGetBlock(
                 blockNumber,
                 (e, block) -> {
                     logger.debug("Receive block, verify transaction ...");
-                    boolean verifyResult = false;
-                    try {
-                        FabricBlock fabricBlock = FabricBlock.encode(block.getRawBytes());
-                        verifyResult = fabricBlock.hasTransaction(txID);
-                        logger.debug(
-                                "Tx(block: "
-                                        + blockNumber
-                                        + "): "
-                                        + txID
-                                        + " verify: "
-                                        + verifyResult);
-                    } catch (Exception e1) {
-                        logger.debug("Consumer accept exception: ", e1);
-                        verifyResult = false;
+                    if (e == null && block != null && block.getRawBytes() == null) {
+                        // a header only block, get the whole block
+                        asyncGetBlock(
+                                blockNumber,
+                                false,
+                                connection,
+                                (e1, fullBlock) ->
+                                        callback.accept(
+                                                e1 == null
+                                                        && hasTransaction(
+                                                                txID,
+                                                                blockNumber,
+                                                                fullBlock,
+                                                                connection)));
+                        return;
                     }
-                    callback.accept(verifyResult);
+                    callback.accept(
+                            e == null && hasTransaction(txID, blockNumber, block, connection));
                 });
     }
 
+    // Whether the block, verified if FABRIC_VERIFIER is set, has the valid transaction
+    private boolean hasTransaction(
+            String txID, long blockNumber, Block block, Connection connection) {
+        boolean verifyResult;
+        try {
+            // parsed once for all the transactions of the block
+            BlockHeader blockHeader = block.getBlockHeader();
+            BlockMemo.Entry memo =
+                    blockMemo.getOrParse(
+                            blockNumber,
+                            blockHeader == null ? null : blockHeader.getHash(),
+                            block.getRawBytes());
+            BlockVerifierContext verifierContext = getBlockVerifierContext(connection);
+            if (verifierContext != null && !memo.isVerified(verifierContext)) {
+                if (!verifyBlock(connection, memo.getFabricBlock(), verifierContext)) {
+                    logger.error("block {} verify failed", blockNumber);
+                    return false;
+                }
+                memo.markVerified(verifierContext);
+            }
+
+            verifyResult = memo.getValidTxs().contains(txID);
+            logger.debug("Tx(block: " + blockNumber + "): " + txID + " verify: " + verifyResult);
+        } catch (Exception e) {
+            logger.debug("Consumer accept exception: ", e);
+            verifyResult = false;
+        }
+        return verifyResult;
+    }
+
+    private boolean verifyBlock(
+            Connection connection, FabricBlock fabricBlock, BlockVerifierContext verifierContext) {
+        if (connection instanceof FabricConnection) {
+            return ((FabricConnection) connection).verifyBlock(fabricBlock, verifierContext);
+        }
+        return fabricBlock.verifyWithContext(verifierContext);
+    }
+
+    private Deadline newTransactionDeadline(Connection connection, ResourceInfo resourceInfo) {
+        if (!(connection instanceof FabricConnection)) {
+            return null;
+        }
+
+        return ((FabricConnection) connection)
+                .getRequestTimeouts()
+                .newDeadline(
+                        resourceInfo == null ? null : resourceInfo.getName(),
+                        RequestTimeouts.Stage.ENDORSE,
+                        RequestTimeouts.Stage.ORDER,
+                        RequestTimeouts.Stage.COMMIT);
+    }
+
+    private boolean verifyBlockHeader(
+            Connection connection,
+            FabricBlockHeader blockHeader,
+            BlockVerifierContext verifierContext) {
+        if (connection instanceof FabricConnection) {
+            return ((FabricConnection) connection).verifyBlockHeader(blockHeader, verifierContext);
+        }
+        return blockHeader.verifyBlockCreator(verifierContext);
+    }
+
+    private BlockVerifierContext getBlockVerifierContext(Connection connection)
+            throws WeCrossException {
+        if (connection instanceof FabricConnection) {
+            return ((FabricConnection) connection).getBlockVerifierContext();
+        }
+
+        String blockVerifierString = connection.getProperties().get(FabricType.FABRIC_VERIFIER);
+        return blockVerifierString == null ? null : BlockVerifierContext.build(blockVerifierString);
+    }
+
     private void checkRequest(
             TransactionContext transactionContext, TransactionRequest transactionRequest)
             throws Exception {
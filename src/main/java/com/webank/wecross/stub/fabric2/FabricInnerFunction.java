@@ -1,9 +1,19 @@
 package com.webank.wecross.stub.fabric2;
 
-import java.lang.reflect.InvocationTargetException;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import java.io.File;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
+import java.security.CodeSource;
+import java.util.AbstractMap;
 import java.util.Collection;
-import java.util.concurrent.CompletableFuture;
+import java.util.Map;
+import java.util.Properties;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
 import org.hyperledger.fabric.protos.common.Common;
 import org.hyperledger.fabric.protos.orderer.Ab;
 import org.hyperledger.fabric.protos.peer.ProposalPackage;
@@ -14,52 +24,142 @@ import org.slf4j.LoggerFactory;
 
 /** @Description: fabric内部方法，通过反射获取方法对象 @Author: mirsu @Date: 2020/10/30 16:37 */
 public class FabricInnerFunction {
-    private Logger logger = LoggerFactory.getLogger(FabricInnerFunction.class);
+    private static final Logger logger = LoggerFactory.getLogger(FabricInnerFunction.class);
 
-    // Fabric inner functions
-    private Method methodSendProposalToPeers;
-    private Method methodSendTransactionToOrderer;
-    private Method methodRegisterTxListener;
+    public static final String SUPPORTED_SDK_VERSION = "2.0";
+    private static final String SDK_VERSION_ATTRIBUTE = "fabric-sdk-java-version";
+
+    /**
+     * Method handles of the Fabric inner functions, resolved once when the class is loaded. They
+     * are static final, so the JIT can inline them like direct calls, unlike Method.invoke.
+     */
+    private static class Bridge {
+        // Channel.sendProposalToPeers(Collection<Peer>, SignedProposal, TransactionContext)
+        static final MethodHandle sendProposalToPeers;
+        // Orderer.sendTransaction(Common.Envelope transaction)
+        static final MethodHandle sendTransactionToOrderer;
+        // Endpoint.createEndpoint(String url, Properties properties), Endpoint as Object
+        static final MethodHandle createEndpoint;
+        static final MethodHandle getChannelBuilder;
+        static final MethodHandle getClientTLSCertificateDigest;
+        static final String error; // null: all resolved
+
+        static {
+            MethodHandle sendProposal = null;
+            MethodHandle sendTransaction = null;
+            MethodHandle create = null;
+            MethodHandle channelBuilder = null;
+            MethodHandle digest = null;
+            String resolveError = null;
+            try {
+                sendProposal =
+                        resolve(
+                                Channel.class,
+                                "sendProposalToPeers",
+                                Collection.class,
+                                ProposalPackage.SignedProposal.class,
+                                TransactionContext.class);
+                sendTransaction = resolve(Orderer.class, "sendTransaction", Common.Envelope.class);
+
+                Class<?> endpointClass =
+                        Class.forName(Peer.class.getPackage().getName() + ".Endpoint");
+                create =
+                        resolve(endpointClass, "createEndpoint", String.class, Properties.class)
+                                .asType(
+                                        MethodType.methodType(
+                                                Object.class, String.class, Properties.class));
+                channelBuilder =
+                        resolve(endpointClass, "getChannelBuilder")
+                                .asType(
+                                        MethodType.methodType(
+                                                ManagedChannelBuilder.class, Object.class));
+                digest =
+                        resolve(endpointClass, "getClientTLSCertificateDigest")
+                                .asType(MethodType.methodType(byte[].class, Object.class));
+            } catch (Exception e) {
+                resolveError = "Fabric SDK " + getSDKVersion() + " inner functions not found: " + e;
+            }
+
+            sendProposalToPeers = sendProposal;
+            sendTransactionToOrderer = sendTransaction;
+            createEndpoint = create;
+            getChannelBuilder = channelBuilder;
+            getClientTLSCertificateDigest = digest;
+            error = resolveError;
+        }
+    }
 
     private Channel channel;
 
     public FabricInnerFunction(Channel channel) {
         this.channel = channel;
+
+        String sdkVersion = getSDKVersion();
+        if (sdkVersion != null && !sdkVersion.startsWith(SUPPORTED_SDK_VERSION)) {
+            logger.warn(
+                    "Fabric SDK {} is not the supported {}.x, inner functions may not work",
+                    sdkVersion,
+                    SUPPORTED_SDK_VERSION);
+        }
+        if (Bridge.error != null) {
+            logger.error("enableFabricInnerFunctions exception: " + Bridge.error);
+        }
+    }
+
+    /** The version of the Fabric SDK jar, null if unknown (e.g. repackaged) */
+    public static String getSDKVersion() {
+        String version = readManifestVersion();
+        return version != null ? version : Channel.class.getPackage().getImplementationVersion();
+    }
+
+    // The SDK jar only declares its version in the fabric-sdk-java-version manifest attribute
+    private static String readManifestVersion() {
         try {
-            // enable channel.sendProposalToPeers()
-            methodSendProposalToPeers =
-                    channel.getClass()
-                            .getDeclaredMethod(
-                                    "sendProposalToPeers",
-                                    new Class[] {
-                                        Collection.class,
-                                        org.hyperledger.fabric.protos.peer.ProposalPackage
-                                                .SignedProposal.class,
-                                        TransactionContext.class
-                                    });
-            methodSendProposalToPeers.setAccessible(true);
-
-            // sendTransaction(Common.Envelope transaction)
-            methodSendTransactionToOrderer =
-                    Orderer.class.getDeclaredMethod(
-                            "sendTransaction", new Class[] {Common.Envelope.class});
-            methodSendTransactionToOrderer.setAccessible(true);
-
-            // Channel.CompletableFuture<TransactionEvent> registerTxListener(String txid, NOfEvents
-            // nOfEvents, boolean failFast)
-            methodRegisterTxListener =
-                    channel.getClass()
-                            .getDeclaredMethod(
-                                    "registerTxListener",
-                                    new Class[] {
-                                        String.class, Channel.NOfEvents.class, boolean.class
-                                    });
-            methodRegisterTxListener.setAccessible(true);
+            CodeSource codeSource = Channel.class.getProtectionDomain().getCodeSource();
+            if (codeSource == null || codeSource.getLocation() == null) {
+                return null;
+            }
+
+            File file = new File(codeSource.getLocation().toURI());
+            if (!file.isFile()) {
+                return null; // not a jar
+            }
+            try (JarFile jarFile = new JarFile(file)) {
+                Manifest manifest = jarFile.getManifest();
+                return manifest == null
+                        ? null
+                        : manifest.getMainAttributes().getValue(SDK_VERSION_ATTRIBUTE);
+            }
         } catch (Exception e) {
-            logger.error("enableFabricInnerFunctions exception: " + e);
+            logger.debug("Read Fabric SDK version exception: ", e);
+            return null;
         }
     }
 
+    /** Resolve a non-public method of the SDK to a method handle, with its exact type */
+    public static MethodHandle resolve(Class<?> clazz, String name, Class<?>... parameterTypes)
+            throws NoSuchMethodException, IllegalAccessException {
+        Method method = clazz.getDeclaredMethod(name, parameterTypes);
+        method.setAccessible(true);
+        return MethodHandles.lookup().unreflect(method);
+    }
+
+    private static void checkResolved() throws Exception {
+        if (Bridge.error != null) {
+            throw new Exception(Bridge.error);
+        }
+    }
+
+    private static Exception toException(Throwable t) {
+        if (t instanceof Exception) {
+            return (Exception) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        return new Exception(t);
+    }
+
     /**
      * @Description: 向peer 发送交易提案 反射调用
      *
@@ -72,32 +172,54 @@ public class FabricInnerFunction {
             ProposalPackage.SignedProposal signedProposal,
             TransactionContext transactionContext)
             throws Exception {
+        checkResolved();
         try {
             return (Collection<ProposalResponse>)
-                    methodSendProposalToPeers.invoke(
-                            (Object) channel, peers, signedProposal, transactionContext);
-        } catch (InvocationTargetException e) {
-            throw new Exception(e.getTargetException().getMessage());
+                    Bridge.sendProposalToPeers.invokeExact(
+                            channel, (Collection) peers, signedProposal, transactionContext);
+        } catch (Throwable t) {
+            throw toException(t);
         }
     }
 
     public Ab.BroadcastResponse sendTransactionToOrderer(
             Orderer orderer, Common.Envelope transactionEnvelope) throws Exception {
+        checkResolved();
         try {
             return (Ab.BroadcastResponse)
-                    methodSendTransactionToOrderer.invoke((Object) orderer, transactionEnvelope);
-        } catch (InvocationTargetException e) {
-            throw new Exception(e.getTargetException().getMessage());
+                    Bridge.sendTransactionToOrderer.invokeExact(orderer, transactionEnvelope);
+        } catch (Throwable t) {
+            throw toException(t);
         }
     }
 
-    public CompletableFuture<BlockEvent.TransactionEvent> registerTxListener(
-            String txid, Channel.NOfEvents nOfEvents, boolean failFast) throws Exception {
+    /**
+     * Build a gRPC channel to the peer with the same TLS settings the SDK uses for it
+     *
+     * @return the channel and the client TLS certificate digest (null without mutual TLS)
+     */
+    public Map.Entry<ManagedChannel, byte[]> newPeerManagedChannel(Peer peer) throws Exception {
+        return newManagedChannel(peer.getUrl(), peer.getProperties());
+    }
+
+    /** Build a gRPC channel to the orderer with the same TLS settings the SDK uses for it */
+    public ManagedChannel newOrdererManagedChannel(Orderer orderer) throws Exception {
+        return newManagedChannel(orderer.getUrl(), orderer.getProperties()).getKey();
+    }
+
+    private Map.Entry<ManagedChannel, byte[]> newManagedChannel(String url, Properties properties)
+            throws Exception {
+        checkResolved();
         try {
-            return (CompletableFuture<BlockEvent.TransactionEvent>)
-                    methodRegisterTxListener.invoke((Object) channel, txid, nOfEvents, true);
-        } catch (InvocationTargetException e) {
-            throw new Exception(e.getTargetException().getMessage());
+            Object endpoint = (Object) Bridge.createEndpoint.invokeExact(url, properties);
+            ManagedChannelBuilder<?> channelBuilder =
+                    (ManagedChannelBuilder) Bridge.getChannelBuilder.invokeExact(endpoint);
+            byte[] clientTLSCertificateDigest =
+                    (byte[]) Bridge.getClientTLSCertificateDigest.invokeExact(endpoint);
+            return new AbstractMap.SimpleImmutableEntry<>(
+                    channelBuilder.build(), clientTLSCertificateDigest);
+        } catch (Throwable t) {
+            throw toException(t);
         }
     }
 }
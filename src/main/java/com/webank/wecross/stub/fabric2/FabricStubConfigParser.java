@@ -12,6 +12,16 @@ package com.webank.wecross.stub.fabric2;
     ordererTlsCaFile = 'orderer-tlsca.crt'
     ordererAddress = 'grpcs://localhost:7050'
 
+[orderers] # optional, overrides the orderer of [fabricServices]
+    [orderers.orderer0]
+        address = 'grpcs://localhost:7050'
+        tlsCaFile = 'orderer-tlsca.crt'
+        hostnameOverride = 'orderer0.example.com'
+    [orderers.orderer1]
+        address = 'grpcs://localhost:8050'
+        tlsCaFile = 'orderer-tlsca.crt'
+        hostnameOverride = 'orderer1.example.com'
+
 [orgs]
     [orgs.org1]
         tlsCaFile = 'org1-tlsca.crt'
@@ -27,12 +37,59 @@ package com.webank.wecross.stub.fabric2;
         corePoolSize = 200
         maxPoolSize = 500
         queueCapacity = 5000
+    [advanced.queryThreadPool]
+        corePoolSize = 8
+        maxPoolSize = 8
+        queueCapacity = 10000
+    [advanced.blockVerifier]
+        parallel = true
+        threads = 8
+        parallelThreshold = 32
+    [advanced.blockCache]
+        maxBlocks = 64
+        maxMemoryMB = 64
+    [advanced.blockStore]
+        enable = false
+        path = 'blockstore'
+        segmentSizeMB = 64
+    [advanced.blockPrefetch]
+        enable = true
+        window = 16
+        threads = 4
+        maxMemoryMB = 64
+        verify = false
+    [advanced.txIndex]
+        enable = true
+        maxEntries = 1000000
+    [advanced.timeout]
+        default = 60000
+        adaptive = false
+    [advanced.timeout.resources]
+        HelloWorld = 30000
+    [advanced.ordererSelection]
+        strategy = 'health' # health, roundRobin or leastOutstanding
+    [advanced.call]
+        hedged = true # query one endorser, hedged to another one if it is slow
+        hedgePercentile = 95
+    [advanced.endorserSelection]
+        policyAware = true # endorse with the fewest peers satisfying the endorsement policy
+        earlyReturn = true # return once the endorsements satisfy the policy or the quorum
+        quorum = 0 # orgs whose endorsements are enough, 0: by the endorsement policy
+    [advanced.callCache]
+        resources = [] # resources whose query results are cached until their chaincode is written
+        maxEntries = 10000
+        maxMemoryMB = 16
+        maxStaleBlocks = 10
+        maxStaleSeconds = 10
  */
 
 import com.moandjiezana.toml.Toml;
+import com.webank.wecross.stub.fabric2.orderer.OrdererSelector;
 import com.webank.wecross.stub.fabric2.utils.FabricUtils;
 import java.io.File;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import org.slf4j.Logger;
@@ -47,6 +104,7 @@ public class FabricStubConfigParser {
 
     private Common common;
     private FabricServices fabricServices;
+    private Orderers orderers;
     private Orgs orgs;
     private Advanced advanced;
 
@@ -63,6 +121,7 @@ public class FabricStubConfigParser {
 
             common = new Common(toml);
             fabricServices = new FabricServices(toml, stubPath);
+            orderers = new Orderers(toml, stubPath, fabricServices);
             orgs = new Orgs(toml, stubPath);
             advanced = new Advanced(toml);
 
@@ -79,6 +138,10 @@ public class FabricStubConfigParser {
         return fabricServices;
     }
 
+    public Map<String, Orderers.Orderer> getOrderers() {
+        return orderers.getOrderers();
+    }
+
     public Map<String, Orgs.Org> getOrgs() {
         return orgs.getOrgs();
     }
@@ -121,13 +184,17 @@ public class FabricStubConfigParser {
         public FabricServices(Toml toml, String stubPath) throws Exception {
             channelName = parseString(toml, "fabricServices.channelName");
             orgUserName = parseString(toml, "fabricServices.orgUserName");
+            hostnameOverride = parseString(toml, "fabricServices.hostnameOverride", "orderer");
+            if (toml.getTable("orderers") != null) {
+                return; // the orderers are configured in [orderers]
+            }
+
             ordererTlsCaFile =
                     FabricUtils.getPath(
                             stubPath
                                     + File.separator
                                     + parseString(toml, "fabricServices.ordererTlsCaFile"));
             ordererAddress = parseString(toml, "fabricServices.ordererAddress");
-            hostnameOverride = parseString(toml, "fabricServices.hostnameOverride", "orderer");
         }
 
         public String getChannelName() {
@@ -151,6 +218,82 @@ public class FabricStubConfigParser {
         }
     }
 
+    public static class Orderers {
+        /*
+        [orderers]
+            [orderers.orderer0]
+                address = 'grpcs://localhost:7050'
+                tlsCaFile = 'orderer-tlsca.crt'
+                hostnameOverride = 'orderer0.example.com'
+        */
+        private Map<String, Orderer> orderers = new LinkedHashMap<>();
+
+        public Orderers(Toml toml, String stubPath, FabricServices fabricServices)
+                throws Exception {
+            Object orderersValue = toml.toMap().get("orderers");
+            if (orderersValue == null) {
+                // the only orderer of [fabricServices]
+                orderers.put(
+                        "orderer",
+                        new Orderer(
+                                fabricServices.getOrdererAddress(),
+                                fabricServices.getOrdererTlsCaFile(),
+                                fabricServices.getHostnameOverride()));
+                return;
+            }
+
+            if (!(orderersValue instanceof Map) || ((Map<?, ?>) orderersValue).isEmpty()) {
+                throw new Exception("\"orderers\" item illegal");
+            }
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) orderersValue).entrySet()) {
+                if (!(entry.getValue() instanceof Map)) {
+                    throw new Exception("\"orderers." + entry.getKey() + "\" item illegal");
+                }
+                @SuppressWarnings("unchecked")
+                Map<String, Object> ordererMap = (Map<String, Object>) entry.getValue();
+                orderers.put(String.valueOf(entry.getKey()), new Orderer(ordererMap, stubPath));
+            }
+        }
+
+        public Map<String, Orderer> getOrderers() {
+            return orderers;
+        }
+
+        public static class Orderer {
+            private String address;
+            private String tlsCaFile;
+            private String hostnameOverride;
+
+            public Orderer(String address, String tlsCaFile, String hostnameOverride) {
+                this.address = address;
+                this.tlsCaFile = tlsCaFile;
+                this.hostnameOverride = hostnameOverride;
+            }
+
+            public Orderer(Map<String, Object> ordererMap, String stubPath) throws Exception {
+                address = parseStringBase(ordererMap, "address");
+                tlsCaFile =
+                        FabricUtils.getPath(
+                                stubPath
+                                        + File.separator
+                                        + parseStringBase(ordererMap, "tlsCaFile"));
+                hostnameOverride = parseString(ordererMap, "hostnameOverride", "orderer");
+            }
+
+            public String getAddress() {
+                return address;
+            }
+
+            public String getTlsCaFile() {
+                return tlsCaFile;
+            }
+
+            public String getHostnameOverride() {
+                return hostnameOverride;
+            }
+        }
+    }
+
     public static class Orgs {
         /*
         [orgs]
@@ -231,26 +374,145 @@ public class FabricStubConfigParser {
                     corePoolSize = 200
                     maxPoolSize = 500
                     queueCapacity = 5000
+                [advanced.queryThreadPool]
+                    corePoolSize = 8
+                    maxPoolSize = 8
+                    queueCapacity = 10000
+                [advanced.blockVerifier]
+                    parallel = true
+                    threads = 8
+                    parallelThreshold = 32
+                [advanced.blockCache]
+                    maxBlocks = 64
+                    maxMemoryMB = 64
+                [advanced.blockStore]
+                    enable = false
+                    path = 'blockstore'
+                    segmentSizeMB = 64
+                [advanced.blockPrefetch]
+                    enable = true
+                    window = 16
+                    threads = 4
+                    maxMemoryMB = 64
+                    verify = false
+                [advanced.txIndex]
+                    enable = true
+                    maxEntries = 1000000
+                [advanced.timeout]
+                    default = 60000
+                    adaptive = false
+                [advanced.timeout.resources]
+                    HelloWorld = 30000
+                [advanced.ordererSelection]
+                    strategy = 'health'
+                [advanced.call]
+                    hedged = true
+                    hedgePercentile = 95
+                [advanced.endorserSelection]
+                    policyAware = true
+                    earlyReturn = true
+                    quorum = 0
+                [advanced.callCache]
+                    resources = []
+                    maxEntries = 10000
+                    maxMemoryMB = 16
+                    maxStaleBlocks = 10
+                    maxStaleSeconds = 10
         * */
         private ThreadPool threadPool;
+        private ThreadPool queryThreadPool; // for block and transaction queries
+        private BlockVerifier blockVerifier;
+        private BlockCache blockCache;
+        private BlockStore blockStore;
+        private BlockPrefetch blockPrefetch;
+        private TxIndex txIndex;
+        private Timeout timeout;
+        private OrdererSelection ordererSelection;
+        private Call call;
+        private EndorserSelection endorserSelection;
+        private CallCache callCache;
 
         public Advanced(Toml toml) throws Exception {
             threadPool = new ThreadPool(toml);
+            queryThreadPool = new ThreadPool(toml, "advanced.queryThreadPool", 8, 8, 10000);
+            blockVerifier = new BlockVerifier(toml);
+            blockCache = new BlockCache(toml);
+            blockStore = new BlockStore(toml);
+            blockPrefetch = new BlockPrefetch(toml);
+            txIndex = new TxIndex(toml);
+            timeout = new Timeout(toml);
+            ordererSelection = new OrdererSelection(toml);
+            call = new Call(toml);
+            endorserSelection = new EndorserSelection(toml);
+            callCache = new CallCache(toml);
         }
 
         public ThreadPool getThreadPool() {
             return threadPool;
         }
 
+        public ThreadPool getQueryThreadPool() {
+            return queryThreadPool;
+        }
+
+        public BlockVerifier getBlockVerifier() {
+            return blockVerifier;
+        }
+
+        public BlockCache getBlockCache() {
+            return blockCache;
+        }
+
+        public BlockStore getBlockStore() {
+            return blockStore;
+        }
+
+        public BlockPrefetch getBlockPrefetch() {
+            return blockPrefetch;
+        }
+
+        public TxIndex getTxIndex() {
+            return txIndex;
+        }
+
+        public Timeout getTimeout() {
+            return timeout;
+        }
+
+        public OrdererSelection getOrdererSelection() {
+            return ordererSelection;
+        }
+
+        public Call getCall() {
+            return call;
+        }
+
+        public EndorserSelection getEndorserSelection() {
+            return endorserSelection;
+        }
+
+        public CallCache getCallCache() {
+            return callCache;
+        }
+
         public static class ThreadPool {
             private int corePoolSize; // default
             private int maxPoolSize; // default
             private int queueCapacity; // default
 
             public ThreadPool(Toml toml) {
-                corePoolSize = parseInt(toml, "advanced.threadPool.corePoolSize", 32);
-                maxPoolSize = parseInt(toml, "advanced.threadPool.maxPoolSize", 32);
-                queueCapacity = parseInt(toml, "advanced.threadPool.queueCapacity", 10000);
+                this(toml, "advanced.threadPool", 32, 32, 10000);
+            }
+
+            public ThreadPool(
+                    Toml toml,
+                    String key,
+                    int defaultCorePoolSize,
+                    int defaultMaxPoolSize,
+                    int defaultQueueCapacity) {
+                corePoolSize = parseInt(toml, key + ".corePoolSize", defaultCorePoolSize);
+                maxPoolSize = parseInt(toml, key + ".maxPoolSize", defaultMaxPoolSize);
+                queueCapacity = parseInt(toml, key + ".queueCapacity", defaultQueueCapacity);
             }
 
             public int getCorePoolSize() {
@@ -265,6 +527,260 @@ public class FabricStubConfigParser {
                 return queueCapacity;
             }
         }
+
+        public static class BlockVerifier {
+            private boolean parallel; // verify endorsements of a block in parallel
+            private int threads; // size of the verify pool
+            private int parallelThreshold; // min endorsements of a block to go parallel
+
+            public BlockVerifier(Toml toml) {
+                parallel = parseBoolean(toml, "advanced.blockVerifier.parallel", true);
+                threads =
+                        parseInt(
+                                toml,
+                                "advanced.blockVerifier.threads",
+                                Runtime.getRuntime().availableProcessors());
+                parallelThreshold = parseInt(toml, "advanced.blockVerifier.parallelThreshold", 32);
+            }
+
+            public boolean isParallel() {
+                return parallel;
+            }
+
+            public int getThreads() {
+                return threads;
+            }
+
+            public int getParallelThreshold() {
+                return parallelThreshold;
+            }
+        }
+
+        public static class BlockCache {
+            private int maxBlocks; // latest blocks kept in memory, 0 to disable
+            private int maxMemoryMB; // memory limit of the kept blocks
+
+            public BlockCache(Toml toml) {
+                maxBlocks = parseInt(toml, "advanced.blockCache.maxBlocks", 64);
+                maxMemoryMB = parseInt(toml, "advanced.blockCache.maxMemoryMB", 64);
+            }
+
+            public int getMaxBlocks() {
+                return maxBlocks;
+            }
+
+            public int getMaxMemoryMB() {
+                return maxMemoryMB;
+            }
+        }
+
+        public static class BlockStore {
+            private boolean enable; // keep the blocks in local files
+            private String path; // relative to the stub path
+            private int segmentSizeMB;
+
+            public BlockStore(Toml toml) {
+                enable = parseBoolean(toml, "advanced.blockStore.enable", false);
+                path = parseString(toml, "advanced.blockStore.path", "blockstore");
+                segmentSizeMB = parseInt(toml, "advanced.blockStore.segmentSizeMB", 64);
+            }
+
+            public boolean isEnable() {
+                return enable;
+            }
+
+            public String getPath() {
+                return path;
+            }
+
+            public int getSegmentSizeMB() {
+                return segmentSizeMB;
+            }
+        }
+
+        public static class BlockPrefetch {
+            private boolean enable; // prefetch blocks on sequential block requests
+            private int window; // max blocks prefetched ahead
+            private int threads;
+            private int maxMemoryMB; // memory limit of the prefetched blocks
+            private boolean verify; // verify the prefetched blocks in advance
+
+            public BlockPrefetch(Toml toml) {
+                enable = parseBoolean(toml, "advanced.blockPrefetch.enable", true);
+                window = parseInt(toml, "advanced.blockPrefetch.window", 16);
+                threads = parseInt(toml, "advanced.blockPrefetch.threads", 4);
+                maxMemoryMB = parseInt(toml, "advanced.blockPrefetch.maxMemoryMB", 64);
+                verify = parseBoolean(toml, "advanced.blockPrefetch.verify", false);
+            }
+
+            public boolean isEnable() {
+                return enable;
+            }
+
+            public int getWindow() {
+                return window;
+            }
+
+            public int getThreads() {
+                return threads;
+            }
+
+            public int getMaxMemoryMB() {
+                return maxMemoryMB;
+            }
+
+            public boolean isVerify() {
+                return verify;
+            }
+        }
+
+        public static class TxIndex {
+            private boolean enable; // index txID => block, persisted with the block store
+            private int maxEntries;
+
+            public TxIndex(Toml toml) {
+                enable = parseBoolean(toml, "advanced.txIndex.enable", true);
+                maxEntries = parseInt(toml, "advanced.txIndex.maxEntries", 1000000);
+            }
+
+            public boolean isEnable() {
+                return enable;
+            }
+
+            public int getMaxEntries() {
+                return maxEntries;
+            }
+        }
+
+        public static class Timeout {
+            private long defaultTimeout; // ms, budget of a request from endorsing to committing
+            private boolean adaptive; // derive the budget from the observed p99 of the stages
+            private Map<String, Long> resourceTimeouts = new HashMap<>(); // resource name => ms
+
+            public Timeout(Toml toml) throws Exception {
+                defaultTimeout = parseInt(toml, "advanced.timeout.default", 60000);
+                adaptive = parseBoolean(toml, "advanced.timeout.adaptive", false);
+
+                Toml resources = toml.getTable("advanced.timeout.resources");
+                if (resources != null) {
+                    for (Map.Entry<String, Object> entry : resources.toMap().entrySet()) {
+                        if (!(entry.getValue() instanceof Number)
+                                || ((Number) entry.getValue()).longValue() <= 0) {
+                            throw new Exception(
+                                    "\"advanced.timeout.resources."
+                                            + entry.getKey()
+                                            + "\" item illegal");
+                        }
+                        resourceTimeouts.put(
+                                entry.getKey(), ((Number) entry.getValue()).longValue());
+                    }
+                }
+            }
+
+            public long getDefaultTimeout() {
+                return defaultTimeout;
+            }
+
+            public boolean isAdaptive() {
+                return adaptive;
+            }
+
+            public Map<String, Long> getResourceTimeouts() {
+                return resourceTimeouts;
+            }
+        }
+
+        public static class OrdererSelection {
+            private OrdererSelector.Strategy strategy;
+
+            public OrdererSelection(Toml toml) throws Exception {
+                strategy =
+                        OrdererSelector.Strategy.of(
+                                parseString(toml, "advanced.ordererSelection.strategy", "health"));
+            }
+
+            public OrdererSelector.Strategy getStrategy() {
+                return strategy;
+            }
+        }
+
+        public static class Call {
+            private boolean hedged; // query one endorser instead of all of them
+            private int hedgePercentile; // hedge after this percentile of the peer latency
+
+            public Call(Toml toml) {
+                hedged = parseBoolean(toml, "advanced.call.hedged", true);
+                hedgePercentile = parseInt(toml, "advanced.call.hedgePercentile", 95);
+            }
+
+            public boolean isHedged() {
+                return hedged;
+            }
+
+            public int getHedgePercentile() {
+                return hedgePercentile;
+            }
+        }
+
+        public static class EndorserSelection {
+            private boolean policyAware; // select endorsers by the chaincode endorsement policy
+            private boolean earlyReturn; // don't wait for the endorsers not needed
+            private int quorum; // orgs enough to endorse, 0: by the endorsement policy
+
+            public EndorserSelection(Toml toml) {
+                policyAware = parseBoolean(toml, "advanced.endorserSelection.policyAware", true);
+                earlyReturn = parseBoolean(toml, "advanced.endorserSelection.earlyReturn", true);
+                quorum = parseInt(toml, "advanced.endorserSelection.quorum", 0);
+            }
+
+            public boolean isPolicyAware() {
+                return policyAware;
+            }
+
+            public boolean isEarlyReturn() {
+                return earlyReturn;
+            }
+
+            public int getQuorum() {
+                return quorum;
+            }
+        }
+
+        public static class CallCache {
+            private List<String> resources; // empty: the cache is disabled
+            private int maxEntries;
+            private int maxMemoryMB;
+            private int maxStaleBlocks; // blocks an entry may lag behind the latest block
+            private int maxStaleSeconds; // seconds an entry may be kept, for a lagging query peer
+
+            public CallCache(Toml toml) {
+                resources = toml.getList("advanced.callCache.resources", new ArrayList<>());
+                maxEntries = parseInt(toml, "advanced.callCache.maxEntries", 10000);
+                maxMemoryMB = parseInt(toml, "advanced.callCache.maxMemoryMB", 16);
+                maxStaleBlocks = parseInt(toml, "advanced.callCache.maxStaleBlocks", 10);
+                maxStaleSeconds = parseInt(toml, "advanced.callCache.maxStaleSeconds", 10);
+            }
+
+            public List<String> getResources() {
+                return resources;
+            }
+
+            public int getMaxEntries() {
+                return maxEntries;
+            }
+
+            public int getMaxMemoryMB() {
+                return maxMemoryMB;
+            }
+
+            public int getMaxStaleBlocks() {
+                return maxStaleBlocks;
+            }
+
+            public int getMaxStaleSeconds() {
+                return maxStaleSeconds;
+            }
+        }
     }
 
     private static int parseInt(Toml toml, String key, int defaultReturn) {
@@ -277,6 +793,16 @@ public class FabricStubConfigParser {
         return res.intValue();
     }
 
+    private static boolean parseBoolean(Toml toml, String key, boolean defaultReturn) {
+        Boolean res = toml.getBoolean(key);
+
+        if (res == null) {
+            logger.info(key + " has not set, default to " + defaultReturn);
+            return defaultReturn;
+        }
+        return res;
+    }
+
     private static String parseString(Toml toml, String key, String defaultReturn) {
         try {
             return parseString(toml, key);
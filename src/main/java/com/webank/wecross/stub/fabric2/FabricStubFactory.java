@@ -39,8 +39,9 @@ public class FabricStubFactory implements StubFactory {
 
     @Override
     public Connection newConnection(String path) {
+        FabricConnection fabricConnection = null;
         try {
-            FabricConnection fabricConnection = FabricConnectionFactory.build(path);
+            fabricConnection = FabricConnectionFactory.build(path);
             fabricConnection.start();
 
             // Check proxy chaincode
@@ -52,6 +53,9 @@ public class FabricStubFactory implements StubFactory {
             return fabricConnection;
         } catch (Exception e) {
             logger.error("newConnection exception: " + e);
+            if (fabricConnection != null) {
+                fabricConnection.shutdown();
+            }
             return null;
         }
     }
@@ -5,29 +5,48 @@ import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import org.hyperledger.fabric.protos.common.Common;
+import org.hyperledger.fabric.protos.msp.Identities;
 import org.hyperledger.fabric.protos.peer.Chaincode;
 import org.hyperledger.fabric.protos.peer.ProposalPackage;
 import org.hyperledger.fabric.protos.peer.ProposalResponsePackage;
 
 public class FabricTransaction {
+    // creator(SerializedIdentity bytes) => identity, a block repeats the same few submitters
+    private static final int CREATOR_IDENTITY_CACHE_SIZE = 256;
+    private static final Map<ByteString, String> creatorIdentityCache = new ConcurrentHashMap<>();
+
     private Common.Header header;
     private org.hyperledger.fabric.protos.peer.TransactionPackage.Transaction transaction;
 
     private List<TransactionAction> transactionActionList = new ArrayList<>();
     private String txID;
     private long timestamp = 0;
+    private String creatorIdentity;
 
     FabricTransaction(byte[] payloadBytes) throws Exception {
+        this(Common.Payload.parseFrom(payloadBytes));
+    }
+
+    FabricTransaction(Common.Payload transactionPayload) throws Exception {
+        this(
+                transactionPayload,
+                Common.ChannelHeader.parseFrom(transactionPayload.getHeader().getChannelHeader()),
+                org.hyperledger.fabric.protos.peer.TransactionPackage.Transaction.parseFrom(
+                        transactionPayload.getData()));
+    }
 
-        Common.Payload transactionPayload = Common.Payload.parseFrom(payloadBytes);
+    // Build from the messages which have been decoded, nothing is parsed twice
+    FabricTransaction(
+            Common.Payload transactionPayload,
+            Common.ChannelHeader channelHeader,
+            org.hyperledger.fabric.protos.peer.TransactionPackage.Transaction transaction)
+            throws Exception {
         this.header = transactionPayload.getHeader();
-        Common.ChannelHeader channelHeader =
-                Common.ChannelHeader.parseFrom(header.getChannelHeader());
         this.txID = channelHeader.getTxId();
-        this.transaction =
-                org.hyperledger.fabric.protos.peer.TransactionPackage.Transaction.parseFrom(
-                        transactionPayload.getData());
+        this.transaction = transaction;
         timestamp = channelHeader.getTimestamp().getSeconds();
         for (org.hyperledger.fabric.protos.peer.TransactionPackage.TransactionAction action :
                 transaction.getActionsList()) {
@@ -37,9 +56,7 @@ public class FabricTransaction {
 
     public static FabricTransaction buildFromEnvelopeBytes(byte[] envelopeBytes) throws Exception {
         Common.Envelope envelope = Common.Envelope.parseFrom(envelopeBytes);
-
-        byte[] payloadBytes = envelope.getPayload().toByteArray();
-        return buildFromPayloadBytes(payloadBytes);
+        return new FabricTransaction(Common.Payload.parseFrom(envelope.getPayload()));
     }
 
     public static FabricTransaction buildFromPayloadBytes(byte[] payloadBytes) throws Exception {
@@ -82,6 +99,34 @@ public class FabricTransaction {
         return timestamp;
     }
 
+    // The certificate(PEM) of the transaction creator
+    public String getCreatorIdentity() throws Exception {
+        if (creatorIdentity == null) {
+            creatorIdentity = parseCreatorIdentity(header.getSignatureHeader());
+        }
+        return creatorIdentity;
+    }
+
+    public static String parseCreatorIdentity(ByteString signatureHeaderBytes) throws Exception {
+        ByteString creator = Common.SignatureHeader.parseFrom(signatureHeaderBytes).getCreator();
+
+        String identity = creatorIdentityCache.get(creator);
+        if (identity != null) {
+            return identity;
+        }
+
+        identity = Identities.SerializedIdentity.parseFrom(creator).getIdBytes().toStringUtf8();
+        if (!identity.endsWith("\n")) {
+            identity += "\n";
+        }
+
+        if (creatorIdentityCache.size() >= CREATOR_IDENTITY_CACHE_SIZE) {
+            creatorIdentityCache.clear();
+        }
+        creatorIdentityCache.put(creator, identity);
+        return identity;
+    }
+
     public static class TransactionAction {
         private org.hyperledger.fabric.protos.peer.TransactionPackage.TransactionAction
                 transactionAction;
@@ -0,0 +1,162 @@
+package com.webank.wecross.stub.fabric2;
+
+import com.google.protobuf.ByteString;
+import java.io.ByteArrayInputStream;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.hyperledger.fabric.protos.msp.Identities;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cache of the verified identities (SerializedIdentity) of a set of CAs. A channel only has a
+ * handful of endorser and orderer identities, so the certificate of each one is decoded and checked
+ * against its CA only once. The trusted identities are kept, the least recently used one is evicted
+ * when the capacity is reached (e.g. by certificate rotation). The untrusted ones are not cached,
+ * so that junk identities can't take the place of the real ones. The cache belongs to a
+ * BlockVerifierContext and is dropped with it when the CAs change.
+ */
+public class IdentityCache {
+    private static final Logger logger = LoggerFactory.getLogger(IdentityCache.class);
+
+    private static final int DEFAULT_CAPACITY = 1024;
+
+    public static class Identity {
+        private final String mspId;
+        private final X509Certificate certificate;
+        private final boolean trusted; // certificate is issued by the CA of its MSP
+        private final ThreadLocal<Signature> signature;
+
+        Identity(String mspId, X509Certificate certificate, boolean trusted) {
+            this.mspId = mspId;
+            this.certificate = certificate;
+            this.trusted = trusted;
+            this.signature =
+                    ThreadLocal.withInitial(
+                            () -> {
+                                try {
+                                    return Signature.getInstance(certificate.getSigAlgName());
+                                } catch (Exception e) {
+                                    throw new IllegalStateException(e);
+                                }
+                            });
+        }
+
+        public String getMspId() {
+            return mspId;
+        }
+
+        public X509Certificate getCertificate() {
+            return certificate;
+        }
+
+        public PublicKey getPublicKey() {
+            return certificate.getPublicKey();
+        }
+
+        public boolean isTrusted() {
+            return trusted;
+        }
+
+        public boolean verifySignature(byte[] signBytes, byte[] data) {
+            if (certificate == null) {
+                return false;
+            }
+
+            try {
+                Signature signer = signature.get();
+                signer.initVerify(certificate.getPublicKey());
+                signer.update(data);
+                return signer.verify(signBytes);
+            } catch (Exception e) {
+                logger.error("verifySignature of {} exception: ", mspId, e);
+                return false;
+            }
+        }
+    }
+
+    private final Map<String, BlockVerifierContext.CA> cas;
+    private final Map<ByteString, Identity> identities;
+
+    public IdentityCache(Map<String, BlockVerifierContext.CA> cas) {
+        this(cas, DEFAULT_CAPACITY);
+    }
+
+    public IdentityCache(Map<String, BlockVerifierContext.CA> cas, int capacity) {
+        this.cas = cas;
+        this.identities = Collections.synchronizedMap(new RecentIdentities(capacity));
+    }
+
+    // Access ordered, keeps the capacity most recently used identities
+    private static class RecentIdentities extends LinkedHashMap<ByteString, Identity> {
+        private static final long serialVersionUID = 1L;
+        private final int capacity;
+
+        RecentIdentities(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ByteString, Identity> eldest) {
+            return size() > capacity;
+        }
+    }
+
+    /**
+     * Get the identity of a serialized SerializedIdentity
+     *
+     * @return null if the MSP of the identity has no CA
+     */
+    public Identity get(ByteString serializedIdentity) throws Exception {
+        Identity identity = identities.get(serializedIdentity);
+        if (identity != null) {
+            return identity;
+        }
+
+        Identities.SerializedIdentity parsed =
+                Identities.SerializedIdentity.parseFrom(serializedIdentity);
+        BlockVerifierContext.CA ca = cas.get(parsed.getMspid());
+        if (ca == null) {
+            return null;
+        }
+
+        identity = load(parsed, ca);
+        if (identity.isTrusted()) {
+            identities.put(serializedIdentity, identity);
+        }
+        return identity;
+    }
+
+    public int size() {
+        return identities.size();
+    }
+
+    private static Identity load(
+            Identities.SerializedIdentity serializedIdentity, BlockVerifierContext.CA ca) {
+        X509Certificate certificate = null;
+        boolean trusted = false;
+        try {
+            CertificateFactory cf = CertificateFactory.getInstance("X.509");
+            certificate =
+                    (X509Certificate)
+                            cf.generateCertificate(
+                                    new ByteArrayInputStream(
+                                            serializedIdentity.getIdBytes().toByteArray()));
+            certificate.verify(ca.getPublicKey());
+            trusted = true;
+        } catch (Exception e) {
+            logger.error(
+                    "Check Cert fail, caCert: {}, cert: {}, e: {}",
+                    ca.getPem(),
+                    serializedIdentity.getIdBytes().toStringUtf8(),
+                    e.getMessage());
+        }
+        return new Identity(serializedIdentity.getMspid(), certificate, trusted);
+    }
+}
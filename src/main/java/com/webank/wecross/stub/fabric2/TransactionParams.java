@@ -3,12 +3,31 @@ package com.webank.wecross.stub.fabric2;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.webank.wecross.stub.TransactionRequest;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 
+/**
+ * Params passed from FabricDriver to FabricConnection. They are encoded in a versioned binary
+ * layout keeping the proposal bytes raw, all lengths are 4 bytes big endian, -1 for null:
+ *
+ * <pre>
+ * magic(4) version(1) byProxy(1) data orgNames(count, then each UTF-8 name) originTransactionRequest(JSON)
+ * </pre>
+ *
+ * The small origin request is kept as JSON and only parsed when asked for. The JSON encoding of the
+ * older stubs is still read.
+ */
 public class TransactionParams {
     private static ObjectMapper objectMapper = new ObjectMapper();
 
+    public static final byte[] MAGIC = {0, 'W', 'T', 'P'}; // JSON never starts with 0
+    public static final byte VERSION = 1;
+
     private TransactionRequest originTransactionRequest;
+    private byte[] originTransactionRequestBytes; // JSON not parsed yet
     private byte[] data;
     private String[] orgNames;
     private boolean byProxy;
@@ -24,19 +43,116 @@ public class TransactionParams {
 
     @JsonIgnore
     public byte[] toBytes() throws Exception {
-        return objectMapper.writeValueAsBytes(this);
+        ByteArrayOutputStream bytes =
+                new ByteArrayOutputStream(64 + (data == null ? 0 : data.length));
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.write(MAGIC);
+        out.writeByte(VERSION);
+        out.writeBoolean(byProxy);
+        writeBytes(out, data);
+
+        if (orgNames == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(orgNames.length);
+            for (String orgName : orgNames) {
+                writeBytes(out, orgName == null ? null : orgName.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        writeBytes(
+                out,
+                originTransactionRequest != null
+                        ? objectMapper.writeValueAsBytes(originTransactionRequest)
+                        : originTransactionRequestBytes);
+        out.flush();
+        return bytes.toByteArray();
     }
 
     public static TransactionParams parseFrom(byte[] bytes) throws Exception {
-        return objectMapper.readValue(bytes, TransactionParams.class);
+        if (!isBinary(bytes)) {
+            return objectMapper.readValue(bytes, TransactionParams.class); // older stubs
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, MAGIC.length, bytes.length - MAGIC.length);
+        byte version = buffer.get();
+        if (version != VERSION) {
+            throw new Exception("Unsupported TransactionParams version: " + version);
+        }
+
+        TransactionParams transactionParams = new TransactionParams();
+        transactionParams.byProxy = buffer.get() != 0;
+        transactionParams.data = readBytes(buffer);
+
+        int orgCount = buffer.getInt();
+        if (orgCount > buffer.remaining() / 4) {
+            // each org name takes 4 bytes of length at least
+            throw new Exception("Truncated TransactionParams, org count: " + orgCount);
+        }
+        if (orgCount >= 0) {
+            transactionParams.orgNames = new String[orgCount];
+            for (int i = 0; i < orgCount; i++) {
+                byte[] orgName = readBytes(buffer);
+                transactionParams.orgNames[i] =
+                        orgName == null ? null : new String(orgName, StandardCharsets.UTF_8);
+            }
+        }
+
+        transactionParams.originTransactionRequestBytes = readBytes(buffer);
+        return transactionParams;
+    }
+
+    private static boolean isBinary(byte[] bytes) {
+        if (bytes.length < MAGIC.length + 1) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (bytes[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws Exception {
+        if (bytes == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer) throws Exception {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > buffer.remaining()) {
+            throw new Exception("Truncated TransactionParams, length: " + length);
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
     }
 
     public TransactionRequest getOriginTransactionRequest() {
+        if (originTransactionRequest == null && originTransactionRequestBytes != null) {
+            try {
+                originTransactionRequest =
+                        objectMapper.readValue(
+                                originTransactionRequestBytes, TransactionRequest.class);
+                originTransactionRequestBytes = null;
+            } catch (Exception e) {
+                throw new IllegalStateException("Decode originTransactionRequest failed: " + e);
+            }
+        }
         return originTransactionRequest;
     }
 
     public void setOriginTransactionRequest(TransactionRequest originTransactionRequest) {
         this.originTransactionRequest = originTransactionRequest;
+        this.originTransactionRequestBytes = null;
     }
 
     public byte[] getData() {
@@ -65,9 +181,12 @@ public class TransactionParams {
 
     @Override
     public String toString() {
+        // the origin request is not decoded here, its JSON may be broken
         return "TransactionParams{"
                 + "originTransactionRequest="
-                + originTransactionRequest
+                + (originTransactionRequest != null || originTransactionRequestBytes == null
+                        ? originTransactionRequest
+                        : "(" + originTransactionRequestBytes.length + " bytes)")
                 + ", data="
                 + Arrays.toString(data)
                 + ", orgNames="
@@ -0,0 +1,119 @@
+package com.webank.wecross.stub.fabric2.block;
+
+import com.webank.wecross.stub.fabric2.BlockVerifierContext;
+import com.webank.wecross.stub.fabric2.FabricBlock;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Memo of the parsed blocks keyed by block number and the digest of the block bytes, so that the
+ * transactions committed in the same block share one parse, one valid tx set and one verification.
+ * A block of the same header but other data or metadata is another entry. The oldest blocks are
+ * evicted first.
+ */
+public class BlockMemo {
+    public static final int DEFAULT_MAX_BLOCKS = 32;
+
+    public static class Entry {
+        private final FabricBlock fabricBlock;
+        private final Set<String> validTxs;
+        private volatile BlockVerifierContext verifiedContext; // verified with this context
+
+        Entry(FabricBlock fabricBlock) {
+            Set<String> validTxs = fabricBlock.getValidTxs();
+            this.fabricBlock = fabricBlock;
+            this.validTxs = validTxs == null ? Collections.emptySet() : validTxs;
+        }
+
+        public FabricBlock getFabricBlock() {
+            return fabricBlock;
+        }
+
+        /** The bytes the entry was parsed from */
+        public byte[] getBlockBytes() {
+            return fabricBlock.getBlockBytes();
+        }
+
+        public Set<String> getValidTxs() {
+            return validTxs;
+        }
+
+        public boolean isVerified(BlockVerifierContext context) {
+            return context != null && context == verifiedContext;
+        }
+
+        public void markVerified(BlockVerifierContext context) {
+            this.verifiedContext = context;
+        }
+    }
+
+    private final int maxBlocks;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Queue<String> order = new ConcurrentLinkedQueue<>();
+
+    public BlockMemo() {
+        this(DEFAULT_MAX_BLOCKS);
+    }
+
+    public BlockMemo(int maxBlocks) {
+        this.maxBlocks = maxBlocks;
+    }
+
+    /**
+     * Get the parsed block, or parse it. Concurrent callers of the same block may parse it at the
+     * same time, the first one put is kept.
+     *
+     * @param blockHash expected hash of the block header, not checked if null
+     */
+    public Entry getOrParse(long blockNumber, String blockHash, byte[] blockBytes)
+            throws Exception {
+        String key = blockNumber + ":" + FabricBlock.digestOf(blockBytes);
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            check(blockNumber, blockHash, entry.fabricBlock);
+            return entry;
+        }
+
+        // parsed outside the map, so that a large block does not block its bin
+        FabricBlock fabricBlock = FabricBlock.encode(blockBytes);
+        check(blockNumber, blockHash, fabricBlock);
+        Entry parsed = new Entry(fabricBlock);
+        entry = entries.putIfAbsent(key, parsed);
+        if (entry != null) {
+            return entry;
+        }
+
+        order.add(key);
+        while (order.size() > maxBlocks) {
+            String oldest = order.poll();
+            if (oldest != null) {
+                entries.remove(oldest);
+            }
+        }
+        return parsed;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private static void check(long blockNumber, String blockHash, FabricBlock fabricBlock)
+            throws Exception {
+        if (fabricBlock.getHeader().getNumber() != blockNumber
+                || (blockHash != null && !blockHash.equals(fabricBlock.getHash()))) {
+            throw new Exception(
+                    "Block "
+                            + blockNumber
+                            + " mismatch, number: "
+                            + fabricBlock.getHeader().getNumber()
+                            + ", hash: "
+                            + fabricBlock.getHash()
+                            + ", expected hash: "
+                            + blockHash);
+        }
+    }
+}
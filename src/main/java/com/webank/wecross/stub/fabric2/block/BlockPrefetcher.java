@@ -0,0 +1,189 @@
+package com.webank.wecross.stub.fabric2.block;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fetches the blocks following a sequential access pattern ahead of the requests. When block n is
+ * requested right after block n - 1, the next blocks (up to window, and not beyond the latest
+ * block) are fetched in parallel. The prefetched blocks are bounded in memory, and dropped when the
+ * access pattern stops being sequential.
+ */
+public class BlockPrefetcher {
+    private static final Logger logger = LoggerFactory.getLogger(BlockPrefetcher.class);
+
+    public interface BlockProcessor {
+        // Called in the prefetch thread after a block has been fetched, e.g. to verify it
+        void process(long blockNumber, byte[] blockBytes) throws Exception;
+    }
+
+    private final RecentBlockCache.BlockLoader loader;
+    private final Executor executor;
+    private final int window;
+    private final long maxBytes;
+    private BlockProcessor processor;
+
+    private final Map<Long, CompletableFuture<byte[]>> prefetchedBlocks = new ConcurrentHashMap<>();
+    private final AtomicLong prefetchedBytes = new AtomicLong(0);
+
+    private long lastRequestedNumber = -1;
+    private boolean sequential = false;
+    private long latestBlockNumber = 0;
+
+    public BlockPrefetcher(
+            RecentBlockCache.BlockLoader loader, Executor executor, int window, long maxBytes) {
+        this.loader = loader;
+        this.executor = executor;
+        this.window = window;
+        this.maxBytes = maxBytes;
+    }
+
+    public void setProcessor(BlockProcessor processor) {
+        this.processor = processor;
+    }
+
+    /**
+     * Take a prefetched block, waits up to timeout if it is still being fetched
+     *
+     * @param timeout max milliseconds to wait for the prefetch
+     * @return null if the block has not been prefetched, the prefetch failed or is not done in time
+     */
+    public byte[] take(long blockNumber, long timeout) {
+        CompletableFuture<byte[]> future = prefetchedBlocks.remove(blockNumber);
+        if (future == null) {
+            return null;
+        }
+
+        try {
+            byte[] blockBytes = future.get(timeout, TimeUnit.MILLISECONDS);
+            prefetchedBytes.addAndGet(-blockBytes.length);
+            return blockBytes;
+        } catch (TimeoutException e) {
+            logger.debug("Prefetch block {} is not done in {}ms", blockNumber, timeout);
+            release(future);
+            return null;
+        } catch (Exception e) {
+            logger.debug("Prefetch block {} failed, e: {}", blockNumber, e.getMessage());
+            return null;
+        }
+    }
+
+    // Record a block request, prefetch the following blocks if the access is sequential
+    public synchronized void onRequest(long blockNumber) {
+        boolean isNext =
+                lastRequestedNumber >= 0
+                        && (blockNumber == lastRequestedNumber + 1
+                                || blockNumber == lastRequestedNumber);
+        lastRequestedNumber = blockNumber;
+
+        if (!isNext) {
+            if (sequential) {
+                logger.debug("Block access is not sequential any more, cancel prefetching");
+            }
+            sequential = false;
+            cancelPrefetch(Long.MAX_VALUE);
+            return;
+        }
+
+        sequential = true;
+        cancelPrefetch(blockNumber); // drop the blocks have been skipped
+        prefetch();
+    }
+
+    // Called when a new block is committed, more blocks may be prefetched
+    public synchronized void onNewBlock(long blockNumber) {
+        if (blockNumber > latestBlockNumber) {
+            latestBlockNumber = blockNumber;
+            if (sequential) {
+                prefetch();
+            }
+        }
+    }
+
+    public int getPrefetchedCount() {
+        return prefetchedBlocks.size();
+    }
+
+    public long getPrefetchedBytes() {
+        return prefetchedBytes.get();
+    }
+
+    private void prefetch() {
+        long end = Math.min(lastRequestedNumber + window, latestBlockNumber);
+        for (long number = lastRequestedNumber + 1; number <= end; number++) {
+            if (prefetchedBytes.get() >= maxBytes) {
+                logger.debug("Prefetched blocks reach memory limit, stop prefetching");
+                return;
+            }
+            if (prefetchedBlocks.containsKey(number)) {
+                continue;
+            }
+
+            CompletableFuture<byte[]> future = new CompletableFuture<>();
+            prefetchedBlocks.put(number, future);
+            long blockNumber = number;
+            try {
+                executor.execute(() -> fetch(blockNumber, future));
+            } catch (Exception e) {
+                logger.debug("Prefetch block {} rejected, e: {}", blockNumber, e.getMessage());
+                prefetchedBlocks.remove(blockNumber);
+                return;
+            }
+        }
+    }
+
+    private void fetch(long blockNumber, CompletableFuture<byte[]> future) {
+        if (future.isCancelled()) {
+            return;
+        }
+
+        try {
+            byte[] blockBytes = loader.load(blockNumber);
+            if (processor != null) {
+                try {
+                    processor.process(blockNumber, blockBytes);
+                } catch (Exception e) {
+                    logger.warn("Process prefetched block {} exception: ", blockNumber, e);
+                }
+            }
+
+            // only count the blocks which are still wanted
+            if (future.complete(blockBytes)) {
+                prefetchedBytes.addAndGet(blockBytes.length);
+            }
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+            prefetchedBlocks.remove(blockNumber, future);
+        }
+    }
+
+    // Drop the prefetched blocks lower than the number
+    private void cancelPrefetch(long number) {
+        Iterator<Map.Entry<Long, CompletableFuture<byte[]>>> iterator =
+                prefetchedBlocks.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Long, CompletableFuture<byte[]>> entry = iterator.next();
+            if (entry.getKey() >= number) {
+                continue;
+            }
+
+            iterator.remove();
+            release(entry.getValue());
+        }
+    }
+
+    // Cancel a prefetch removed from the map, or uncount its block if it is done
+    private void release(CompletableFuture<byte[]> future) {
+        if (!future.cancel(false) && !future.isCompletedExceptionally()) {
+            prefetchedBytes.addAndGet(-future.join().length);
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package com.webank.wecross.stub.fabric2.block;
+
+import com.webank.wecross.stub.fabric2.FabricInnerFunction;
+import io.grpc.ManagedChannel;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.hyperledger.fabric.protos.common.Common;
+import org.hyperledger.fabric.protos.orderer.Ab;
+import org.hyperledger.fabric.protos.peer.DeliverGrpc;
+import org.hyperledger.fabric.protos.peer.EventsPackage;
+import org.hyperledger.fabric.sdk.Channel;
+import org.hyperledger.fabric.sdk.HFClient;
+import org.hyperledger.fabric.sdk.Peer;
+import org.hyperledger.fabric.sdk.transaction.ProtoUtils;
+import org.hyperledger.fabric.sdk.transaction.TransactionContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fetches a contiguous range of blocks with one seek of the peer deliver service, instead of one
+ * QSCC proposal per block.
+ */
+public class BlockRangeFetcher {
+    private static final Logger logger = LoggerFactory.getLogger(BlockRangeFetcher.class);
+
+    public static final int MAX_RANGE_SIZE = 1000;
+
+    private final HFClient hfClient;
+    private final Channel channel;
+    private final FabricInnerFunction fabricInnerFunction;
+
+    // peer url => grpc channel and client tls certificate digest
+    private final Map<String, Map.Entry<ManagedChannel, byte[]>> peerChannels =
+            new ConcurrentHashMap<>();
+
+    public BlockRangeFetcher(
+            HFClient hfClient, Channel channel, FabricInnerFunction fabricInnerFunction) {
+        this.hfClient = hfClient;
+        this.channel = channel;
+        this.fabricInnerFunction = fabricInnerFunction;
+    }
+
+    /** Fetch blocks [start, end] from the peer, the blocks must have been committed */
+    public List<byte[]> fetch(Peer peer, long start, long end, long timeout) throws Exception {
+        if (start < 0 || end < start || end - start + 1 > MAX_RANGE_SIZE) {
+            throw new Exception(
+                    "Illegal block range: [" + start + ", " + end + "], max: " + MAX_RANGE_SIZE);
+        }
+
+        Map.Entry<ManagedChannel, byte[]> peerChannel = getPeerChannel(peer);
+
+        TransactionContext transactionContext =
+                new TransactionContext(
+                        channel, hfClient.getUserContext(), hfClient.getCryptoSuite());
+        Common.Envelope seekEnvelope =
+                ProtoUtils.createSeekInfoEnvelope(
+                        transactionContext,
+                        seekPosition(start),
+                        seekPosition(end),
+                        Ab.SeekInfo.SeekBehavior.FAIL_IF_NOT_READY,
+                        peerChannel.getValue());
+
+        List<byte[]> blocks = new ArrayList<>((int) (end - start + 1));
+        CompletableFuture<List<byte[]>> future = new CompletableFuture<>();
+        StreamObserver<Common.Envelope> requestObserver =
+                DeliverGrpc.newStub(peerChannel.getKey())
+                        .deliver(
+                                new StreamObserver<EventsPackage.DeliverResponse>() {
+                                    @Override
+                                    public void onNext(EventsPackage.DeliverResponse response) {
+                                        if (response.hasBlock()) {
+                                            blocks.add(response.getBlock().toByteArray());
+                                        } else if (response.getStatus() == Common.Status.SUCCESS) {
+                                            future.complete(blocks);
+                                        } else {
+                                            future.completeExceptionally(
+                                                    new Exception(
+                                                            "Deliver blocks failed, status: "
+                                                                    + response.getStatus()));
+                                        }
+                                    }
+
+                                    @Override
+                                    public void onError(Throwable t) {
+                                        future.completeExceptionally(t);
+                                    }
+
+                                    @Override
+                                    public void onCompleted() {
+                                        future.complete(blocks);
+                                    }
+                                });
+
+        boolean done = false;
+        try {
+            requestObserver.onNext(seekEnvelope);
+            List<byte[]> result = future.get(timeout, TimeUnit.MILLISECONDS);
+            done = true;
+            if (result.size() != end - start + 1) {
+                throw new Exception(
+                        "Deliver blocks incomplete, expected: "
+                                + (end - start + 1)
+                                + ", received: "
+                                + result.size());
+            }
+            return result;
+        } finally {
+            if (done) {
+                requestObserver.onCompleted();
+            } else if (requestObserver instanceof ClientCallStreamObserver) {
+                // timed out or failed, stop the peer from sending the rest of the range
+                ((ClientCallStreamObserver<Common.Envelope>) requestObserver)
+                        .cancel("Deliver blocks aborted", null);
+            }
+        }
+    }
+
+    /** Close the deliver channels, called when the connection is shut down */
+    public void shutdown() {
+        for (Map.Entry<ManagedChannel, byte[]> peerChannel : peerChannels.values()) {
+            peerChannel.getKey().shutdownNow();
+        }
+        peerChannels.clear();
+    }
+
+    private Map.Entry<ManagedChannel, byte[]> getPeerChannel(Peer peer) throws Exception {
+        Map.Entry<ManagedChannel, byte[]> peerChannel = peerChannels.get(peer.getUrl());
+        if (peerChannel == null || peerChannel.getKey().isShutdown()) {
+            peerChannel = fabricInnerFunction.newPeerManagedChannel(peer);
+            peerChannels.put(peer.getUrl(), peerChannel);
+            logger.info("Create deliver channel to peer {}", peer.getUrl());
+        }
+        return peerChannel;
+    }
+
+    private static Ab.SeekPosition seekPosition(long blockNumber) {
+        return Ab.SeekPosition.newBuilder()
+                .setSpecified(Ab.SeekSpecified.newBuilder().setNumber(blockNumber).build())
+                .build();
+    }
+
+    // Request data: start(8) | end(8)
+    public static byte[] encodeRange(long start, long end) {
+        return ByteBuffer.allocate(16).putLong(start).putLong(end).array();
+    }
+
+    public static long[] decodeRange(byte[] data) {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        return new long[] {buffer.getLong(), buffer.getLong()};
+    }
+
+    // Response data: count(4) | length(4) | block | length(4) | block ...
+    public static byte[] encodeBlocks(List<byte[]> blocks) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(blocks.size());
+        for (byte[] block : blocks) {
+            out.writeInt(block.length);
+            out.write(block);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    public static List<byte[]> decodeBlocks(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        int count = in.readInt();
+        List<byte[]> blocks = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] block = new byte[in.readInt()];
+            in.readFully(block);
+            blocks.add(block);
+        }
+        return blocks;
+    }
+}
@@ -0,0 +1,249 @@
+package com.webank.wecross.stub.fabric2.block;
+
+import com.webank.wecross.stub.fabric2.FabricBlock;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.codec.binary.Hex;
+import org.hyperledger.fabric.protos.common.Common;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Local store of the channel blocks. Blocks are appended to segment files (blocks-N.dat) and
+ * located by an index file (blocks.idx) of fixed size records, reads go through memory-mapped
+ * segments. A block is only stored if its hash links with the stored neighbours, a stored block of
+ * a different hash is replaced by appending a new record, the latest record of a number wins.
+ *
+ * <p>Index record: number(8) | segment(4) | offset(8) | length(4) | hash(32) | prevHash(32)
+ */
+public class BlockStore {
+    private static final Logger logger = LoggerFactory.getLogger(BlockStore.class);
+
+    public static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+
+    private static final String INDEX_FILE = "blocks.idx";
+    private static final int HASH_SIZE = 32;
+    private static final int INDEX_RECORD_SIZE = 8 + 4 + 8 + 4 + HASH_SIZE + HASH_SIZE;
+
+    private static class Location {
+        private final int segment;
+        private final long offset;
+        private final int length;
+        private final byte[] hash;
+        private final byte[] prevHash;
+
+        Location(int segment, long offset, int length, byte[] hash, byte[] prevHash) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.hash = hash;
+            this.prevHash = prevHash;
+        }
+    }
+
+    private final File dir;
+    private final long segmentSize;
+    private final Map<Long, Location> index = new HashMap<>();
+    private final List<FileChannel> segments = new ArrayList<>();
+    private final List<MappedByteBuffer> mappedSegments = new ArrayList<>();
+    private FileChannel indexChannel;
+
+    private BlockStore(File dir, long segmentSize) {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+    }
+
+    public static BlockStore open(String path) throws IOException {
+        return open(path, DEFAULT_SEGMENT_SIZE);
+    }
+
+    public static BlockStore open(String path, long segmentSize) throws IOException {
+        File dir = new File(path);
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Could not create block store directory: " + path);
+        }
+
+        BlockStore blockStore = new BlockStore(dir, segmentSize);
+        blockStore.load();
+        logger.info("Block store {} opened with {} blocks", path, blockStore.size());
+        return blockStore;
+    }
+
+    private void load() throws IOException {
+        for (int i = 0; new File(dir, segmentName(i)).exists(); i++) {
+            segments.add(openSegment(i));
+            mappedSegments.add(null);
+        }
+
+        indexChannel = new RandomAccessFile(new File(dir, INDEX_FILE), "rw").getChannel();
+        long validSize = indexChannel.size() - indexChannel.size() % INDEX_RECORD_SIZE;
+        ByteBuffer record = ByteBuffer.allocate(INDEX_RECORD_SIZE);
+        for (long position = 0; position < validSize; position += INDEX_RECORD_SIZE) {
+            record.clear();
+            indexChannel.read(record, position);
+            record.flip();
+
+            long number = record.getLong();
+            int segment = record.getInt();
+            long offset = record.getLong();
+            int length = record.getInt();
+            byte[] hash = new byte[HASH_SIZE];
+            byte[] prevHash = new byte[HASH_SIZE];
+            record.get(hash);
+            record.get(prevHash);
+
+            if (segment >= segments.size() || offset + length > segments.get(segment).size()) {
+                // the block data was not written completely
+                validSize = position;
+                break;
+            }
+            index.put(number, new Location(segment, offset, length, hash, prevHash));
+        }
+
+        // drop the broken tail written before a crash
+        indexChannel.truncate(validSize);
+        indexChannel.position(validSize);
+    }
+
+    public synchronized boolean contains(long blockNumber) {
+        return index.containsKey(blockNumber);
+    }
+
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /** @return null if the block is not stored */
+    public synchronized byte[] get(long blockNumber) throws IOException {
+        Location location = index.get(blockNumber);
+        if (location == null) {
+            return null;
+        }
+
+        MappedByteBuffer mapped = mappedSegments.get(location.segment);
+        if (mapped == null || mapped.capacity() < location.offset + location.length) {
+            // map again, the segment may have grown
+            FileChannel segment = segments.get(location.segment);
+            mapped = segment.map(FileChannel.MapMode.READ_ONLY, 0, segment.size());
+            mappedSegments.set(location.segment, mapped);
+        }
+
+        byte[] blockBytes = new byte[location.length];
+        ByteBuffer view = mapped.duplicate();
+        view.position((int) location.offset);
+        view.get(blockBytes);
+        return blockBytes;
+    }
+
+    /**
+     * Append a block to the store, or replace the stored block of the same number and a different
+     * hash
+     *
+     * @return false if the block is stored already or does not link with its stored neighbours
+     */
+    public boolean put(long blockNumber, byte[] blockBytes) throws Exception {
+        return put(blockNumber, blockBytes, Common.Block.parseFrom(blockBytes));
+    }
+
+    /** For a block parsed already, block must be parsed from blockBytes */
+    public synchronized boolean put(long blockNumber, byte[] blockBytes, Common.Block block)
+            throws Exception {
+        if (block.getHeader().getNumber() != blockNumber) {
+            logger.warn(
+                    "Block number mismatch, expected: {}, actual: {}",
+                    blockNumber,
+                    block.getHeader().getNumber());
+            return false;
+        }
+
+        byte[] hash = Hex.decodeHex(FabricBlock.calculateBlockHashString(block));
+        byte[] prevHash = block.getHeader().getPreviousHash().toByteArray();
+        if (hash.length != HASH_SIZE || (blockNumber > 0 && prevHash.length != HASH_SIZE)) {
+            logger.warn("Unexpected hash size of block {}", blockNumber);
+            return false;
+        }
+        if (prevHash.length == 0) {
+            prevHash = new byte[HASH_SIZE]; // genesis block
+        }
+
+        Location stored = index.get(blockNumber);
+        if (stored != null) {
+            if (Arrays.equals(stored.hash, hash)) {
+                return false;
+            }
+            logger.warn("Replace stored block {} of a different hash", blockNumber);
+        }
+
+        Location prev = index.get(blockNumber - 1);
+        if (prev != null && !Arrays.equals(prev.hash, prevHash)) {
+            logger.warn("Block {} does not link with the stored previous block", blockNumber);
+            return false;
+        }
+        Location next = index.get(blockNumber + 1);
+        if (next != null && !Arrays.equals(next.prevHash, hash)) {
+            logger.warn("Block {} does not link with the stored next block", blockNumber);
+            return false;
+        }
+
+        int segmentIndex = segments.size() - 1;
+        if (segmentIndex < 0 || segments.get(segmentIndex).size() >= segmentSize) {
+            segmentIndex++;
+            segments.add(openSegment(segmentIndex));
+            mappedSegments.add(null);
+        }
+
+        // data first, so that an index record never points to missing data
+        FileChannel segment = segments.get(segmentIndex);
+        long offset = segment.size();
+        ByteBuffer data = ByteBuffer.wrap(blockBytes);
+        while (data.hasRemaining()) {
+            segment.write(data, offset + data.position());
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(INDEX_RECORD_SIZE);
+        record.putLong(blockNumber);
+        record.putInt(segmentIndex);
+        record.putLong(offset);
+        record.putInt(blockBytes.length);
+        record.put(hash);
+        record.put(prevHash);
+        record.flip();
+        while (record.hasRemaining()) {
+            indexChannel.write(record);
+        }
+
+        index.put(
+                blockNumber, new Location(segmentIndex, offset, blockBytes.length, hash, prevHash));
+        return true;
+    }
+
+    public synchronized void close() {
+        try {
+            for (FileChannel segment : segments) {
+                segment.close();
+            }
+            if (indexChannel != null) {
+                indexChannel.close();
+            }
+        } catch (IOException e) {
+            logger.warn("Close block store exception: ", e);
+        }
+    }
+
+    private FileChannel openSegment(int segment) throws IOException {
+        return new RandomAccessFile(new File(dir, segmentName(segment)), "rw").getChannel();
+    }
+
+    private static String segmentName(int segment) {
+        return "blocks-" + segment + ".dat";
+    }
+}
@@ -0,0 +1,199 @@
+package com.webank.wecross.stub.fabric2.block;
+
+import com.google.protobuf.ByteString;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import org.hyperledger.fabric.protos.common.Common;
+import org.hyperledger.fabric.protos.peer.TransactionPackage;
+import org.hyperledger.fabric.sdk.BlockEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Completes the commit futures of the transactions sent to the orderer from the blocks of the
+ * channel, instead of one SDK tx listener per transaction. Each block is walked once and the
+ * pending txIDs are looked up in a concurrent map. Timeouts are handled in bulk by expire().
+ */
+public class CommitDispatcher {
+    private static final Logger logger = LoggerFactory.getLogger(CommitDispatcher.class);
+
+    public static class Commit {
+        private final String txID;
+        private final long blockNumber;
+        private final int validationCode;
+
+        public Commit(String txID, long blockNumber, int validationCode) {
+            this.txID = txID;
+            this.blockNumber = blockNumber;
+            this.validationCode = validationCode;
+        }
+
+        public String getTxID() {
+            return txID;
+        }
+
+        public long getBlockNumber() {
+            return blockNumber;
+        }
+
+        public int getValidationCode() {
+            return validationCode;
+        }
+
+        public boolean isValid() {
+            return validationCode == TransactionPackage.TxValidationCode.VALID_VALUE;
+        }
+
+        @Override
+        public String toString() {
+            return "Commit{txID="
+                    + txID
+                    + ", blockNumber="
+                    + blockNumber
+                    + ", validationCode="
+                    + validationCode
+                    + '}';
+        }
+    }
+
+    private static class Pending {
+        private final CompletableFuture<Commit> future = new CompletableFuture<>();
+        private final long deadline;
+
+        Pending(long deadline) {
+            this.deadline = deadline;
+        }
+    }
+
+    private final String channelName;
+    private final Map<String, Pending> pendings = new ConcurrentHashMap<>();
+    private final AtomicLong committedCount = new AtomicLong(0);
+    private final AtomicLong timeoutCount = new AtomicLong(0);
+
+    public CommitDispatcher(String channelName) {
+        this.channelName = channelName;
+    }
+
+    /** Wait for the commit of a transaction, register it before sending it to the orderer */
+    public CompletableFuture<Commit> register(String txID, long timeout) {
+        Pending pending = new Pending(System.currentTimeMillis() + timeout);
+        Pending old = pendings.putIfAbsent(txID, pending);
+        if (old != null) {
+            return old.future;
+        }
+        return pending.future;
+    }
+
+    // Stop waiting for the transaction, e.g. the orderer refused it
+    public void cancel(String txID) {
+        pendings.remove(txID);
+    }
+
+    public void onBlockEvent(BlockEvent blockEvent) {
+        if (pendings.isEmpty()) {
+            return;
+        }
+
+        if (blockEvent.isFiltered()) {
+            for (BlockEvent.TransactionEvent transactionEvent : blockEvent.getTransactionEvents()) {
+                complete(
+                        transactionEvent.getTransactionID(),
+                        blockEvent.getBlockNumber(),
+                        transactionEvent.getValidationCode());
+            }
+        } else {
+            onBlock(blockEvent.getBlock());
+        }
+    }
+
+    // Walk the txIDs and the tx filter of the block once
+    public void onBlock(Common.Block block) {
+        if (pendings.isEmpty()) {
+            return;
+        }
+
+        long blockNumber = block.getHeader().getNumber();
+        ByteString txFilter =
+                block.getMetadata().getMetadataCount()
+                                > Common.BlockMetadataIndex.TRANSACTIONS_FILTER_VALUE
+                        ? block.getMetadata()
+                                .getMetadata(Common.BlockMetadataIndex.TRANSACTIONS_FILTER_VALUE)
+                        : ByteString.EMPTY;
+
+        for (int i = 0; i < block.getData().getDataCount(); i++) {
+            try {
+                Common.Envelope envelope = Common.Envelope.parseFrom(block.getData().getData(i));
+                Common.Payload payload = Common.Payload.parseFrom(envelope.getPayload());
+                String txID =
+                        Common.ChannelHeader.parseFrom(payload.getHeader().getChannelHeader())
+                                .getTxId();
+                int validationCode =
+                        i < txFilter.size()
+                                ? txFilter.byteAt(i) & 0xFF
+                                : TransactionPackage.TxValidationCode.NOT_VALIDATED_VALUE;
+                complete(txID, blockNumber, validationCode);
+            } catch (Exception e) {
+                logger.debug("Dispatch tx {} of block {} exception: ", i, blockNumber, e);
+            }
+        }
+    }
+
+    private void complete(String txID, long blockNumber, int validationCode) {
+        Pending pending = pendings.remove(txID);
+        if (pending == null) {
+            return; // not sent by us, or delivered by another peer already
+        }
+
+        committedCount.incrementAndGet();
+        pending.future.complete(new Commit(txID, blockNumber, validationCode));
+    }
+
+    /**
+     * Fail the pending transactions whose deadline has passed
+     *
+     * @return number of the expired transactions
+     */
+    public int expire(long now) {
+        int expired = 0;
+        Iterator<Map.Entry<String, Pending>> iterator = pendings.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Pending> entry = iterator.next();
+            if (entry.getValue().deadline > now) {
+                continue;
+            }
+
+            iterator.remove();
+            entry.getValue()
+                    .future
+                    .completeExceptionally(
+                            new TimeoutException("Wait commit of " + entry.getKey() + " timeout"));
+            expired++;
+        }
+
+        if (expired > 0) {
+            timeoutCount.addAndGet(expired);
+            logger.warn(
+                    "Channel {} {} transactions commit timeout, in flight: {}",
+                    channelName,
+                    expired,
+                    pendings.size());
+        }
+        return expired;
+    }
+
+    public int getInFlightCount() {
+        return pendings.size();
+    }
+
+    public long getCommittedCount() {
+        return committedCount.get();
+    }
+
+    public long getTimeoutCount() {
+        return timeoutCount.get();
+    }
+}
@@ -0,0 +1,110 @@
+package com.webank.wecross.stub.fabric2.block;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the latest blocks of the channel in memory, bounded both in number of blocks and in bytes.
+ * When the cache is full the lowest block is evicted first. Concurrent loads of the same missing
+ * block are collapsed into one query.
+ */
+public class RecentBlockCache {
+    private static final Logger logger = LoggerFactory.getLogger(RecentBlockCache.class);
+
+    public static final int DEFAULT_MAX_BLOCKS = 64;
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    public interface BlockLoader {
+        byte[] load(long blockNumber) throws Exception;
+    }
+
+    private final int maxBlocks;
+    private final long maxBytes;
+
+    private final TreeMap<Long, byte[]> blocks = new TreeMap<>();
+    private long totalBytes = 0;
+
+    private final Map<Long, CompletableFuture<byte[]>> loadingBlocks = new ConcurrentHashMap<>();
+
+    public RecentBlockCache() {
+        this(DEFAULT_MAX_BLOCKS, DEFAULT_MAX_BYTES);
+    }
+
+    public RecentBlockCache(int maxBlocks, long maxBytes) {
+        this.maxBlocks = maxBlocks;
+        this.maxBytes = maxBytes;
+    }
+
+    public synchronized byte[] get(long blockNumber) {
+        return blocks.get(blockNumber);
+    }
+
+    public synchronized void put(long blockNumber, byte[] blockBytes) {
+        if (maxBlocks <= 0 || blockBytes == null || blockBytes.length > maxBytes) {
+            return;
+        }
+
+        byte[] old = blocks.put(blockNumber, blockBytes);
+        if (old != null) {
+            totalBytes -= old.length;
+        }
+        totalBytes += blockBytes.length;
+
+        while (blocks.size() > maxBlocks || totalBytes > maxBytes) {
+            Map.Entry<Long, byte[]> lowest = blocks.pollFirstEntry();
+            totalBytes -= lowest.getValue().length;
+        }
+    }
+
+    /**
+     * Get the block from the cache, or load it with the loader. Only one of the concurrent callers
+     * of the same missing block runs the loader, the others wait for its result.
+     */
+    public byte[] getOrLoad(long blockNumber, BlockLoader loader) throws Exception {
+        byte[] blockBytes = get(blockNumber);
+        if (blockBytes != null) {
+            return blockBytes;
+        }
+
+        CompletableFuture<byte[]> future = new CompletableFuture<>();
+        CompletableFuture<byte[]> loading = loadingBlocks.putIfAbsent(blockNumber, future);
+        if (loading != null) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Block {} is loading, wait for it", blockNumber);
+            }
+            try {
+                return loading.get();
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+        }
+
+        try {
+            blockBytes = get(blockNumber); // may be put just before we got the future
+            if (blockBytes == null) {
+                blockBytes = loader.load(blockNumber);
+                put(blockNumber, blockBytes);
+            }
+            future.complete(blockBytes);
+            return blockBytes;
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            loadingBlocks.remove(blockNumber);
+        }
+    }
+
+    public synchronized int size() {
+        return blocks.size();
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+}
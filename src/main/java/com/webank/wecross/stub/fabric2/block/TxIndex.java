@@ -0,0 +1,357 @@
+package com.webank.wecross.stub.fabric2.block;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.codec.binary.Hex;
+import org.hyperledger.fabric.protos.common.Common;
+import org.hyperledger.fabric.protos.peer.TransactionPackage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Index of txID => (block number, tx index, validation code), built from the blocks delivered to
+ * the connection. The txIDs (hex of sha256) are kept as 32 bytes in an open addressing hash table,
+ * and each entry is packed in a long. When maxEntries is reached, the older half of the blocks is
+ * dropped from the index.
+ *
+ * <p>If opened with a path, entries are appended to a file (txID(32) | entry(8)) and loaded back on
+ * open.
+ */
+public class TxIndex {
+    private static final Logger logger = LoggerFactory.getLogger(TxIndex.class);
+
+    public static final int DEFAULT_MAX_ENTRIES = 1000000;
+    public static final long NOT_FOUND = -1;
+
+    private static final String INDEX_FILE = "txindex.dat";
+    private static final int TX_ID_SIZE = 32;
+    private static final int RECORD_SIZE = TX_ID_SIZE + 8;
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int MAX_TX_INDEX = 0xFFFF;
+
+    // entry: blockNumber(39) | txIndex(16) | validationCode(8), the top bit marks a used slot
+    private static final long USED = 1L << 63;
+
+    private final int maxEntries;
+    private byte[] keys = new byte[INITIAL_CAPACITY * TX_ID_SIZE];
+    private long[] entries = new long[INITIAL_CAPACITY];
+    private int size = 0;
+
+    private File file; // null: not persisted
+    private FileChannel fileChannel;
+
+    public TxIndex() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    public TxIndex(int maxEntries) {
+        this.maxEntries = Math.max(maxEntries, 2);
+    }
+
+    public static TxIndex open(String path, int maxEntries) throws IOException {
+        File dir = new File(path);
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Could not create tx index directory: " + path);
+        }
+
+        TxIndex txIndex = new TxIndex(maxEntries);
+        txIndex.load(new File(dir, INDEX_FILE));
+        logger.info("Tx index {} opened with {} transactions", path, txIndex.size());
+        return txIndex;
+    }
+
+    private void load(File indexFile) throws IOException {
+        fileChannel = new RandomAccessFile(indexFile, "rw").getChannel();
+        long validSize = fileChannel.size() - fileChannel.size() % RECORD_SIZE;
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        byte[] txID = new byte[TX_ID_SIZE];
+        for (long position = 0; position < validSize; position += RECORD_SIZE) {
+            record.clear();
+            fileChannel.read(record, position);
+            record.flip();
+            record.get(txID);
+            put(txID, record.getLong());
+        }
+
+        // drop the broken tail written before a crash
+        fileChannel.truncate(validSize);
+        fileChannel.position(validSize);
+        file = indexFile;
+    }
+
+    public static long getBlockNumber(long entry) {
+        return (entry & ~USED) >>> 24;
+    }
+
+    public static int getTxIndex(long entry) {
+        return (int) ((entry >>> 8) & MAX_TX_INDEX);
+    }
+
+    public static int getValidationCode(long entry) {
+        return (int) (entry & 0xFF);
+    }
+
+    public static boolean isValid(long entry) {
+        return getValidationCode(entry) == TransactionPackage.TxValidationCode.VALID_VALUE;
+    }
+
+    public static boolean isValidated(long entry) {
+        return getValidationCode(entry) != TransactionPackage.TxValidationCode.NOT_VALIDATED_VALUE;
+    }
+
+    /** @return the entry of the txID, or NOT_FOUND */
+    public synchronized long get(String txID) {
+        byte[] key = decodeTxID(txID);
+        if (key == null) {
+            return NOT_FOUND;
+        }
+
+        int slot = findSlot(keys, entries, key);
+        return entries[slot] == 0 ? NOT_FOUND : entries[slot];
+    }
+
+    /**
+     * Index the transactions of a block
+     *
+     * @return number of the transactions indexed
+     */
+    public int indexBlock(Common.Block block) {
+        List<String> txIDs = new ArrayList<>(block.getData().getDataCount());
+        for (int i = 0; i < block.getData().getDataCount(); i++) {
+            try {
+                Common.Envelope envelope = Common.Envelope.parseFrom(block.getData().getData(i));
+                Common.Payload payload = Common.Payload.parseFrom(envelope.getPayload());
+                Common.ChannelHeader channelHeader =
+                        Common.ChannelHeader.parseFrom(payload.getHeader().getChannelHeader());
+                txIDs.add(channelHeader.getTxId());
+            } catch (Exception e) {
+                logger.debug(
+                        "Index tx {} of block {} exception: ", i, block.getHeader().getNumber(), e);
+                txIDs.add(null);
+            }
+        }
+
+        byte[] txFilter =
+                block.getMetadata().getMetadataCount()
+                                > Common.BlockMetadataIndex.TRANSACTIONS_FILTER_VALUE
+                        ? block.getMetadata()
+                                .getMetadata(Common.BlockMetadataIndex.TRANSACTIONS_FILTER_VALUE)
+                                .toByteArray()
+                        : new byte[0];
+        return indexBlock(block.getHeader().getNumber(), txIDs, txFilter);
+    }
+
+    /**
+     * Index the transactions of a block decoded already
+     *
+     * @param txIDs txID of each transaction in block order, null if it can't be decoded
+     * @param txFilter validation code of each transaction
+     * @return number of the transactions indexed
+     */
+    public synchronized int indexBlock(long blockNumber, List<String> txIDs, byte[] txFilter) {
+        int count = 0;
+        int txCount = Math.min(txIDs.size(), MAX_TX_INDEX + 1);
+        for (int i = 0; i < txCount; i++) {
+            byte[] key = decodeTxID(txIDs.get(i));
+            if (key == null) {
+                continue; // config transactions may have no txID
+            }
+
+            int validationCode =
+                    i < txFilter.length
+                            ? txFilter[i] & 0xFF
+                            : TransactionPackage.TxValidationCode.NOT_VALIDATED_VALUE;
+            long entry = USED | (blockNumber << 24) | ((long) i << 8) | validationCode;
+            if (put(key, entry)) {
+                append(key, entry);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized void close() {
+        if (fileChannel == null) {
+            return;
+        }
+
+        try {
+            fileChannel.close();
+        } catch (IOException e) {
+            logger.warn("Close tx index exception: ", e);
+        }
+    }
+
+    // @return false if the txID has been indexed with a valid entry already
+    private boolean put(byte[] key, long entry) {
+        int slot = findSlot(keys, entries, key);
+        if (entries[slot] != 0) {
+            // a duplicated txID is invalid, keep the first valid one
+            if (isValid(entries[slot]) || entries[slot] == entry) {
+                return false;
+            }
+            entries[slot] = entry;
+            return true;
+        }
+
+        if (size >= maxEntries) {
+            evictOlderBlocks();
+        }
+        if ((size + 1) * 4 > entries.length * 3) {
+            resize(entries.length * 2);
+        }
+
+        slot = findSlot(keys, entries, key);
+        System.arraycopy(key, 0, keys, slot * TX_ID_SIZE, TX_ID_SIZE);
+        entries[slot] = entry;
+        size++;
+        return true;
+    }
+
+    private void resize(int capacity) {
+        byte[] newKeys = new byte[capacity * TX_ID_SIZE];
+        long[] newEntries = new long[capacity];
+        byte[] key = new byte[TX_ID_SIZE];
+        for (int i = 0; i < entries.length; i++) {
+            if (entries[i] == 0) {
+                continue;
+            }
+            System.arraycopy(keys, i * TX_ID_SIZE, key, 0, TX_ID_SIZE);
+            int slot = findSlot(newKeys, newEntries, key);
+            System.arraycopy(key, 0, newKeys, slot * TX_ID_SIZE, TX_ID_SIZE);
+            newEntries[slot] = entries[i];
+        }
+        keys = newKeys;
+        entries = newEntries;
+    }
+
+    // Drop the entries of the older half of the indexed blocks
+    private void evictOlderBlocks() {
+        long minBlock = Long.MAX_VALUE;
+        long maxBlock = 0;
+        for (long entry : entries) {
+            if (entry != 0) {
+                minBlock = Math.min(minBlock, getBlockNumber(entry));
+                maxBlock = Math.max(maxBlock, getBlockNumber(entry));
+            }
+        }
+        long keepFrom =
+                minBlock == maxBlock ? maxBlock + 1 : minBlock + (maxBlock - minBlock) / 2 + 1;
+
+        int before = size;
+        for (int i = 0; i < entries.length; i++) {
+            if (entries[i] != 0 && getBlockNumber(entries[i]) < keepFrom) {
+                entries[i] = 0;
+                size--;
+            }
+        }
+        resize(entries.length); // rehash, removed slots break the probing chains
+        logger.info(
+                "Tx index is full, drop {} transactions before block {}", before - size, keepFrom);
+
+        if (file != null) {
+            compact();
+        }
+    }
+
+    // Rewrite the index file with the remaining entries
+    private void compact() {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try (FileChannel tmpChannel = new RandomAccessFile(tmpFile, "rw").getChannel()) {
+            tmpChannel.truncate(0);
+            ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+            for (int i = 0; i < entries.length; i++) {
+                if (entries[i] == 0) {
+                    continue;
+                }
+                record.clear();
+                record.put(keys, i * TX_ID_SIZE, TX_ID_SIZE);
+                record.putLong(entries[i]);
+                record.flip();
+                while (record.hasRemaining()) {
+                    tmpChannel.write(record);
+                }
+            }
+            tmpChannel.force(false);
+
+            fileChannel.close();
+            Files.move(
+                    tmpFile.toPath(),
+                    file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            fileChannel = new RandomAccessFile(file, "rw").getChannel();
+            fileChannel.position(fileChannel.size());
+        } catch (IOException e) {
+            logger.warn("Compact tx index exception, stop persisting: ", e);
+            file = null;
+            fileChannel = null;
+        }
+    }
+
+    private void append(byte[] key, long entry) {
+        if (fileChannel == null || file == null) {
+            return;
+        }
+
+        try {
+            ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+            record.put(key);
+            record.putLong(entry);
+            record.flip();
+            while (record.hasRemaining()) {
+                fileChannel.write(record);
+            }
+        } catch (IOException e) {
+            logger.warn("Append tx index exception: ", e);
+        }
+    }
+
+    // Linear probing, the txIDs are hashes already so their first bytes are used as the hash
+    private static int findSlot(byte[] keys, long[] entries, byte[] key) {
+        int mask = entries.length - 1;
+        int slot =
+                ((key[0] & 0xFF) << 24
+                                | (key[1] & 0xFF) << 16
+                                | (key[2] & 0xFF) << 8
+                                | key[3] & 0xFF)
+                        & mask;
+        while (entries[slot] != 0 && !keyEquals(keys, slot, key)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static boolean keyEquals(byte[] keys, int slot, byte[] key) {
+        int offset = slot * TX_ID_SIZE;
+        for (int i = 0; i < TX_ID_SIZE; i++) {
+            if (keys[offset + i] != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] decodeTxID(String txID) {
+        if (txID == null || txID.length() != TX_ID_SIZE * 2) {
+            return null;
+        }
+
+        try {
+            return Hex.decodeHex(txID);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
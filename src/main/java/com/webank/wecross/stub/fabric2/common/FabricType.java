@@ -17,6 +17,7 @@ public class FabricType {
         public static final int FABRIC_GET_BLOCK = 2005;
         public static final int FABRIC_GET_TRANSACTION = 2006;
         public static final int FABRIC_SENDTRANSACTION_ORG_ENDORSER = 2007;
+        public static final int FABRIC_GET_BLOCK_RANGE = 2008;
     }
 
     public static class Resource {
@@ -44,6 +45,7 @@ public class FabricType {
         public static final int INTERNAL_ERROR = 3101;
         public static final int ILLEGAL_REQUEST_TYPE = 3102;
         public static final int RESOURCE_NOT_FOUND = 3103;
+        public static final int REQUEST_TIMEOUT = 3104;
     }
 
     public static org.hyperledger.fabric.sdk.TransactionRequest.Type stringTochainCodeType(
@@ -0,0 +1,291 @@
+package com.webank.wecross.stub.fabric2.endorser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+import org.hyperledger.fabric.protos.common.MspPrincipal;
+import org.hyperledger.fabric.protos.common.Policies;
+import org.hyperledger.fabric.protos.peer.Policy;
+
+/**
+ * Endorsement policy of a chaincode, from the validation parameter of its lifecycle definition.
+ *
+ * <p>A signature policy is evaluated to find the smallest set of peers that satisfies it. Like the
+ * policy evaluator of the peers, each principal needs the signature of a distinct peer, so that
+ * OutOf(2, 'Org1.peer', 'Org1.member') needs two peers of Org1. Only the MEMBER and PEER roles of
+ * an org are known to be satisfied by any peer of the org, the other principals (e.g. admins,
+ * identities and OUs) are taken as unsatisfiable, and a policy unsatisfiable with them falls back
+ * to all the endorsers.
+ *
+ * <p>A channel config policy reference (e.g. /Channel/Application/Endorsement) cannot be evaluated
+ * without the channel config, so one peer of each org is selected for it, which satisfies ANY,
+ * MAJORITY and ALL of the orgs.
+ *
+ * <p>A transaction sent by the proxy chaincode writes to the namespaces of the proxy and the target
+ * chaincodes, whose policies are all checked by the validator. The policies combined by {@link
+ * #allOf} are satisfied when each of them is, by the same peers.
+ */
+public class EndorsementPolicy {
+    private Policies.SignaturePolicyEnvelope signaturePolicy; // null: policy reference
+    // msp of each principal of the policy, null if a peer of the msp may not satisfy it
+    private List<String> principalMspIDs = new ArrayList<>();
+    private List<EndorsementPolicy> policies; // not null: all of them are needed
+
+    private EndorsementPolicy() {}
+
+    /** @return the policy satisfied by all the policies, null if any of them is unknown */
+    public static EndorsementPolicy allOf(EndorsementPolicy... policies) {
+        for (EndorsementPolicy policy : policies) {
+            if (policy == null) {
+                return null;
+            }
+        }
+        if (policies.length == 1) {
+            return policies[0];
+        }
+
+        EndorsementPolicy policy = new EndorsementPolicy();
+        policy.policies = Arrays.asList(policies);
+        return policy;
+    }
+
+    /** @param validationParameter serialized ApplicationPolicy, null or empty for the default */
+    public static EndorsementPolicy parse(byte[] validationParameter) throws Exception {
+        EndorsementPolicy policy = new EndorsementPolicy();
+        if (validationParameter == null || validationParameter.length == 0) {
+            return policy;
+        }
+
+        Policy.ApplicationPolicy applicationPolicy =
+                Policy.ApplicationPolicy.parseFrom(validationParameter);
+        if (!applicationPolicy.hasSignaturePolicy()) {
+            return policy;
+        }
+
+        policy.signaturePolicy = applicationPolicy.getSignaturePolicy();
+        for (MspPrincipal.MSPPrincipal principal : policy.signaturePolicy.getIdentitiesList()) {
+            policy.principalMspIDs.add(getPeerMspID(principal));
+        }
+        return policy;
+    }
+
+    public static EndorsementPolicy parse(Policies.SignaturePolicyEnvelope signaturePolicy)
+            throws Exception {
+        return parse(
+                Policy.ApplicationPolicy.newBuilder()
+                        .setSignaturePolicy(signaturePolicy)
+                        .build()
+                        .toByteArray());
+    }
+
+    public boolean isSignaturePolicy() {
+        if (policies != null) {
+            for (EndorsementPolicy policy : policies) {
+                if (!policy.isSignaturePolicy()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return signaturePolicy != null;
+    }
+
+    /**
+     * Select the least loaded peers of the smallest set of peers satisfying the policy
+     *
+     * @return the selected peers, or all the peers if the policy can't be satisfied by them
+     */
+    public <P> List<P> select(
+            Collection<P> peers, Function<P, String> mspOf, ToIntFunction<P> loadOf) {
+        // the peers of each org, the least loaded first
+        Map<String, List<P>> orgPeers = new LinkedHashMap<>();
+        for (P peer : peers) {
+            orgPeers.computeIfAbsent(mspOf.apply(peer), k -> new ArrayList<>()).add(peer);
+        }
+        for (List<P> sameOrgPeers : orgPeers.values()) {
+            sameOrgPeers.sort(Comparator.comparingInt(loadOf));
+        }
+
+        Map<String, Integer> available = new LinkedHashMap<>();
+        Map<String, Integer> orgLoads = new HashMap<>();
+        for (Map.Entry<String, List<P>> entry : orgPeers.entrySet()) {
+            available.put(entry.getKey(), entry.getValue().size());
+            orgLoads.put(entry.getKey(), loadOf.applyAsInt(entry.getValue().get(0)));
+        }
+        // peers to select of each org
+        Map<String, Integer> orgCounts = requiredPeers(available, orgLoads);
+        if (orgCounts == null || orgCounts.isEmpty()) {
+            return new ArrayList<>(peers);
+        }
+
+        List<P> selected = new ArrayList<>();
+        for (Map.Entry<String, Integer> entry : orgCounts.entrySet()) {
+            selected.addAll(orgPeers.get(entry.getKey()).subList(0, entry.getValue()));
+        }
+        return selected;
+    }
+
+    /**
+     * Whether the endorsements satisfy the policy
+     *
+     * @param endorsements number of distinct endorsing peers of each org
+     * @param orgs all the orgs asked, a policy reference needs all of them
+     */
+    public boolean isSatisfiedBy(Map<String, Integer> endorsements, Set<String> orgs) {
+        if (policies != null) {
+            for (EndorsementPolicy policy : policies) {
+                if (!policy.isSatisfiedBy(endorsements, orgs)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (signaturePolicy == null) {
+            return endorsements.keySet().containsAll(orgs);
+        }
+
+        Map<String, Integer> orgLoads = new HashMap<>();
+        for (String org : endorsements.keySet()) {
+            orgLoads.put(org, 0);
+        }
+        return satisfy(signaturePolicy.getRule(), endorsements, orgLoads) != null;
+    }
+
+    // The fewest peers of each org satisfying the policy with the available peers, null if
+    // unsatisfiable
+    private Map<String, Integer> requiredPeers(
+            Map<String, Integer> available, Map<String, Integer> orgLoads) {
+        if (policies != null) {
+            // a peer endorses the transaction for all the policies
+            Map<String, Integer> orgCounts = new LinkedHashMap<>();
+            for (EndorsementPolicy policy : policies) {
+                Map<String, Integer> policyOrgCounts = policy.requiredPeers(available, orgLoads);
+                if (policyOrgCounts == null) {
+                    return null;
+                }
+                policyOrgCounts.forEach((org, count) -> orgCounts.merge(org, count, Math::max));
+            }
+            return orgCounts;
+        }
+
+        if (signaturePolicy == null) {
+            Map<String, Integer> orgCounts = new LinkedHashMap<>();
+            for (String org : available.keySet()) {
+                orgCounts.put(org, 1);
+            }
+            return orgCounts;
+        }
+        return satisfy(signaturePolicy.getRule(), available, orgLoads);
+    }
+
+    // The fewest peers of each org satisfying the rule with the available peers, null if
+    // unsatisfiable
+    private Map<String, Integer> satisfy(
+            Policies.SignaturePolicy rule,
+            Map<String, Integer> available,
+            Map<String, Integer> orgLoads) {
+        if (rule.getTypeCase() == Policies.SignaturePolicy.TypeCase.SIGNED_BY) {
+            int index = rule.getSignedBy();
+            if (index < 0 || index >= principalMspIDs.size()) {
+                return null;
+            }
+
+            String mspID = principalMspIDs.get(index);
+            if (mspID == null || available.getOrDefault(mspID, 0) < 1) {
+                return null;
+            }
+            Map<String, Integer> orgCounts = new HashMap<>();
+            orgCounts.put(mspID, 1);
+            return orgCounts;
+        }
+
+        if (rule.getTypeCase() != Policies.SignaturePolicy.TypeCase.N_OUT_OF) {
+            return null;
+        }
+
+        List<Map<String, Integer>> candidates = new ArrayList<>();
+        for (Policies.SignaturePolicy subRule : rule.getNOutOf().getRulesList()) {
+            Map<String, Integer> orgCounts = satisfy(subRule, available, orgLoads);
+            if (orgCounts != null) {
+                candidates.add(orgCounts);
+            }
+        }
+
+        int n = rule.getNOutOf().getN();
+        if (candidates.size() < n) {
+            return null;
+        }
+
+        // greedy: the sub rules needing the fewest peers first, then the least loaded ones. A
+        // peer signs for one principal only, so the peers of the sub rules add up.
+        candidates.sort(
+                Comparator.comparingInt((Map<String, Integer> orgCounts) -> peerCount(orgCounts))
+                        .thenComparingInt(orgCounts -> load(orgCounts, orgLoads)));
+        Map<String, Integer> selected = new HashMap<>();
+        int satisfied = 0;
+        for (Map<String, Integer> orgCounts : candidates) {
+            if (satisfied == n) {
+                break;
+            }
+            if (fits(selected, orgCounts, available)) {
+                orgCounts.forEach((org, count) -> selected.merge(org, count, Integer::sum));
+                satisfied++;
+            }
+        }
+        return satisfied == n ? selected : null;
+    }
+
+    private static int peerCount(Map<String, Integer> orgCounts) {
+        int count = 0;
+        for (int orgCount : orgCounts.values()) {
+            count += orgCount;
+        }
+        return count;
+    }
+
+    private static int load(Map<String, Integer> orgCounts, Map<String, Integer> orgLoads) {
+        int load = 0;
+        for (Map.Entry<String, Integer> entry : orgCounts.entrySet()) {
+            load += entry.getValue() * orgLoads.get(entry.getKey());
+        }
+        return load;
+    }
+
+    private static boolean fits(
+            Map<String, Integer> selected,
+            Map<String, Integer> orgCounts,
+            Map<String, Integer> available) {
+        for (Map.Entry<String, Integer> entry : orgCounts.entrySet()) {
+            int count = selected.getOrDefault(entry.getKey(), 0) + entry.getValue();
+            if (count > available.getOrDefault(entry.getKey(), 0)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The msp whose every peer satisfies the principal, null if unknown
+    private static String getPeerMspID(MspPrincipal.MSPPrincipal principal) throws Exception {
+        if (principal.getPrincipalClassification()
+                != MspPrincipal.MSPPrincipal.Classification.ROLE) {
+            return null; // e.g. an identity or an OU, not every peer of the org has it
+        }
+
+        MspPrincipal.MSPRole role = MspPrincipal.MSPRole.parseFrom(principal.getPrincipal());
+        switch (role.getRole()) {
+            case MEMBER:
+            case PEER:
+                return role.getMspIdentifier();
+            default:
+                return null; // e.g. admin or client, not signed by the peers
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.webank.wecross.stub.fabric2.endorser;
+
+import com.webank.wecross.stub.fabric2.timeout.LatencyTracker;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends a read-only query to one peer instead of all the endorsers. The peer with the lowest median
+ * latency is asked first. If it has not answered after the hedge delay (a percentile of its own
+ * latency), the next peer is asked too, and the first success is returned. A failed answer moves to
+ * the next peer at once.
+ */
+public class HedgedQuery {
+    private static final Logger logger = LoggerFactory.getLogger(HedgedQuery.class);
+
+    public static final double DEFAULT_HEDGE_PERCENTILE = 0.95;
+    public static final long DEFAULT_HEDGE_DELAY = 50; // ms, before enough samples of the peer
+    public static final long MIN_HEDGE_DELAY = 5; // ms
+    public static final int MIN_SAMPLES = 16;
+
+    private static class Result<R> {
+        private final R response;
+        private final Exception exception;
+
+        Result(R response, Exception exception) {
+            this.response = response;
+            this.exception = exception;
+        }
+    }
+
+    private final Map<String, LatencyTracker> latencies = new ConcurrentHashMap<>(); // by peer
+    private final Executor executor;
+    private final double hedgePercentile;
+
+    public HedgedQuery(Executor executor) {
+        this(executor, DEFAULT_HEDGE_PERCENTILE);
+    }
+
+    public HedgedQuery(Executor executor, double hedgePercentile) {
+        this.executor = executor;
+        this.hedgePercentile = hedgePercentile;
+    }
+
+    public LatencyTracker getLatency(String key) {
+        return latencies.computeIfAbsent(key, k -> new LatencyTracker());
+    }
+
+    public long getHedgeDelay(String key) {
+        LatencyTracker latency = getLatency(key);
+        if (latency.getCount() < MIN_SAMPLES) {
+            return DEFAULT_HEDGE_DELAY;
+        }
+        return Math.max(latency.getPercentile(hedgePercentile), MIN_HEDGE_DELAY);
+    }
+
+    /** The peers from the lowest median latency, the peers not asked yet come first */
+    public <P> List<P> rank(Collection<P> peers, Function<P, String> keyOf) {
+        List<P> ranked = new ArrayList<>(peers);
+        Collections.shuffle(ranked);
+
+        // snapshot the medians, they change while sorting
+        Map<P, Long> medians = new HashMap<>();
+        for (P peer : ranked) {
+            medians.put(peer, getLatency(keyOf.apply(peer)).getPercentile(0.5));
+        }
+        ranked.sort(Comparator.comparingLong(medians::get));
+        return ranked;
+    }
+
+    /**
+     * Query the peers until one of them succeeds
+     *
+     * @return the first success only, or all the failed responses
+     * @throws TimeoutException no success in timeout ms
+     */
+    public <P, R> List<R> query(
+            Collection<P> peers,
+            Function<P, String> keyOf,
+            ProposalSender<P, R> sender,
+            Predicate<R> isSuccess,
+            long timeout)
+            throws Exception {
+        long deadline = System.currentTimeMillis() + timeout;
+        List<P> ranked = rank(peers, keyOf);
+        BlockingQueue<Result<R>> results = new LinkedBlockingQueue<>();
+        List<R> failedResponses = new ArrayList<>();
+        Exception lastException = null;
+
+        int next = 0;
+        int outstanding = 0;
+        long hedgeAt = 0;
+        while (outstanding > 0 || next < ranked.size()) {
+            long now = System.currentTimeMillis();
+            if (now >= deadline) {
+                throw new TimeoutException("Query peers timeout, asked: " + next);
+            }
+
+            if (next < ranked.size() && (outstanding == 0 || now >= hedgeAt)) {
+                P peer = ranked.get(next++);
+                if (outstanding > 0) {
+                    logger.debug("Hedge query to {}", keyOf.apply(peer));
+                }
+                outstanding++;
+                send(peer, keyOf, sender, isSuccess, results, timeout);
+                hedgeAt = now + getHedgeDelay(keyOf.apply(peer));
+                continue;
+            }
+
+            long wait = (next < ranked.size() ? Math.min(hedgeAt, deadline) : deadline) - now;
+            Result<R> result = results.poll(wait, TimeUnit.MILLISECONDS);
+            if (result == null) {
+                continue; // hedge or timeout
+            }
+
+            outstanding--;
+            if (result.exception == null && isSuccess.test(result.response)) {
+                return Collections.singletonList(result.response);
+            }
+
+            if (result.exception != null) {
+                lastException = result.exception;
+            } else {
+                failedResponses.add(result.response);
+            }
+            hedgeAt = 0; // ask the next peer at once
+        }
+
+        if (failedResponses.isEmpty() && lastException != null) {
+            throw lastException;
+        }
+        return failedResponses;
+    }
+
+    private <P, R> void send(
+            P peer,
+            Function<P, String> keyOf,
+            ProposalSender<P, R> sender,
+            Predicate<R> isSuccess,
+            BlockingQueue<Result<R>> results,
+            long timeout) {
+        executor.execute(
+                () -> {
+                    LatencyTracker latency = getLatency(keyOf.apply(peer));
+                    long start = System.currentTimeMillis();
+                    try {
+                        R response = sender.send(peer);
+                        // a failed peer is recorded as slow as the timeout, not ranked first
+                        latency.record(
+                                isSuccess.test(response)
+                                        ? System.currentTimeMillis() - start
+                                        : timeout);
+                        results.add(new Result<>(response, null));
+                    } catch (Exception e) {
+                        logger.debug("Query peer {} exception: ", keyOf.apply(peer), e);
+                        latency.record(timeout);
+                        results.add(new Result<>(null, e));
+                    }
+                });
+    }
+}
@@ -0,0 +1,124 @@
+package com.webank.wecross.stub.fabric2.endorser;
+
+import com.webank.wecross.stub.fabric2.timeout.LatencyTracker;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends a proposal to the peers in parallel and returns as soon as the successful responses are
+ * enough (e.g. they satisfy the endorsement policy), instead of waiting for the slowest peer. The
+ * responses arriving after that are only recorded in the latency of their peers.
+ */
+public class ProposalFanOut {
+    private static final Logger logger = LoggerFactory.getLogger(ProposalFanOut.class);
+
+    private final Map<String, LatencyTracker> latencies = new ConcurrentHashMap<>(); // by peer
+    private final AtomicLong lateCount = new AtomicLong(0);
+    private final Executor executor;
+
+    public ProposalFanOut(Executor executor) {
+        this.executor = executor;
+    }
+
+    public LatencyTracker getLatency(String key) {
+        return latencies.computeIfAbsent(key, k -> new LatencyTracker());
+    }
+
+    // responses arrived after their fan-out had returned
+    public long getLateCount() {
+        return lateCount.get();
+    }
+
+    /**
+     * Send to all the peers
+     *
+     * @param isEnough whether the successful responses so far are enough to return
+     * @return the responses arrived before returning, all of them if never enough
+     * @throws TimeoutException no response in timeout ms
+     */
+    public <P, R> List<R> send(
+            Collection<P> peers,
+            Function<P, String> keyOf,
+            ProposalSender<P, R> sender,
+            Predicate<R> isSuccess,
+            Predicate<List<R>> isEnough,
+            long timeout)
+            throws Exception {
+        long deadline = System.currentTimeMillis() + timeout;
+        BlockingQueue<Object> results = new LinkedBlockingQueue<>(); // response or exception
+        AtomicBoolean returned = new AtomicBoolean(false);
+
+        for (P peer : peers) {
+            executor.execute(
+                    () -> {
+                        long start = System.currentTimeMillis();
+                        Object result;
+                        try {
+                            result = sender.send(peer);
+                        } catch (Exception e) {
+                            logger.debug("Send proposal to {} exception: ", keyOf.apply(peer), e);
+                            result = e;
+                        }
+
+                        getLatency(keyOf.apply(peer)).record(System.currentTimeMillis() - start);
+                        if (returned.get()) {
+                            lateCount.incrementAndGet();
+                        }
+                        results.add(result);
+                    });
+        }
+
+        List<R> responses = new ArrayList<>();
+        List<R> successResponses = new ArrayList<>();
+        Exception lastException = null;
+        try {
+            for (int received = 0; received < peers.size(); received++) {
+                long wait = deadline - System.currentTimeMillis();
+                Object result = wait > 0 ? results.poll(wait, TimeUnit.MILLISECONDS) : null;
+                if (result == null) {
+                    break; // timeout, return what we have
+                }
+
+                if (result instanceof Exception) {
+                    lastException = (Exception) result;
+                    continue;
+                }
+
+                @SuppressWarnings("unchecked")
+                R response = (R) result;
+                responses.add(response);
+                if (isSuccess.test(response)) {
+                    successResponses.add(response);
+                    if (received + 1 < peers.size() && isEnough.test(successResponses)) {
+                        logger.debug(
+                                "Enough endorsements, skip {} peers", peers.size() - received - 1);
+                        return responses;
+                    }
+                }
+            }
+        } finally {
+            returned.set(true);
+        }
+
+        if (responses.isEmpty()) {
+            throw lastException != null
+                    ? lastException
+                    : new TimeoutException("Send proposal timeout, peers: " + peers.size());
+        }
+        return responses;
+    }
+}
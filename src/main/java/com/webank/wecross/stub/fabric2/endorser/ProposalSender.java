@@ -0,0 +1,6 @@
+package com.webank.wecross.stub.fabric2.endorser;
+
+/** Sends a proposal to one peer and waits for its response */
+public interface ProposalSender<P, R> {
+    R send(P peer) throws Exception;
+}
@@ -0,0 +1,352 @@
+package com.webank.wecross.stub.fabric2.endorser;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import org.hyperledger.fabric.protos.common.Common;
+import org.hyperledger.fabric.protos.ledger.rwset.Rwset;
+import org.hyperledger.fabric.protos.ledger.rwset.kvrwset.KvRwset;
+import org.hyperledger.fabric.protos.peer.ProposalPackage;
+import org.hyperledger.fabric.protos.peer.ProposalResponsePackage;
+import org.hyperledger.fabric.protos.peer.TransactionPackage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Caches the results of the chaincode queries of the opted-in resources, keyed by signer, resource,
+ * method and args. An entry is dropped when a valid transaction of a block writes to one of the
+ * chaincodes (rwset namespaces) it read, or when it is older than maxStaleBlocks or maxStaleMillis.
+ * The time bound covers a query peer lagging behind the listened one on a quiet chain. The entries
+ * are bounded in number and in bytes, the least recently used one is evicted first.
+ */
+public class QueryResultCache {
+    private static final Logger logger = LoggerFactory.getLogger(QueryResultCache.class);
+
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+    public static final long DEFAULT_MAX_BYTES = 16L * 1024 * 1024;
+    public static final long DEFAULT_MAX_STALE_BLOCKS = 10;
+    public static final long DEFAULT_MAX_STALE_MILLIS = 10000;
+
+    public static class Entry {
+        private final byte[] result;
+        private final String[] namespaces;
+        private final long blockNumber; // the latest block when it was queried
+        private final long createTime;
+
+        Entry(byte[] result, String[] namespaces, long blockNumber, long createTime) {
+            this.result = result;
+            this.namespaces = namespaces;
+            this.blockNumber = blockNumber;
+            this.createTime = createTime;
+        }
+
+        public byte[] getResult() {
+            return result;
+        }
+
+        public long getBlockNumber() {
+            return blockNumber;
+        }
+
+        private long size(String key) {
+            return result.length + key.length() * 2L;
+        }
+    }
+
+    private final Set<String> resources; // opted-in resources
+    private final int maxEntries;
+    private final long maxBytes;
+    private final long maxStaleBlocks;
+    private final long maxStaleMillis;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Integer> namespaceEntries = new HashMap<>(); // entries by namespace
+    private final Map<String, Long> namespaceWrites = new HashMap<>(); // latest write sequence
+    private long totalBytes = 0;
+    private long writeSequence = 0; // increased by each invalidation
+    private long allWriteSequence = 0; // latest invalidation of all the namespaces
+    private volatile long latestBlockNumber = 0;
+
+    private final AtomicLong hitCount = new AtomicLong(0);
+    private final AtomicLong missCount = new AtomicLong(0);
+    private final AtomicLong invalidationCount = new AtomicLong(0);
+    private final AtomicLong evictionCount = new AtomicLong(0);
+
+    public QueryResultCache(Collection<String> resources) {
+        this(resources, DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES, DEFAULT_MAX_STALE_BLOCKS);
+    }
+
+    public QueryResultCache(
+            Collection<String> resources, int maxEntries, long maxBytes, long maxStaleBlocks) {
+        this(resources, maxEntries, maxBytes, maxStaleBlocks, DEFAULT_MAX_STALE_MILLIS);
+    }
+
+    public QueryResultCache(
+            Collection<String> resources,
+            int maxEntries,
+            long maxBytes,
+            long maxStaleBlocks,
+            long maxStaleMillis) {
+        this.resources = new HashSet<>(resources);
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.maxStaleBlocks = maxStaleBlocks;
+        this.maxStaleMillis = maxStaleMillis;
+    }
+
+    public boolean isCached(String resource) {
+        return resources.contains(resource);
+    }
+
+    /** The signer is part of the key, a chaincode may answer differently by the caller identity */
+    public static String keyOf(
+            String signer, String resource, String method, String[] args, Object options) {
+        StringBuilder key =
+                new StringBuilder(128)
+                        .append(signer)
+                        .append('\n')
+                        .append(resource)
+                        .append('\n')
+                        .append(method);
+        if (args != null) {
+            for (String arg : args) {
+                key.append('\n').append(arg.length()).append(':').append(arg);
+            }
+        }
+        if (options != null) {
+            key.append('\n').append(options);
+        }
+        return key.toString();
+    }
+
+    public synchronized Entry get(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null
+                && (latestBlockNumber - entry.blockNumber > maxStaleBlocks
+                        || System.currentTimeMillis() - entry.createTime > maxStaleMillis)) {
+            remove(key);
+            entry = null;
+        }
+
+        if (entry == null) {
+            missCount.incrementAndGet();
+        } else {
+            hitCount.incrementAndGet();
+        }
+        return entry;
+    }
+
+    /** Take before querying, a result is not put if its namespaces were written since then */
+    public synchronized long getWriteSequence() {
+        return writeSequence;
+    }
+
+    public synchronized void put(
+            String key, byte[] result, long writeSequence, String... namespaces) {
+        if (result == null
+                || maxEntries <= 0
+                || result.length > maxBytes
+                || allWriteSequence > writeSequence) {
+            return;
+        }
+        for (String namespace : namespaces) {
+            if (namespaceWrites.getOrDefault(namespace, 0L) > writeSequence) {
+                return; // written while querying, the result may be stale
+            }
+        }
+
+        remove(key);
+        Entry entry = new Entry(result, namespaces, latestBlockNumber, System.currentTimeMillis());
+        entries.put(key, entry);
+        totalBytes += entry.size(key);
+        for (String namespace : namespaces) {
+            namespaceEntries.merge(namespace, 1, Integer::sum);
+        }
+
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while ((entries.size() > maxEntries || totalBytes > maxBytes) && iterator.hasNext()) {
+            Map.Entry<String, Entry> eldest = iterator.next();
+            iterator.remove();
+            onRemoved(eldest.getKey(), eldest.getValue());
+            evictionCount.incrementAndGet();
+        }
+    }
+
+    /** Drop the entries of the chaincodes written by the valid transactions of the block */
+    public void onBlock(Common.Block block) {
+        long blockNumber = block.getHeader().getNumber();
+        Set<String> namespaces = getWrittenNamespaces(block);
+        synchronized (this) {
+            if (latestBlockNumber < blockNumber) {
+                latestBlockNumber = blockNumber;
+            }
+            if (namespaces != null) {
+                invalidate(namespaces);
+            } else {
+                invalidateAll();
+            }
+        }
+    }
+
+    /** For filtered blocks without rwsets, drop all if any transaction is valid */
+    public synchronized void onFilteredBlock(long blockNumber, boolean hasValidTransaction) {
+        if (latestBlockNumber < blockNumber) {
+            latestBlockNumber = blockNumber;
+        }
+        if (hasValidTransaction) {
+            invalidateAll();
+        }
+    }
+
+    // The written chaincodes are unknown, drop everything
+    private void invalidateAll() {
+        writeSequence++;
+        allWriteSequence = writeSequence;
+        invalidationCount.addAndGet(entries.size());
+        entries.clear();
+        namespaceEntries.clear();
+        totalBytes = 0;
+    }
+
+    private void invalidate(Set<String> namespaces) {
+        if (namespaces.isEmpty()) {
+            return;
+        }
+
+        writeSequence++;
+        boolean cached = false;
+        for (String namespace : namespaces) {
+            namespaceWrites.put(namespace, writeSequence);
+            cached |= namespaceEntries.containsKey(namespace);
+        }
+        if (!cached) {
+            return;
+        }
+
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Entry> entry = iterator.next();
+            for (String namespace : entry.getValue().namespaces) {
+                if (namespaces.contains(namespace)) {
+                    iterator.remove();
+                    onRemoved(entry.getKey(), entry.getValue());
+                    invalidationCount.incrementAndGet();
+                    break;
+                }
+            }
+        }
+    }
+
+    private void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            onRemoved(key, entry);
+        }
+    }
+
+    private void onRemoved(String key, Entry entry) {
+        totalBytes -= entry.size(key);
+        for (String namespace : entry.namespaces) {
+            namespaceEntries.computeIfPresent(
+                    namespace, (k, count) -> count > 1 ? count - 1 : null);
+        }
+    }
+
+    // The chaincodes written by the valid endorser transactions of the block, null if unknown
+    public static Set<String> getWrittenNamespaces(Common.Block block) {
+        Set<String> namespaces = new HashSet<>();
+        byte[] txFilter =
+                block.getMetadata().getMetadataCount()
+                                > Common.BlockMetadataIndex.TRANSACTIONS_FILTER_VALUE
+                        ? block.getMetadata()
+                                .getMetadata(Common.BlockMetadataIndex.TRANSACTIONS_FILTER_VALUE)
+                                .toByteArray()
+                        : new byte[0];
+
+        for (int i = 0; i < block.getData().getDataCount(); i++) {
+            if (i < txFilter.length
+                    && txFilter[i] != TransactionPackage.TxValidationCode.VALID_VALUE) {
+                continue;
+            }
+
+            try {
+                Common.Envelope envelope = Common.Envelope.parseFrom(block.getData().getData(i));
+                Common.Payload payload = Common.Payload.parseFrom(envelope.getPayload());
+                Common.ChannelHeader channelHeader =
+                        Common.ChannelHeader.parseFrom(payload.getHeader().getChannelHeader());
+                if (channelHeader.getType() != Common.HeaderType.ENDORSER_TRANSACTION_VALUE) {
+                    continue;
+                }
+
+                TransactionPackage.Transaction transaction =
+                        TransactionPackage.Transaction.parseFrom(payload.getData());
+                for (TransactionPackage.TransactionAction action : transaction.getActionsList()) {
+                    TransactionPackage.ChaincodeActionPayload actionPayload =
+                            TransactionPackage.ChaincodeActionPayload.parseFrom(
+                                    action.getPayload());
+                    ProposalResponsePackage.ProposalResponsePayload responsePayload =
+                            ProposalResponsePackage.ProposalResponsePayload.parseFrom(
+                                    actionPayload.getAction().getProposalResponsePayload());
+                    ProposalPackage.ChaincodeAction chaincodeAction =
+                            ProposalPackage.ChaincodeAction.parseFrom(
+                                    responsePayload.getExtension());
+                    Rwset.TxReadWriteSet txReadWriteSet =
+                            Rwset.TxReadWriteSet.parseFrom(chaincodeAction.getResults());
+
+                    for (Rwset.NsReadWriteSet nsReadWriteSet : txReadWriteSet.getNsRwsetList()) {
+                        KvRwset.KVRWSet kvRWSet =
+                                KvRwset.KVRWSet.parseFrom(nsReadWriteSet.getRwset());
+                        if (kvRWSet.getWritesCount() > 0
+                                || kvRWSet.getMetadataWritesCount() > 0
+                                || nsReadWriteSet.getCollectionHashedRwsetCount() > 0) {
+                            namespaces.add(nsReadWriteSet.getNamespace());
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                logger.warn(
+                        "Parse rwset of tx {} of block {} exception: ",
+                        i,
+                        block.getHeader().getNumber(),
+                        e);
+                return null;
+            }
+        }
+        return namespaces;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public double getHitRate() {
+        long hits = hitCount.get();
+        long total = hits + missCount.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    public long getInvalidationCount() {
+        return invalidationCount.get();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+}
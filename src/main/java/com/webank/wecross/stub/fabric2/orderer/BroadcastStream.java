@@ -0,0 +1,255 @@
+package com.webank.wecross.stub.fabric2.orderer;
+
+import io.grpc.ConnectivityState;
+import io.grpc.ManagedChannel;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+import org.hyperledger.fabric.protos.common.Common;
+import org.hyperledger.fabric.protos.orderer.Ab;
+import org.hyperledger.fabric.protos.orderer.AtomicBroadcastGrpc;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A long-lived Broadcast stream to one orderer. Envelopes are written into the same stream without
+ * waiting for the previous responses. The orderer answers the envelopes of a stream in order, so
+ * each response completes the oldest in-flight envelope.
+ *
+ * <p>If the stream breaks, it is reopened and the unacknowledged envelopes are written again in
+ * their order, at most MAX_REPLAYS times for each envelope. The orderer closes the stream after
+ * rejecting an envelope, such a close is not counted as a replay of the envelopes behind it.
+ *
+ * <p>If the oldest envelope is not answered within the timeout, the stream is cancelled and all its
+ * envelopes fail, so that they can be sent to another orderer.
+ */
+public class BroadcastStream {
+    private static final Logger logger = LoggerFactory.getLogger(BroadcastStream.class);
+
+    public static final int MAX_REPLAYS = 3;
+    public static final long DEFAULT_TIMEOUT = 10000; // ms
+
+    private static class InFlight {
+        private final Common.Envelope envelope;
+        private final CompletableFuture<Ab.BroadcastResponse> future = new CompletableFuture<>();
+        private int replays = 0;
+        private long sendTime; // of the latest write
+
+        InFlight(Common.Envelope envelope) {
+            this.envelope = envelope;
+        }
+    }
+
+    private final String name;
+    private final Callable<ManagedChannel> channelFactory;
+    private final long timeout; // ms
+
+    // guarded by this
+    private ManagedChannel managedChannel;
+    private StreamObserver<Common.Envelope> requestObserver; // null: not connected
+    private int generation = 0; // callbacks of the closed streams are ignored
+    private boolean rejected = false; // the current stream has rejected an envelope
+    private final Queue<InFlight> inFlights = new ArrayDeque<>();
+    private boolean closed = false;
+
+    public BroadcastStream(String name, Callable<ManagedChannel> channelFactory) {
+        this(name, channelFactory, DEFAULT_TIMEOUT);
+    }
+
+    /** @param timeout max time in ms to wait for the response of an envelope */
+    public BroadcastStream(String name, Callable<ManagedChannel> channelFactory, long timeout) {
+        this.name = name;
+        this.channelFactory = channelFactory;
+        this.timeout = timeout;
+    }
+
+    /** Write the envelope into the stream, the future completes with the orderer response */
+    public CompletableFuture<Ab.BroadcastResponse> send(Common.Envelope envelope) {
+        InFlight inFlight = new InFlight(envelope);
+        write(inFlight);
+        return inFlight.future;
+    }
+
+    /** Check the connection to the orderer without sending anything, connect if idle */
+    public synchronized boolean probe() throws Exception {
+        if (managedChannel == null || managedChannel.isShutdown()) {
+            managedChannel = channelFactory.call();
+        }
+        return managedChannel.getState(true) == ConnectivityState.READY;
+    }
+
+    public synchronized int getInFlightCount() {
+        return inFlights.size();
+    }
+
+    /** Fail the stream if its oldest envelope has not been answered within the timeout */
+    public void expire(long now) {
+        List<InFlight> expired;
+        synchronized (this) {
+            InFlight oldest = inFlights.peek();
+            if (oldest == null || now - oldest.sendTime <= timeout) {
+                return;
+            }
+
+            ++generation; // ignore the callbacks of the cancelled stream
+            if (requestObserver instanceof ClientCallStreamObserver) {
+                ((ClientCallStreamObserver<Common.Envelope>) requestObserver)
+                        .cancel("Broadcast timeout", null);
+            }
+            requestObserver = null;
+            expired = new ArrayList<>(inFlights);
+            inFlights.clear();
+        }
+
+        logger.warn(
+                "Broadcast stream to {} timeout, fail {} envelopes, timeout: {}ms",
+                name,
+                expired.size(),
+                timeout);
+        for (InFlight inFlight : expired) {
+            inFlight.future.completeExceptionally(
+                    new TimeoutException(
+                            "Broadcast to " + name + " timeout, timeout: " + timeout + "ms"));
+        }
+    }
+
+    public void close() {
+        List<InFlight> failed;
+        synchronized (this) {
+            closed = true;
+            if (requestObserver != null) {
+                try {
+                    requestObserver.onCompleted();
+                } catch (Exception e) {
+                    logger.debug("Close broadcast stream to {} exception: ", name, e);
+                }
+                requestObserver = null;
+            }
+            if (managedChannel != null) {
+                managedChannel.shutdownNow();
+                managedChannel = null;
+            }
+            failed = new ArrayList<>(inFlights);
+            inFlights.clear();
+        }
+
+        for (InFlight inFlight : failed) {
+            inFlight.future.completeExceptionally(
+                    new Exception("Broadcast stream to " + name + " closed"));
+        }
+    }
+
+    private void write(InFlight inFlight) {
+        Exception exception = null;
+        synchronized (this) {
+            try {
+                if (closed) {
+                    throw new Exception("Broadcast stream to " + name + " closed");
+                }
+
+                if (requestObserver == null) {
+                    connect();
+                }
+                inFlight.sendTime = System.currentTimeMillis();
+                inFlights.add(inFlight);
+                requestObserver.onNext(inFlight.envelope);
+            } catch (Exception e) {
+                inFlights.remove(inFlight);
+                exception = e;
+            }
+        }
+
+        if (exception != null) {
+            inFlight.future.completeExceptionally(exception);
+        }
+    }
+
+    // guarded by this
+    private void connect() throws Exception {
+        if (managedChannel == null || managedChannel.isShutdown()) {
+            managedChannel = channelFactory.call();
+        }
+
+        int current = ++generation;
+        rejected = false;
+        requestObserver =
+                AtomicBroadcastGrpc.newStub(managedChannel)
+                        .broadcast(
+                                new StreamObserver<Ab.BroadcastResponse>() {
+                                    @Override
+                                    public void onNext(Ab.BroadcastResponse response) {
+                                        onResponse(current, response);
+                                    }
+
+                                    @Override
+                                    public void onError(Throwable t) {
+                                        onBroken(current, t);
+                                    }
+
+                                    @Override
+                                    public void onCompleted() {
+                                        onBroken(current, null);
+                                    }
+                                });
+        logger.info("Open broadcast stream to {}", name);
+    }
+
+    private void onResponse(int streamGeneration, Ab.BroadcastResponse response) {
+        InFlight inFlight;
+        synchronized (this) {
+            if (streamGeneration != generation) {
+                return;
+            }
+            inFlight = inFlights.poll();
+            if (response.getStatus() != Common.Status.SUCCESS) {
+                rejected = true; // the orderer closes the stream after the response
+            }
+        }
+
+        if (inFlight == null) {
+            logger.warn("Unexpected broadcast response from {}: {}", name, response.getStatus());
+            return;
+        }
+        inFlight.future.complete(response);
+    }
+
+    // Reopen the stream and replay the unacknowledged envelopes
+    private void onBroken(int streamGeneration, Throwable t) {
+        List<InFlight> unacknowledged;
+        boolean countReplay;
+        synchronized (this) {
+            if (streamGeneration != generation) {
+                return;
+            }
+            // a close after a reject is not a failure of the stream
+            countReplay = t != null || !rejected;
+            requestObserver = null;
+            unacknowledged = new ArrayList<>(inFlights);
+            inFlights.clear();
+        }
+
+        if (unacknowledged.isEmpty()) {
+            return;
+        }
+
+        logger.warn(
+                "Broadcast stream to {} broken, replay {} envelopes, cause: {}",
+                name,
+                unacknowledged.size(),
+                t == null ? (countReplay ? "completed by orderer" : "rejected") : t.getMessage());
+        for (InFlight inFlight : unacknowledged) {
+            if (countReplay && ++inFlight.replays > MAX_REPLAYS) {
+                inFlight.future.completeExceptionally(
+                        new Exception("Broadcast stream to " + name + " broken: " + t, t));
+            } else {
+                write(inFlight);
+            }
+        }
+    }
+}
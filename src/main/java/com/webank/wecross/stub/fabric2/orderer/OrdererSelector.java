@@ -0,0 +1,248 @@
+package com.webank.wecross.stub.fabric2.orderer;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Ranks the orderers for each envelope by the strategy:
+ *
+ * <ul>
+ *   <li>HEALTH: the lowest score = latency * (1 + ERROR_PENALTY * error rate) first. With Raft the
+ *       followers forward to the leader, so the leader usually scores best
+ *   <li>ROUND_ROBIN: the next orderer in turn first
+ *   <li>LEAST_OUTSTANDING: the orderer with the fewest envelopes waiting for a response first
+ * </ul>
+ *
+ * Each orderer keeps an EWMA of its broadcast latency and of its error rate, and a circuit breaker:
+ *
+ * <ul>
+ *   <li>CLOSED: ranked by score = latency * (1 + ERROR_PENALTY * error rate)
+ *   <li>OPEN: tripped by FAILURE_THRESHOLD consecutive failures, only tried after all the others.
+ *       probe() checks it in the background once its cooldown has passed
+ *   <li>HALF_OPEN: the probe succeeded, ranked again. The next success closes it and the next
+ *       failure opens it with a doubled cooldown
+ * </ul>
+ */
+public class OrdererSelector {
+    private static final Logger logger = LoggerFactory.getLogger(OrdererSelector.class);
+
+    public static final double ALPHA = 0.2; // weight of the latest sample
+    public static final double ERROR_PENALTY = 10;
+    public static final int FAILURE_THRESHOLD = 3;
+    public static final long MIN_COOLDOWN = 1000; // ms
+    public static final long MAX_COOLDOWN = 60000; // ms
+
+    public enum Strategy {
+        HEALTH,
+        ROUND_ROBIN,
+        LEAST_OUTSTANDING;
+
+        public static Strategy of(String name) throws Exception {
+            switch (name) {
+                case "health":
+                    return HEALTH;
+                case "roundRobin":
+                    return ROUND_ROBIN;
+                case "leastOutstanding":
+                    return LEAST_OUTSTANDING;
+                default:
+                    throw new Exception("Unknown orderer selection strategy: " + name);
+            }
+        }
+    }
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    public static class Health {
+        private double latency = 0; // ms, 0: no sample yet
+        private double errorRate = 0;
+        private int consecutiveFailures = 0;
+        private State state = State.CLOSED;
+        private long cooldown = MIN_COOLDOWN;
+        private long openUntil = 0;
+        private int outstanding = 0;
+
+        public synchronized int getOutstanding() {
+            return outstanding;
+        }
+
+        public synchronized double getLatency() {
+            return latency;
+        }
+
+        public synchronized double getErrorRate() {
+            return errorRate;
+        }
+
+        public synchronized State getState() {
+            return state;
+        }
+
+        public synchronized double getScore() {
+            return latency * (1 + ERROR_PENALTY * errorRate);
+        }
+
+        private synchronized void onSuccess(long elapsed) {
+            outstanding = Math.max(outstanding - 1, 0);
+            latency = latency == 0 ? elapsed : ALPHA * elapsed + (1 - ALPHA) * latency;
+            errorRate = (1 - ALPHA) * errorRate;
+            consecutiveFailures = 0;
+            if (state != State.CLOSED) {
+                state = State.CLOSED;
+                cooldown = MIN_COOLDOWN;
+            }
+        }
+
+        // @return true if the breaker is tripped by this failure
+        private synchronized boolean onFailure(long now) {
+            outstanding = Math.max(outstanding - 1, 0);
+            errorRate = ALPHA + (1 - ALPHA) * errorRate;
+            consecutiveFailures++;
+            if (state == State.HALF_OPEN) {
+                cooldown = Math.min(cooldown * 2, MAX_COOLDOWN);
+            } else if (state == State.OPEN || consecutiveFailures < FAILURE_THRESHOLD) {
+                return false;
+            }
+
+            state = State.OPEN;
+            openUntil = now + cooldown;
+            return true;
+        }
+
+        private synchronized boolean shouldProbe(long now) {
+            return state == State.OPEN && now >= openUntil;
+        }
+
+        private synchronized void onProbe(boolean reachable, long now) {
+            if (state != State.OPEN) {
+                return;
+            }
+
+            if (reachable) {
+                state = State.HALF_OPEN;
+            } else {
+                cooldown = Math.min(cooldown * 2, MAX_COOLDOWN);
+                openUntil = now + cooldown;
+            }
+        }
+    }
+
+    private final Map<String, Health> healths = new ConcurrentHashMap<>();
+    private final Predicate<String> prober; // is the orderer of the key reachable
+    private volatile Strategy strategy = Strategy.HEALTH;
+    private final AtomicInteger nextTurn = new AtomicInteger(0);
+
+    public OrdererSelector(Predicate<String> prober) {
+        this.prober = prober;
+    }
+
+    public void setStrategy(Strategy strategy) {
+        this.strategy = strategy;
+    }
+
+    public Strategy getStrategy() {
+        return strategy;
+    }
+
+    public Health getHealth(String key) {
+        return healths.computeIfAbsent(key, k -> new Health());
+    }
+
+    /** The candidates from the best to the worst, the tripped ones at the end */
+    public <T> List<T> rank(Collection<T> candidates, Function<T, String> keyOf) {
+        // snapshot the health, it changes while sorting
+        List<Map.Entry<T, double[]>> scored = new ArrayList<>(candidates.size());
+        for (T candidate : candidates) {
+            Health health = getHealth(keyOf.apply(candidate));
+            double open = health.getState() == State.OPEN ? 1 : 0;
+            double order;
+            switch (strategy) {
+                case ROUND_ROBIN:
+                    order = 0; // rotated below
+                    break;
+                case LEAST_OUTSTANDING:
+                    // fewest outstanding first, then the best score
+                    order = health.getOutstanding() + health.getScore() / (1 + health.getScore());
+                    break;
+                default:
+                    order = health.getScore();
+            }
+            scored.add(new AbstractMap.SimpleEntry<>(candidate, new double[] {open, order}));
+        }
+
+        if (strategy == Strategy.ROUND_ROBIN) {
+            scored.sort(Comparator.comparing(entry -> keyOf.apply(entry.getKey())));
+            Collections.rotate(
+                    scored, -Math.floorMod(nextTurn.getAndIncrement(), Math.max(scored.size(), 1)));
+        } else {
+            Collections.shuffle(scored); // break the ties, e.g. the orderers not used yet
+        }
+        // stable sort, keeps the turns of round robin
+        scored.sort(
+                Comparator.comparingDouble((Map.Entry<T, double[]> entry) -> entry.getValue()[0])
+                        .thenComparingDouble(entry -> entry.getValue()[1]));
+
+        List<T> ranked = new ArrayList<>(scored.size());
+        for (Map.Entry<T, double[]> entry : scored) {
+            ranked.add(entry.getKey());
+        }
+        return ranked;
+    }
+
+    /** An envelope is sent to the orderer, end it with onSuccess() or onFailure() */
+    public void onSend(String key) {
+        Health health = getHealth(key);
+        synchronized (health) {
+            health.outstanding++;
+        }
+    }
+
+    public void onSuccess(String key, long elapsed) {
+        getHealth(key).onSuccess(elapsed);
+    }
+
+    public void onFailure(String key) {
+        if (getHealth(key).onFailure(System.currentTimeMillis())) {
+            logger.warn("Orderer {} circuit breaker open", key);
+        }
+    }
+
+    /** Probe the tripped orderers whose cooldown has passed */
+    public void probe(long now) {
+        for (Map.Entry<String, Health> entry : healths.entrySet()) {
+            Health health = entry.getValue();
+            if (!health.shouldProbe(now)) {
+                continue;
+            }
+
+            boolean reachable;
+            try {
+                reachable = prober.test(entry.getKey());
+            } catch (Exception e) {
+                logger.debug("Probe orderer {} exception: ", entry.getKey(), e);
+                reachable = false;
+            }
+
+            health.onProbe(reachable, now);
+            if (reachable) {
+                logger.info(
+                        "Orderer {} is reachable again, circuit breaker half open", entry.getKey());
+            }
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.webank.wecross.stub.fabric2.performance;
+
+import com.webank.wecross.stub.fabric2.FabricInnerFunction;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.Properties;
+import org.hyperledger.fabric.sdk.Peer;
+
+/**
+ * Compares the cost of calling a Fabric inner function through Method.invoke and through the method
+ * handle bridge of FabricInnerFunction. The called function is the TLS digest getter of a plaintext
+ * endpoint, which does no work, so only the call overhead is measured.
+ */
+public class InnerFunctionBenchmark {
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int ROUNDS = 10;
+
+    private static final MethodHandle HANDLE;
+    private static final Method METHOD;
+    // volatile, read on every call so the JIT can't fold the calls away
+    private static volatile Object endpoint;
+
+    static {
+        try {
+            Class<?> endpointClass = Class.forName(Peer.class.getPackage().getName() + ".Endpoint");
+            HANDLE =
+                    FabricInnerFunction.resolve(endpointClass, "getClientTLSCertificateDigest")
+                            .asType(MethodType.methodType(byte[].class, Object.class));
+            METHOD = endpointClass.getDeclaredMethod("getClientTLSCertificateDigest");
+            METHOD.setAccessible(true);
+            endpoint =
+                    FabricInnerFunction.resolve(
+                                    endpointClass, "createEndpoint", String.class, Properties.class)
+                            .invoke("grpc://localhost:7051", new Properties());
+        } catch (Throwable t) {
+            throw new ExceptionInInitializerError(t);
+        }
+    }
+
+    public static void usage() {
+        System.out.println("Usage:");
+        System.out.println(
+                " \t java -cp conf/:lib/*:plugin/* "
+                        + InnerFunctionBenchmark.class.getName()
+                        + " [count]");
+        System.out.println("Example:");
+        System.out.println(
+                " \t java -cp conf/:lib/*:plugin/* "
+                        + InnerFunctionBenchmark.class.getName()
+                        + " 10000000");
+        System.exit(0);
+    }
+
+    public static void main(String[] args) throws Throwable {
+        if (args.length != 1) {
+            usage();
+        }
+        int count = Integer.parseInt(args[0]);
+
+        System.out.println("Fabric SDK version: " + FabricInnerFunction.getSDKVersion());
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            reflect(count);
+            methodHandle(count);
+        }
+
+        long reflectCost = 0;
+        long methodHandleCost = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            reflectCost += reflect(count);
+            methodHandleCost += methodHandle(count);
+        }
+
+        long total = (long) count * ROUNDS;
+        System.out.println("Method.invoke:       " + (double) reflectCost / total + " ns/op");
+        System.out.println("MethodHandle bridge: " + (double) methodHandleCost / total + " ns/op");
+    }
+
+    // ns of count calls
+    private static long reflect(int count) throws Exception {
+        int nonNull = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            if (METHOD.invoke(endpoint) != null) {
+                nonNull++;
+            }
+        }
+        long cost = System.nanoTime() - start;
+        blackhole(nonNull);
+        return cost;
+    }
+
+    private static long methodHandle(int count) throws Throwable {
+        int nonNull = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            if ((byte[]) HANDLE.invokeExact(endpoint) != null) {
+                nonNull++;
+            }
+        }
+        long cost = System.nanoTime() - start;
+        blackhole(nonNull);
+        return cost;
+    }
+
+    // keep the results alive so the calls are not eliminated
+    private static void blackhole(int value) {
+        if (value == Integer.MIN_VALUE) {
+            System.out.println(value);
+        }
+    }
+}
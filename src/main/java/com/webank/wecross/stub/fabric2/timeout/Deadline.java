@@ -0,0 +1,32 @@
+package com.webank.wecross.stub.fabric2.timeout;
+
+/** Deadline of a request, every stage of the request spends from the same budget */
+public class Deadline {
+    private final long deadline; // ms since epoch
+
+    private Deadline(long deadline) {
+        this.deadline = deadline;
+    }
+
+    public static Deadline after(long timeout) {
+        return new Deadline(System.currentTimeMillis() + timeout);
+    }
+
+    public long getDeadline() {
+        return deadline;
+    }
+
+    // Remaining time in ms, 0 if expired
+    public long remaining() {
+        return Math.max(deadline - System.currentTimeMillis(), 0);
+    }
+
+    public boolean isExpired() {
+        return System.currentTimeMillis() >= deadline;
+    }
+
+    @Override
+    public String toString() {
+        return "Deadline{remaining=" + remaining() + "ms}";
+    }
+}
@@ -0,0 +1,31 @@
+package com.webank.wecross.stub.fabric2.timeout;
+
+import com.webank.wecross.stub.Request;
+
+/** Request carrying the deadline of the transaction it belongs to */
+public class DeadlineRequest extends Request {
+    private Deadline deadline;
+
+    public static Request withDeadline(Request request, Deadline deadline) {
+        if (deadline == null) {
+            return request;
+        }
+
+        DeadlineRequest deadlineRequest = new DeadlineRequest();
+        deadlineRequest.setType(request.getType());
+        deadlineRequest.setData(request.getData());
+        deadlineRequest.setResourceInfo(request.getResourceInfo());
+        deadlineRequest.setPath(request.getPath());
+        deadlineRequest.deadline = deadline;
+        return deadlineRequest;
+    }
+
+    // @return null if the request carries no deadline
+    public static Deadline deadlineOf(Request request) {
+        return request instanceof DeadlineRequest ? ((DeadlineRequest) request).deadline : null;
+    }
+
+    public Deadline getDeadline() {
+        return deadline;
+    }
+}
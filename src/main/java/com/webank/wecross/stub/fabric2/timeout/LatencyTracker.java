@@ -0,0 +1,56 @@
+package com.webank.wecross.stub.fabric2.timeout;
+
+import java.util.Arrays;
+
+/** Keeps the latest latency samples of a stage and their percentiles */
+public class LatencyTracker {
+    private static final int DEFAULT_SAMPLES = 1024;
+    private static final int RECOMPUTE_INTERVAL = 64; // samples
+
+    private final long[] samples;
+    private int next = 0;
+    private int count = 0;
+    private int newSamples = 0;
+    private long[] sorted; // snapshot of the samples, null: not computed yet
+
+    public LatencyTracker() {
+        this(DEFAULT_SAMPLES);
+    }
+
+    public LatencyTracker(int size) {
+        this.samples = new long[size];
+    }
+
+    public synchronized void record(long latency) {
+        samples[next] = latency;
+        next = (next + 1) % samples.length;
+        if (count < samples.length) {
+            count++;
+        }
+        newSamples++;
+    }
+
+    public synchronized int getCount() {
+        return count;
+    }
+
+    // 99th percentile of the samples in ms, recomputed every RECOMPUTE_INTERVAL samples
+    public synchronized long getP99() {
+        return getPercentile(0.99);
+    }
+
+    // Percentile (0, 1] of the samples in ms, recomputed every RECOMPUTE_INTERVAL samples
+    public synchronized long getPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+
+        if (sorted == null || newSamples >= RECOMPUTE_INTERVAL) {
+            sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            newSamples = 0;
+        }
+        int index = (int) Math.ceil(sorted.length * percentile) - 1;
+        return sorted[Math.max(Math.min(index, sorted.length - 1), 0)];
+    }
+}
@@ -0,0 +1,82 @@
+package com.webank.wecross.stub.fabric2.timeout;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Timeout budgets of the requests of a connection. A request gets the budget configured for its
+ * resource, or the default one. With adaptive enabled, resources without a configured budget get a
+ * budget derived from the observed p99 latency of the stages the request goes through, capped by
+ * the default.
+ */
+public class RequestTimeouts {
+    public static final long DEFAULT_TIMEOUT = 60000; // ms
+
+    private static final int ADAPTIVE_MIN_SAMPLES = 100;
+    private static final long ADAPTIVE_MIN_TIMEOUT = 3000; // ms
+    private static final int ADAPTIVE_FACTOR = 2;
+
+    public enum Stage {
+        ENDORSE,
+        ORDER,
+        COMMIT
+    }
+
+    private final long defaultTimeout;
+    private final Map<String, Long> resourceTimeouts;
+    private final boolean adaptive;
+    private final Map<Stage, LatencyTracker> trackers = new EnumMap<>(Stage.class);
+
+    public RequestTimeouts() {
+        this(DEFAULT_TIMEOUT, new HashMap<>(), false);
+    }
+
+    public RequestTimeouts(
+            long defaultTimeout, Map<String, Long> resourceTimeouts, boolean adaptive) {
+        this.defaultTimeout = defaultTimeout;
+        this.resourceTimeouts = resourceTimeouts;
+        this.adaptive = adaptive;
+        for (Stage stage : Stage.values()) {
+            trackers.put(stage, new LatencyTracker());
+        }
+    }
+
+    /** New deadline for a request of the resource going through the stages */
+    public Deadline newDeadline(String resourceName, Stage... stages) {
+        return Deadline.after(getTimeout(resourceName, stages));
+    }
+
+    public long getTimeout(String resourceName, Stage... stages) {
+        Long resourceTimeout = resourceName == null ? null : resourceTimeouts.get(resourceName);
+        if (resourceTimeout != null) {
+            return resourceTimeout;
+        }
+
+        if (!adaptive || stages.length == 0) {
+            return defaultTimeout;
+        }
+
+        long timeout = 0;
+        for (Stage stage : stages) {
+            LatencyTracker tracker = trackers.get(stage);
+            if (tracker.getCount() < ADAPTIVE_MIN_SAMPLES) {
+                return defaultTimeout; // not enough samples yet
+            }
+            timeout += tracker.getP99();
+        }
+        return Math.min(Math.max(timeout * ADAPTIVE_FACTOR, ADAPTIVE_MIN_TIMEOUT), defaultTimeout);
+    }
+
+    public long getDefaultTimeout() {
+        return defaultTimeout;
+    }
+
+    public void record(Stage stage, long latency) {
+        trackers.get(stage).record(latency);
+    }
+
+    public long getP99(Stage stage) {
+        return trackers.get(stage).getP99();
+    }
+}
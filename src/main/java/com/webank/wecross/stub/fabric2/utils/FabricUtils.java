@@ -141,6 +141,17 @@ public class FabricUtils {
         return true;
     }
 
+    // Get last modified time of the file, 0 if the file does not exist
+    public static long getFileLastModified(String path) {
+        try {
+            PathMatchingResourcePatternResolver resolver_temp =
+                    new PathMatchingResourcePatternResolver();
+            return resolver_temp.getResource(path).getFile().lastModified();
+        } catch (Exception e) {
+            return 0;
+        }
+    }
+
     public static String readFileToBytesString(String filePath) throws Exception {
         String content = readFileContent(filePath);
         return Base64.getEncoder().encodeToString(content.getBytes(StandardCharsets.UTF_8));
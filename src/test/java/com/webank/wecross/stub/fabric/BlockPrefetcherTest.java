@@ -0,0 +1,98 @@
+package com.webank.wecross.stub.fabric;
+
+import com.webank.wecross.stub.fabric2.block.BlockPrefetcher;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.LongSupplier;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BlockPrefetcherTest {
+    private static final int BLOCK_SIZE = 10;
+
+    private static void waitFor(LongSupplier actual, long expected) throws Exception {
+        for (int i = 0; i < 500 && actual.getAsLong() != expected; i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(expected, actual.getAsLong());
+    }
+
+    @Test
+    public void sequentialTest() throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            BlockPrefetcher prefetcher =
+                    new BlockPrefetcher(
+                            blockNumber -> new byte[BLOCK_SIZE], executor, 3, 1024 * 1024);
+            prefetcher.onNewBlock(100);
+
+            // the first request is not sequential yet
+            prefetcher.onRequest(10);
+            Assert.assertEquals(0, prefetcher.getPrefetchedCount());
+            Assert.assertNull(prefetcher.take(11, 1000));
+
+            // the next 3 blocks are prefetched
+            prefetcher.onRequest(11);
+            Assert.assertEquals(3, prefetcher.getPrefetchedCount());
+            waitFor(prefetcher::getPrefetchedBytes, 3 * BLOCK_SIZE);
+
+            Assert.assertEquals(BLOCK_SIZE, prefetcher.take(12, 1000).length);
+            Assert.assertEquals(2 * BLOCK_SIZE, prefetcher.getPrefetchedBytes());
+
+            // not beyond the latest block
+            prefetcher.onRequest(99);
+            prefetcher.onRequest(100);
+            Assert.assertEquals(0, prefetcher.getPrefetchedCount());
+            waitFor(prefetcher::getPrefetchedBytes, 0);
+
+            // a random access drops all the prefetched blocks
+            prefetcher.onRequest(20);
+            prefetcher.onRequest(21);
+            waitFor(prefetcher::getPrefetchedBytes, 3 * BLOCK_SIZE);
+            prefetcher.onRequest(50);
+            Assert.assertEquals(0, prefetcher.getPrefetchedCount());
+            Assert.assertEquals(0, prefetcher.getPrefetchedBytes());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void takeTimeoutTest() throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        CountDownLatch stalled = new CountDownLatch(1);
+        try {
+            BlockPrefetcher prefetcher =
+                    new BlockPrefetcher(
+                            blockNumber -> {
+                                if (blockNumber == 2) {
+                                    stalled.await();
+                                }
+                                return new byte[BLOCK_SIZE];
+                            },
+                            executor,
+                            2,
+                            1024 * 1024);
+            prefetcher.onNewBlock(10);
+            prefetcher.onRequest(0);
+            prefetcher.onRequest(1);
+            waitFor(prefetcher::getPrefetchedBytes, BLOCK_SIZE); // block 3
+
+            // the caller doesn't wait for the stalled prefetch
+            long start = System.currentTimeMillis();
+            Assert.assertNull(prefetcher.take(2, 100));
+            Assert.assertTrue(System.currentTimeMillis() - start < 1000);
+
+            // the stalled block is not counted when it comes at last
+            stalled.countDown();
+            Thread.sleep(100);
+            Assert.assertEquals(BLOCK_SIZE, prefetcher.getPrefetchedBytes());
+            Assert.assertEquals(BLOCK_SIZE, prefetcher.take(3, 1000).length);
+            Assert.assertEquals(0, prefetcher.getPrefetchedBytes());
+        } finally {
+            stalled.countDown();
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.webank.wecross.stub.fabric;
+
+import com.google.protobuf.ByteString;
+import com.webank.wecross.stub.fabric2.FabricBlock;
+import com.webank.wecross.stub.fabric2.block.BlockStore;
+import java.io.File;
+import org.hyperledger.fabric.protos.common.Common;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BlockStoreTest {
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void putAndReopenTest() throws Exception {
+        File dir = temporaryFolder.newFolder("blockstore");
+        byte[] blockBytes = FabricBlockTest.blockBytes;
+        long number = FabricBlock.encode(blockBytes).getHeader().getNumber();
+
+        BlockStore blockStore = BlockStore.open(dir.getPath());
+        Assert.assertNull(blockStore.get(number));
+        Assert.assertTrue(blockStore.put(number, blockBytes));
+        Assert.assertFalse(blockStore.put(number, blockBytes));
+        Assert.assertArrayEquals(blockBytes, blockStore.get(number));
+        blockStore.close();
+
+        blockStore = BlockStore.open(dir.getPath());
+        Assert.assertTrue(blockStore.contains(number));
+        Assert.assertArrayEquals(blockBytes, blockStore.get(number));
+        blockStore.close();
+    }
+
+    @Test
+    public void wrongNumberTest() throws Exception {
+        File dir = temporaryFolder.newFolder("blockstore");
+        byte[] blockBytes = FabricBlockTest.blockBytes;
+        long number = FabricBlock.encode(blockBytes).getHeader().getNumber();
+
+        BlockStore blockStore = BlockStore.open(dir.getPath());
+        Assert.assertFalse(blockStore.put(number + 1, blockBytes));
+        Assert.assertNull(blockStore.get(number + 1));
+        Assert.assertEquals(0, blockStore.size());
+        blockStore.close();
+    }
+
+    @Test
+    public void replaceTest() throws Exception {
+        File dir = temporaryFolder.newFolder("blockstore");
+        byte[] blockBytes = FabricBlockTest.blockBytes;
+        Common.Block block = Common.Block.parseFrom(blockBytes);
+        long number = block.getHeader().getNumber();
+
+        // a bad block of the same number and a different hash is stored first
+        Common.BlockHeader badHeader =
+                block.getHeader().toBuilder().setDataHash(ByteString.copyFromUtf8("bad")).build();
+        byte[] badBlockBytes = block.toBuilder().setHeader(badHeader).build().toByteArray();
+
+        BlockStore blockStore = BlockStore.open(dir.getPath());
+        Assert.assertTrue(blockStore.put(number, badBlockBytes));
+        Assert.assertTrue(blockStore.put(number, blockBytes));
+        Assert.assertEquals(1, blockStore.size());
+        Assert.assertArrayEquals(blockBytes, blockStore.get(number));
+        blockStore.close();
+
+        blockStore = BlockStore.open(dir.getPath());
+        Assert.assertEquals(1, blockStore.size());
+        Assert.assertArrayEquals(blockBytes, blockStore.get(number));
+        blockStore.close();
+    }
+}
@@ -0,0 +1,204 @@
+package com.webank.wecross.stub.fabric;
+
+import com.google.protobuf.ByteString;
+import com.webank.wecross.stub.fabric2.orderer.BroadcastStream;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.hyperledger.fabric.protos.common.Common;
+import org.hyperledger.fabric.protos.orderer.Ab;
+import org.hyperledger.fabric.protos.orderer.AtomicBroadcastGrpc;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BroadcastStreamTest {
+    // Echo the payload of each envelope in the info of the response, break the first stream
+    // after brokenAfter envelopes. Like an orderer, close the stream after rejecting an envelope.
+    private static class MockOrderer extends AtomicBroadcastGrpc.AtomicBroadcastImplBase {
+        private final int brokenAfter;
+        private final Set<String> rejects;
+        private final AtomicInteger streams = new AtomicInteger(0);
+
+        MockOrderer(int brokenAfter) {
+            this(brokenAfter, Collections.emptySet());
+        }
+
+        MockOrderer(int brokenAfter, Set<String> rejects) {
+            this.brokenAfter = brokenAfter;
+            this.rejects = rejects;
+        }
+
+        @Override
+        public StreamObserver<Common.Envelope> broadcast(
+                StreamObserver<Ab.BroadcastResponse> responseObserver) {
+            boolean first = streams.incrementAndGet() == 1;
+            return new StreamObserver<Common.Envelope>() {
+                private int received = 0;
+                private boolean done = false;
+
+                @Override
+                public void onNext(Common.Envelope envelope) {
+                    if (done) {
+                        return;
+                    }
+                    if (first && ++received > brokenAfter) {
+                        done = true;
+                        responseObserver.onError(Status.UNAVAILABLE.asException());
+                        return;
+                    }
+
+                    String payload = envelope.getPayload().toStringUtf8();
+                    boolean rejected = rejects.contains(payload);
+                    responseObserver.onNext(
+                            Ab.BroadcastResponse.newBuilder()
+                                    .setStatus(
+                                            rejected
+                                                    ? Common.Status.BAD_REQUEST
+                                                    : Common.Status.SUCCESS)
+                                    .setInfo(payload)
+                                    .build());
+                    if (rejected) {
+                        done = true;
+                        responseObserver.onCompleted();
+                    }
+                }
+
+                @Override
+                public void onError(Throwable t) {}
+
+                @Override
+                public void onCompleted() {
+                    responseObserver.onCompleted();
+                }
+            };
+        }
+    }
+
+    private static List<CompletableFuture<Ab.BroadcastResponse>> sendAll(
+            BroadcastStream stream, int count) {
+        List<CompletableFuture<Ab.BroadcastResponse>> futures = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            futures.add(
+                    stream.send(
+                            Common.Envelope.newBuilder()
+                                    .setPayload(ByteString.copyFromUtf8("tx" + i))
+                                    .build()));
+        }
+        return futures;
+    }
+
+    private static void runTest(MockOrderer orderer, int count, int expectedStreams)
+            throws Exception {
+        String name = InProcessServerBuilder.generateName();
+        Server server =
+                InProcessServerBuilder.forName(name).directExecutor().addService(orderer).build();
+        server.start();
+
+        BroadcastStream stream =
+                new BroadcastStream(
+                        name, () -> (ManagedChannel) InProcessChannelBuilder.forName(name).build());
+        try {
+            List<CompletableFuture<Ab.BroadcastResponse>> futures = sendAll(stream, count);
+            for (int i = 0; i < count; i++) {
+                Ab.BroadcastResponse response = futures.get(i).get(10, TimeUnit.SECONDS);
+                Assert.assertEquals(
+                        orderer.rejects.contains("tx" + i)
+                                ? Common.Status.BAD_REQUEST
+                                : Common.Status.SUCCESS,
+                        response.getStatus());
+                Assert.assertEquals("tx" + i, response.getInfo());
+            }
+            Assert.assertEquals(0, stream.getInFlightCount());
+            Assert.assertEquals(expectedStreams, orderer.streams.get());
+        } finally {
+            stream.close();
+            server.shutdownNow();
+        }
+    }
+
+    @Test
+    public void pipelineTest() throws Exception {
+        runTest(new MockOrderer(Integer.MAX_VALUE), 100, 1);
+    }
+
+    @Test
+    public void replayTest() throws Exception {
+        runTest(new MockOrderer(10), 100, 2);
+    }
+
+    @Test
+    public void rejectTest() throws Exception {
+        // more rejects than MAX_REPLAYS, the envelopes behind them are not failed
+        Set<String> rejects = new HashSet<>();
+        for (int i = 0; i <= BroadcastStream.MAX_REPLAYS; i++) {
+            rejects.add("tx" + (i * 10 + 5));
+        }
+        runTest(new MockOrderer(Integer.MAX_VALUE, rejects), 100, rejects.size() + 1);
+    }
+
+    @Test
+    public void timeoutTest() throws Exception {
+        // the orderer never answers
+        String name = InProcessServerBuilder.generateName();
+        Server server =
+                InProcessServerBuilder.forName(name)
+                        .directExecutor()
+                        .addService(
+                                new AtomicBroadcastGrpc.AtomicBroadcastImplBase() {
+                                    @Override
+                                    public StreamObserver<Common.Envelope> broadcast(
+                                            StreamObserver<Ab.BroadcastResponse> responseObserver) {
+                                        return new StreamObserver<Common.Envelope>() {
+                                            @Override
+                                            public void onNext(Common.Envelope envelope) {}
+
+                                            @Override
+                                            public void onError(Throwable t) {}
+
+                                            @Override
+                                            public void onCompleted() {}
+                                        };
+                                    }
+                                })
+                        .build();
+        server.start();
+
+        BroadcastStream stream =
+                new BroadcastStream(
+                        name,
+                        () -> (ManagedChannel) InProcessChannelBuilder.forName(name).build(),
+                        100);
+        try {
+            List<CompletableFuture<Ab.BroadcastResponse>> futures = sendAll(stream, 10);
+            stream.expire(System.currentTimeMillis());
+            Assert.assertEquals(10, stream.getInFlightCount());
+
+            stream.expire(System.currentTimeMillis() + 200);
+            Assert.assertEquals(0, stream.getInFlightCount());
+            for (CompletableFuture<Ab.BroadcastResponse> future : futures) {
+                try {
+                    future.get(10, TimeUnit.SECONDS);
+                    Assert.fail();
+                } catch (ExecutionException e) {
+                    Assert.assertTrue(e.getCause() instanceof TimeoutException);
+                }
+            }
+        } finally {
+            stream.close();
+            server.shutdownNow();
+        }
+    }
+}
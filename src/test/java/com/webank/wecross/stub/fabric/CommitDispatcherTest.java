@@ -0,0 +1,34 @@
+package com.webank.wecross.stub.fabric;
+
+import com.webank.wecross.stub.fabric2.FabricBlock;
+import com.webank.wecross.stub.fabric2.block.CommitDispatcher;
+import java.util.concurrent.CompletableFuture;
+import org.hyperledger.fabric.protos.common.Common;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CommitDispatcherTest {
+    @Test
+    public void dispatchAndExpireTest() throws Exception {
+        Common.Block block = Common.Block.parseFrom(FabricBlockTest.blockBytes);
+        String txID =
+                FabricBlock.encode(FabricBlockTest.blockBytes).getValidTxs().iterator().next();
+
+        CommitDispatcher dispatcher = new CommitDispatcher("mychannel");
+        CompletableFuture<CommitDispatcher.Commit> committed = dispatcher.register(txID, 10000);
+        CompletableFuture<CommitDispatcher.Commit> pending = dispatcher.register("unknown", 0);
+        Assert.assertEquals(2, dispatcher.getInFlightCount());
+
+        dispatcher.onBlock(block);
+        Assert.assertTrue(committed.isDone());
+        Assert.assertTrue(committed.get().isValid());
+        Assert.assertEquals(block.getHeader().getNumber(), committed.get().getBlockNumber());
+        Assert.assertFalse(pending.isDone());
+
+        Assert.assertEquals(1, dispatcher.expire(System.currentTimeMillis()));
+        Assert.assertTrue(pending.isCompletedExceptionally());
+        Assert.assertEquals(0, dispatcher.getInFlightCount());
+        Assert.assertEquals(1, dispatcher.getCommittedCount());
+        Assert.assertEquals(1, dispatcher.getTimeoutCount());
+    }
+}
@@ -0,0 +1,166 @@
+package com.webank.wecross.stub.fabric;
+
+import com.google.protobuf.ByteString;
+import com.webank.wecross.stub.fabric2.EndorsementPolicyAnalyzer;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import org.hyperledger.fabric.protos.peer.ProposalResponsePackage;
+import org.hyperledger.fabric.sdk.Channel;
+import org.hyperledger.fabric.sdk.Enrollment;
+import org.hyperledger.fabric.sdk.HFClient;
+import org.hyperledger.fabric.sdk.Peer;
+import org.hyperledger.fabric.sdk.ProposalResponse;
+import org.hyperledger.fabric.sdk.User;
+import org.hyperledger.fabric.sdk.security.CryptoSuite;
+import org.hyperledger.fabric.sdk.transaction.TransactionContext;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+public class EndorsementPolicyAnalyzerTest {
+    private static HFClient hfClient;
+    private static TransactionContext transactionContext;
+
+    private static class TestUser implements User {
+        private final Enrollment enrollment;
+
+        TestUser(PrivateKey key) {
+            enrollment =
+                    new Enrollment() {
+                        @Override
+                        public PrivateKey getKey() {
+                            return key;
+                        }
+
+                        @Override
+                        public String getCert() {
+                            return "cert";
+                        }
+                    };
+        }
+
+        @Override
+        public String getName() {
+            return "user";
+        }
+
+        @Override
+        public Set<String> getRoles() {
+            return Collections.emptySet();
+        }
+
+        @Override
+        public String getAccount() {
+            return null;
+        }
+
+        @Override
+        public String getAffiliation() {
+            return null;
+        }
+
+        @Override
+        public Enrollment getEnrollment() {
+            return enrollment;
+        }
+
+        @Override
+        public String getMspId() {
+            return "Org1MSP";
+        }
+    }
+
+    // The SDK only builds proposal responses from a peer reply, so the constructor is reached by
+    // reflection
+    private static ProposalResponse newResponse(String peerName, int status, String payload)
+            throws Exception {
+        if (hfClient == null) {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+            generator.initialize(256);
+            User user = new TestUser(generator.generateKeyPair().getPrivate());
+
+            hfClient = HFClient.createNewInstance();
+            hfClient.setCryptoSuite(CryptoSuite.Factory.getCryptoSuite());
+            hfClient.setUserContext(user);
+            Channel channel = hfClient.newChannel("mychannel");
+            transactionContext =
+                    new TransactionContext(channel, user, CryptoSuite.Factory.getCryptoSuite());
+        }
+
+        Constructor<ProposalResponse> constructor =
+                ProposalResponse.class.getDeclaredConstructor(
+                        TransactionContext.class, int.class, String.class);
+        constructor.setAccessible(true);
+        ProposalResponse response =
+                constructor.newInstance(transactionContext, status, "message of " + peerName);
+        response.setProposalResponse(
+                ProposalResponsePackage.ProposalResponse.newBuilder()
+                        .setPayload(ByteString.copyFromUtf8("rwset"))
+                        .setResponse(
+                                ProposalResponsePackage.Response.newBuilder()
+                                        .setStatus(status)
+                                        .setPayload(ByteString.copyFromUtf8(payload)))
+                        .build());
+
+        Method setPeer = ProposalResponse.class.getDeclaredMethod("setPeer", Peer.class);
+        setPeer.setAccessible(true);
+        setPeer.invoke(response, hfClient.newPeer(peerName, "grpc://127.0.0.1:7051"));
+        return response;
+    }
+
+    @Test
+    public void successSummaryTest() throws Exception {
+        EndorsementPolicyAnalyzer analyzer =
+                new EndorsementPolicyAnalyzer(
+                        Arrays.asList(
+                                newResponse("peer0", 200, "ok"), newResponse("peer1", 200, "ok")));
+        Assert.assertTrue(analyzer.allSuccess());
+        Assert.assertEquals("ok", new String(analyzer.getPayload()));
+
+        String info = analyzer.info();
+        Assert.assertTrue(info.startsWith("Success endorser: 2 Failed endorser: 0"));
+        Assert.assertTrue(info.contains("payloads:size: 1 [ok]"));
+        Assert.assertTrue(info.contains("proposal response consistency: ok"));
+
+        // the counts only, unless debug is on
+        if (LoggerFactory.getLogger(EndorsementPolicyAnalyzer.class).isDebugEnabled()) {
+            Assert.assertEquals(info, analyzer.summary());
+        } else {
+            Assert.assertEquals("Success endorser: 2 Failed endorser: 0", analyzer.summary());
+        }
+    }
+
+    @Test
+    public void failedSummaryTest() throws Exception {
+        EndorsementPolicyAnalyzer analyzer =
+                new EndorsementPolicyAnalyzer(
+                        Arrays.asList(
+                                newResponse("peer0", 200, "ok"), newResponse("peer1", 500, "")));
+        Assert.assertFalse(analyzer.allSuccess());
+        Assert.assertTrue(analyzer.hasSameSuccess());
+
+        String info = analyzer.info();
+        Assert.assertTrue(info.startsWith("Success endorser: 1 Failed endorser: 1"));
+        Assert.assertTrue(info.contains("peer: peer1 status: FAILURE message: message of peer1"));
+        Assert.assertEquals(info, analyzer.summary());
+    }
+
+    @Test
+    public void differentPayloadTest() throws Exception {
+        EndorsementPolicyAnalyzer analyzer =
+                new EndorsementPolicyAnalyzer(
+                        Arrays.asList(
+                                newResponse("peer0", 200, "a"), newResponse("peer1", 200, "b")));
+        Assert.assertFalse(analyzer.allSuccess());
+        Assert.assertFalse(analyzer.hasSameSuccess());
+
+        String info = analyzer.info();
+        Assert.assertTrue(info.contains("payloads:size: 2 [a, b]"));
+        Assert.assertEquals(info, analyzer.summary());
+    }
+}
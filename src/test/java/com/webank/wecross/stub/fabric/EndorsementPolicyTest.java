@@ -0,0 +1,178 @@
+package com.webank.wecross.stub.fabric;
+
+import com.webank.wecross.stub.fabric2.endorser.EndorsementPolicy;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import org.hyperledger.fabric.protos.common.MspPrincipal;
+import org.hyperledger.fabric.protos.common.Policies;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class EndorsementPolicyTest {
+    // peer name: "<msp>.<peer>"
+    private static final List<String> peers =
+            Arrays.asList(
+                    "Org1MSP.peer0",
+                    "Org1MSP.peer1",
+                    "Org2MSP.peer0",
+                    "Org2MSP.peer1",
+                    "Org3MSP.peer0");
+
+    private static String mspOf(String peer) {
+        return peer.substring(0, peer.indexOf('.'));
+    }
+
+    private static MspPrincipal.MSPPrincipal member(String mspID) {
+        return role(mspID, MspPrincipal.MSPRole.MSPRoleType.MEMBER);
+    }
+
+    private static MspPrincipal.MSPPrincipal role(
+            String mspID, MspPrincipal.MSPRole.MSPRoleType roleType) {
+        return MspPrincipal.MSPPrincipal.newBuilder()
+                .setPrincipalClassification(MspPrincipal.MSPPrincipal.Classification.ROLE)
+                .setPrincipal(
+                        MspPrincipal.MSPRole.newBuilder()
+                                .setMspIdentifier(mspID)
+                                .setRole(roleType)
+                                .build()
+                                .toByteString())
+                .build();
+    }
+
+    private static Policies.SignaturePolicy signedBy(int index) {
+        return Policies.SignaturePolicy.newBuilder().setSignedBy(index).build();
+    }
+
+    private static Policies.SignaturePolicy outOf(int n, Policies.SignaturePolicy... rules) {
+        return Policies.SignaturePolicy.newBuilder()
+                .setNOutOf(
+                        Policies.SignaturePolicy.NOutOf.newBuilder()
+                                .setN(n)
+                                .addAllRules(Arrays.asList(rules)))
+                .build();
+    }
+
+    private static EndorsementPolicy policy(Policies.SignaturePolicy rule) throws Exception {
+        return EndorsementPolicy.parse(
+                Policies.SignaturePolicyEnvelope.newBuilder()
+                        .setRule(rule)
+                        .addIdentities(member("Org1MSP"))
+                        .addIdentities(member("Org2MSP"))
+                        .addIdentities(member("Org3MSP"))
+                        .build());
+    }
+
+    @Test
+    public void selectTest() throws Exception {
+        Map<String, Integer> loads = new HashMap<>();
+        for (String peer : peers) {
+            loads.put(peer, 0);
+        }
+        loads.put("Org1MSP.peer0", 5);
+        loads.put("Org2MSP.peer0", 3);
+
+        // AND(Org1, OR(Org2, Org3)), Org3 is less loaded than Org2
+        EndorsementPolicy andOr = policy(outOf(2, signedBy(0), outOf(1, signedBy(1), signedBy(2))));
+        Assert.assertTrue(andOr.isSignaturePolicy());
+        loads.put("Org2MSP.peer1", 1);
+        Assert.assertEquals(
+                new HashSet<>(Arrays.asList("Org1MSP.peer1", "Org3MSP.peer0")),
+                new HashSet<>(andOr.select(peers, EndorsementPolicyTest::mspOf, loads::get)));
+
+        // OutOf(2, Org1, Org2, Org3): the two least loaded orgs
+        loads.put("Org3MSP.peer0", 9);
+        EndorsementPolicy majority = policy(outOf(2, signedBy(0), signedBy(1), signedBy(2)));
+        Assert.assertEquals(
+                new HashSet<>(Arrays.asList("Org1MSP.peer1", "Org2MSP.peer1")),
+                new HashSet<>(majority.select(peers, EndorsementPolicyTest::mspOf, loads::get)));
+
+        // unsatisfiable by these peers, all of them are returned
+        EndorsementPolicy all = policy(outOf(3, signedBy(0), signedBy(1), signedBy(2)));
+        List<String> twoOrgs = peers.subList(0, 4);
+        Assert.assertEquals(twoOrgs, all.select(twoOrgs, EndorsementPolicyTest::mspOf, loads::get));
+
+        // channel policy reference, one peer of each org
+        EndorsementPolicy reference = EndorsementPolicy.parse(new byte[0]);
+        Assert.assertFalse(reference.isSignaturePolicy());
+        Assert.assertEquals(
+                3, reference.select(peers, EndorsementPolicyTest::mspOf, loads::get).size());
+    }
+
+    @Test
+    public void principalTest() throws Exception {
+        Map<String, Integer> loads = new HashMap<>();
+        for (String peer : peers) {
+            loads.put(peer, 0);
+        }
+
+        // OutOf(2, 'Org1MSP.peer', 'Org1MSP.member'): two distinct peers of Org1
+        EndorsementPolicy sameOrg =
+                EndorsementPolicy.parse(
+                        Policies.SignaturePolicyEnvelope.newBuilder()
+                                .setRule(outOf(2, signedBy(0), signedBy(1)))
+                                .addIdentities(
+                                        role("Org1MSP", MspPrincipal.MSPRole.MSPRoleType.PEER))
+                                .addIdentities(member("Org1MSP"))
+                                .build());
+        Map<String, Integer> endorsements = new HashMap<>();
+        endorsements.put("Org1MSP", 1);
+        Assert.assertFalse(sameOrg.isSatisfiedBy(endorsements, endorsements.keySet()));
+        endorsements.put("Org1MSP", 2);
+        Assert.assertTrue(sameOrg.isSatisfiedBy(endorsements, endorsements.keySet()));
+        Assert.assertEquals(
+                new HashSet<>(Arrays.asList("Org1MSP.peer0", "Org1MSP.peer1")),
+                new HashSet<>(sameOrg.select(peers, EndorsementPolicyTest::mspOf, loads::get)));
+
+        // AND('Org1MSP.admin', 'Org2MSP.member'): peers are not admins, ask all the endorsers
+        EndorsementPolicy admin =
+                EndorsementPolicy.parse(
+                        Policies.SignaturePolicyEnvelope.newBuilder()
+                                .setRule(outOf(2, signedBy(0), signedBy(1)))
+                                .addIdentities(
+                                        role("Org1MSP", MspPrincipal.MSPRole.MSPRoleType.ADMIN))
+                                .addIdentities(member("Org2MSP"))
+                                .build());
+        endorsements.put("Org2MSP", 2);
+        Assert.assertFalse(admin.isSatisfiedBy(endorsements, endorsements.keySet()));
+        Assert.assertEquals(peers, admin.select(peers, EndorsementPolicyTest::mspOf, loads::get));
+    }
+
+    @Test
+    public void allOfTest() throws Exception {
+        Map<String, Integer> loads = new HashMap<>();
+        for (String peer : peers) {
+            loads.put(peer, 0);
+        }
+
+        // target OR(Org1), proxy MAJORITY of the three orgs: Org1 and one more org
+        EndorsementPolicy target = policy(signedBy(0));
+        EndorsementPolicy proxy = policy(outOf(2, signedBy(0), signedBy(1), signedBy(2)));
+        EndorsementPolicy both = EndorsementPolicy.allOf(target, proxy);
+        Assert.assertTrue(both.isSignaturePolicy());
+        List<String> selected = both.select(peers, EndorsementPolicyTest::mspOf, loads::get);
+        Assert.assertEquals(2, selected.size());
+        Assert.assertTrue(selected.contains("Org1MSP.peer0") || selected.contains("Org1MSP.peer1"));
+        Assert.assertEquals(
+                1, target.select(peers, EndorsementPolicyTest::mspOf, loads::get).size());
+
+        Map<String, Integer> endorsements = new HashMap<>();
+        endorsements.put("Org1MSP", 1);
+        Assert.assertTrue(target.isSatisfiedBy(endorsements, endorsements.keySet()));
+        Assert.assertFalse(both.isSatisfiedBy(endorsements, endorsements.keySet()));
+        endorsements.put("Org3MSP", 1);
+        Assert.assertTrue(both.isSatisfiedBy(endorsements, endorsements.keySet()));
+
+        // with a policy reference, one peer of each org
+        EndorsementPolicy withReference =
+                EndorsementPolicy.allOf(target, EndorsementPolicy.parse(new byte[0]));
+        Assert.assertFalse(withReference.isSignaturePolicy());
+        Assert.assertEquals(
+                3, withReference.select(peers, EndorsementPolicyTest::mspOf, loads::get).size());
+
+        // unknown policy of the proxy, all the endorsers are asked
+        Assert.assertNull(EndorsementPolicy.allOf(target, null));
+    }
+}
@@ -1,7 +1,13 @@
 package com.webank.wecross.stub.fabric;
 
+import com.webank.wecross.stub.BlockHeader;
+import com.webank.wecross.stub.fabric2.BlockVerifierContext;
 import com.webank.wecross.stub.fabric2.FabricBlock;
+import com.webank.wecross.stub.fabric2.FabricBlockHeader;
+import com.webank.wecross.stub.fabric2.block.BlockMemo;
 import java.util.Base64;
+import java.util.concurrent.ForkJoinPool;
+import org.hyperledger.fabric.protos.common.Common;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -50,6 +56,113 @@ public class FabricBlockTest {
         Assert.assertTrue(ok);
     }
 
+    @Test
+    public void verifyParallelTest() throws Exception {
+        FabricBlock block = FabricBlock.encode(blockBytes);
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            Assert.assertTrue(
+                    block.verifyWithContext(BlockVerifierContext.build(blockVerifier), pool, 0));
+            Assert.assertFalse(
+                    block.verifyWithContext(
+                            BlockVerifierContext.build(wrongBlockVerifier), pool, 0));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void creatorIdentityTest() throws Exception {
+        FabricBlock block = FabricBlock.encode(blockBytes);
+        for (FabricBlock.TxEnvelope envelope : block.getBlockData().getEnvelopes()) {
+            String identity = envelope.getFabricTransaction().getCreatorIdentity();
+            Assert.assertTrue(identity.startsWith("-----BEGIN CERTIFICATE-----"));
+            Assert.assertTrue(identity.endsWith("-----END CERTIFICATE-----\n"));
+            Assert.assertSame(identity, envelope.getFabricTransaction().getCreatorIdentity());
+        }
+    }
+
+    @Test
+    public void headerOnlyTest() throws Exception {
+        for (byte[] bytes : new byte[][] {systemBlockBytes, blockBytes}) {
+            BlockHeader expected = FabricBlock.encode(bytes).dumpWeCrossHeader();
+            FabricBlockHeader blockHeader = FabricBlockHeader.decode(bytes);
+            BlockHeader header = blockHeader.dumpWeCrossHeader();
+            Assert.assertEquals(expected.getNumber(), header.getNumber());
+            Assert.assertEquals(expected.getHash(), header.getHash());
+            Assert.assertEquals(expected.getPrevHash(), header.getPrevHash());
+            Assert.assertEquals(expected.getTransactionRoot(), header.getTransactionRoot());
+            Assert.assertEquals(expected.getTimestamp(), header.getTimestamp());
+            Assert.assertNotEquals(0, header.getTimestamp());
+
+            Assert.assertTrue(
+                    blockHeader.verifyBlockCreator(BlockVerifierContext.build(blockVerifier)));
+            Assert.assertFalse(
+                    blockHeader.verifyBlockCreator(BlockVerifierContext.build(wrongBlockVerifier)));
+        }
+    }
+
+    @Test
+    public void blockMemoTest() throws Exception {
+        BlockMemo blockMemo = new BlockMemo(1);
+        FabricBlock block = FabricBlock.encode(blockBytes);
+        long number = block.getHeader().getNumber();
+
+        BlockMemo.Entry entry = blockMemo.getOrParse(number, null, blockBytes);
+        Assert.assertSame(entry, blockMemo.getOrParse(number, block.getHash(), blockBytes));
+        Assert.assertEquals(block.getValidTxs(), entry.getValidTxs());
+
+        BlockVerifierContext context = BlockVerifierContext.build(blockVerifier);
+        Assert.assertFalse(entry.isVerified(context));
+        entry.markVerified(context);
+        Assert.assertTrue(entry.isVerified(context));
+
+        // same header, other metadata: parsed again, not taken as verified
+        Common.Block tampered =
+                Common.Block.parseFrom(blockBytes)
+                        .toBuilder()
+                        .setMetadata(Common.BlockMetadata.getDefaultInstance())
+                        .build();
+        BlockMemo.Entry tamperedEntry =
+                blockMemo.getOrParse(number, block.getHash(), tampered.toByteArray());
+        Assert.assertNotSame(entry, tamperedEntry);
+        Assert.assertFalse(tamperedEntry.isVerified(context));
+        Assert.assertArrayEquals(tampered.toByteArray(), tamperedEntry.getBlockBytes());
+        entry = blockMemo.getOrParse(number, null, blockBytes);
+
+        blockMemo.getOrParse(2, null, systemBlockBytes);
+        Assert.assertEquals(1, blockMemo.size());
+        Assert.assertNotSame(entry, blockMemo.getOrParse(number, null, blockBytes));
+
+        try {
+            blockMemo.getOrParse(number + 1, null, blockBytes);
+            Assert.fail();
+        } catch (Exception e) {
+            Assert.assertTrue(e.getMessage().contains("mismatch"));
+        }
+    }
+
+    @Test
+    public void verifiedBlocksTest() throws Exception {
+        BlockVerifierContext context = BlockVerifierContext.build(blockVerifier);
+        FabricBlock block = FabricBlock.encode(blockBytes);
+        long number = block.getHeader().getNumber();
+        context.markVerified(number, block.getHash(), block.getDigest());
+        Assert.assertTrue(context.isVerified(number, block.getDigest()));
+
+        // same header, other metadata: only the header is taken as verified
+        FabricBlock tampered =
+                FabricBlock.encode(
+                        Common.Block.parseFrom(blockBytes)
+                                .toBuilder()
+                                .setMetadata(Common.BlockMetadata.getDefaultInstance())
+                                .build()
+                                .toByteArray());
+        Assert.assertEquals(block.getHash(), tampered.getHash());
+        Assert.assertFalse(context.isVerified(number, tampered.getDigest()));
+        Assert.assertTrue(context.isHeaderVerified(number, tampered.getHash()));
+    }
+
     @Test
     public void verifyNullTest() throws Exception {
         FabricBlock block = FabricBlock.encode(blockBytes);
@@ -0,0 +1,45 @@
+package com.webank.wecross.stub.fabric;
+
+import com.webank.wecross.stub.fabric2.FabricInnerFunction;
+import java.util.Collection;
+import java.util.Properties;
+import org.hyperledger.fabric.protos.common.Common;
+import org.hyperledger.fabric.protos.peer.ProposalPackage;
+import org.hyperledger.fabric.sdk.Channel;
+import org.hyperledger.fabric.sdk.Orderer;
+import org.hyperledger.fabric.sdk.Peer;
+import org.hyperledger.fabric.sdk.transaction.TransactionContext;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FabricInnerFunctionTest {
+    @Test
+    public void resolveTest() throws Exception {
+        // the inner functions the bridge uses exist in the SDK on the classpath
+        Assert.assertNotNull(
+                FabricInnerFunction.resolve(
+                        Channel.class,
+                        "sendProposalToPeers",
+                        Collection.class,
+                        ProposalPackage.SignedProposal.class,
+                        TransactionContext.class));
+        Assert.assertNotNull(
+                FabricInnerFunction.resolve(
+                        Orderer.class, "sendTransaction", Common.Envelope.class));
+
+        Class<?> endpointClass = Class.forName(Peer.class.getPackage().getName() + ".Endpoint");
+        Assert.assertNotNull(
+                FabricInnerFunction.resolve(
+                        endpointClass, "createEndpoint", String.class, Properties.class));
+        Assert.assertNotNull(FabricInnerFunction.resolve(endpointClass, "getChannelBuilder"));
+        Assert.assertNotNull(
+                FabricInnerFunction.resolve(endpointClass, "getClientTLSCertificateDigest"));
+    }
+
+    @Test
+    public void sdkVersionTest() {
+        String sdkVersion = FabricInnerFunction.getSDKVersion();
+        Assert.assertNotNull(sdkVersion);
+        Assert.assertTrue(sdkVersion.startsWith(FabricInnerFunction.SUPPORTED_SDK_VERSION));
+    }
+}
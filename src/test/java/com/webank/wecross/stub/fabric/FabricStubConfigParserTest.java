@@ -1,5 +1,6 @@
 package com.webank.wecross.stub.fabric;
 
+import com.moandjiezana.toml.Toml;
 import com.webank.wecross.stub.fabric2.FabricStubConfigParser;
 import org.junit.Assert;
 import org.junit.Test;
@@ -14,4 +15,20 @@ public class FabricStubConfigParserTest {
         Assert.assertTrue(parser.getOrgs() != null);
         Assert.assertTrue(parser.getAdvanced() != null);
     }
+
+    @Test
+    public void timeoutResourcesTest() throws Exception {
+        FabricStubConfigParser.Advanced.Timeout timeout =
+                new FabricStubConfigParser.Advanced.Timeout(
+                        new Toml().read("[advanced.timeout.resources]\nHelloWorld = 30000"));
+        Assert.assertEquals(30000L, (long) timeout.getResourceTimeouts().get("HelloWorld"));
+
+        try {
+            new FabricStubConfigParser.Advanced.Timeout(
+                    new Toml().read("[advanced.timeout.resources]\nHelloWorld = '30s'"));
+            Assert.fail();
+        } catch (Exception e) {
+            Assert.assertTrue(e.getMessage().contains("item illegal"));
+        }
+    }
 }
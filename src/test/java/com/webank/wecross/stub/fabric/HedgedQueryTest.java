@@ -0,0 +1,167 @@
+package com.webank.wecross.stub.fabric;
+
+import com.webank.wecross.stub.fabric2.endorser.HedgedQuery;
+import com.webank.wecross.stub.fabric2.endorser.ProposalSender;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HedgedQueryTest {
+    private static final List<String> peers = Arrays.asList("peer0", "peer1", "peer2");
+
+    // Answer "<peer>:ok" after the delay of the peer, or "<peer>:failed" if the delay is negative
+    private static ProposalSender<String, String> sender(
+            Map<String, Long> delays, AtomicInteger sent) {
+        return peer -> {
+            sent.incrementAndGet();
+            long delay = delays.get(peer);
+            Thread.sleep(Math.abs(delay));
+            return peer + (delay < 0 ? ":failed" : ":ok");
+        };
+    }
+
+    private static boolean isSuccess(String response) {
+        return response.endsWith(":ok");
+    }
+
+    @Test
+    public void hedgeTest() throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            HedgedQuery hedgedQuery = new HedgedQuery(executor);
+            Map<String, Long> delays = new ConcurrentHashMap<>();
+            delays.put("peer0", 1L);
+            delays.put("peer1", 1L);
+            delays.put("peer2", 1L);
+            AtomicInteger sent = new AtomicInteger(0);
+
+            // fast peers are asked one at a time
+            for (int i = 0; i < HedgedQuery.MIN_SAMPLES; i++) {
+                List<String> responses =
+                        hedgedQuery.query(
+                                peers,
+                                Function.identity(),
+                                sender(delays, sent),
+                                HedgedQueryTest::isSuccess,
+                                10000);
+                Assert.assertEquals(1, responses.size());
+                Assert.assertTrue(isSuccess(responses.get(0)));
+            }
+            Assert.assertEquals(HedgedQuery.MIN_SAMPLES, sent.get());
+
+            // the best peer stalls, the hedge answers first
+            String best = hedgedQuery.rank(peers, Function.identity()).get(0);
+            delays.put(best, 2000L);
+            List<String> responses =
+                    hedgedQuery.query(
+                            peers,
+                            Function.identity(),
+                            sender(delays, sent),
+                            HedgedQueryTest::isSuccess,
+                            10000);
+            Assert.assertNotEquals(best + ":ok", responses.get(0));
+            Assert.assertTrue(isSuccess(responses.get(0)));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void saturatedCallerPoolTest() throws Exception {
+        // all the threads of the callers' pool wait for their queries, which are hedged
+        int callers = 2;
+        ExecutorService callerPool = Executors.newFixedThreadPool(callers);
+        ExecutorService executor = Executors.newFixedThreadPool(callers * peers.size());
+        try {
+            HedgedQuery hedgedQuery = new HedgedQuery(executor);
+            Map<String, Long> delays = new ConcurrentHashMap<>();
+            delays.put("peer0", 300L);
+            delays.put("peer1", 300L);
+            delays.put("peer2", 1L);
+            AtomicInteger sent = new AtomicInteger(0);
+
+            List<Future<List<String>>> futures = new ArrayList<>();
+            for (int i = 0; i < callers; i++) {
+                futures.add(
+                        callerPool.submit(
+                                () ->
+                                        hedgedQuery.query(
+                                                peers,
+                                                Function.identity(),
+                                                sender(delays, sent),
+                                                HedgedQueryTest::isSuccess,
+                                                10000)));
+            }
+            for (Future<List<String>> future : futures) {
+                List<String> responses = future.get(5, TimeUnit.SECONDS);
+                Assert.assertEquals(1, responses.size());
+                Assert.assertTrue(isSuccess(responses.get(0)));
+            }
+        } finally {
+            callerPool.shutdownNow();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void failoverTest() throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            HedgedQuery hedgedQuery = new HedgedQuery(executor);
+            Map<String, Long> delays = new ConcurrentHashMap<>();
+            delays.put("peer0", -1L);
+            delays.put("peer1", -1L);
+            delays.put("peer2", 1L);
+            AtomicInteger sent = new AtomicInteger(0);
+
+            List<String> responses =
+                    hedgedQuery.query(
+                            peers,
+                            Function.identity(),
+                            sender(delays, sent),
+                            HedgedQueryTest::isSuccess,
+                            10000);
+            Assert.assertEquals(Arrays.asList("peer2:ok"), responses);
+
+            // all failed
+            delays.put("peer2", -1L);
+            responses =
+                    hedgedQuery.query(
+                            peers,
+                            Function.identity(),
+                            sender(delays, sent),
+                            HedgedQueryTest::isSuccess,
+                            10000);
+            Assert.assertEquals(3, responses.size());
+
+            // none answers in time
+            delays.put("peer0", 2000L);
+            delays.put("peer1", 2000L);
+            delays.put("peer2", 2000L);
+            try {
+                hedgedQuery.query(
+                        peers,
+                        Function.identity(),
+                        sender(delays, sent),
+                        HedgedQueryTest::isSuccess,
+                        200);
+                Assert.fail();
+            } catch (TimeoutException e) {
+                // expected
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
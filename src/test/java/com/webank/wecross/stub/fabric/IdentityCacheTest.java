@@ -0,0 +1,109 @@
+package com.webank.wecross.stub.fabric;
+
+import com.google.protobuf.ByteString;
+import com.webank.wecross.stub.fabric2.BlockVerifierContext;
+import com.webank.wecross.stub.fabric2.IdentityCache;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.hyperledger.fabric.protos.common.Common;
+import org.hyperledger.fabric.protos.msp.Identities;
+import org.hyperledger.fabric.protos.peer.ProposalResponsePackage;
+import org.hyperledger.fabric.protos.peer.TransactionPackage;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class IdentityCacheTest {
+    // The distinct endorsers of the test block, then its orderer
+    private static List<ByteString> identitiesOfBlock() throws Exception {
+        Common.Block block = Common.Block.parseFrom(FabricBlockTest.blockBytes);
+        List<ByteString> identities = new ArrayList<>();
+        for (ByteString data : block.getData().getDataList()) {
+            Common.Payload payload =
+                    Common.Payload.parseFrom(Common.Envelope.parseFrom(data).getPayload());
+            TransactionPackage.Transaction transaction =
+                    TransactionPackage.Transaction.parseFrom(payload.getData());
+            for (TransactionPackage.TransactionAction action : transaction.getActionsList()) {
+                TransactionPackage.ChaincodeActionPayload actionPayload =
+                        TransactionPackage.ChaincodeActionPayload.parseFrom(action.getPayload());
+                for (ProposalResponsePackage.Endorsement endorsement :
+                        actionPayload.getAction().getEndorsementsList()) {
+                    if (!identities.contains(endorsement.getEndorser())) {
+                        identities.add(endorsement.getEndorser());
+                    }
+                }
+            }
+        }
+
+        Common.Metadata signatures =
+                Common.Metadata.parseFrom(
+                        block.getMetadata()
+                                .getMetadata(Common.BlockMetadataIndex.SIGNATURES_VALUE));
+        identities.add(
+                Common.SignatureHeader.parseFrom(signatures.getSignatures(0).getSignatureHeader())
+                        .getCreator());
+        return identities;
+    }
+
+    private static Map<String, BlockVerifierContext.CA> allCAs() throws Exception {
+        BlockVerifierContext context = BlockVerifierContext.build(FabricBlockTest.blockVerifier);
+        Map<String, BlockVerifierContext.CA> cas = new HashMap<>(context.getEndorserCAs());
+        cas.putAll(context.getOrdererCAs());
+        return cas;
+    }
+
+    @Test
+    public void evictTest() throws Exception {
+        List<ByteString> identities = identitiesOfBlock();
+        Assert.assertTrue(identities.size() >= 3);
+        ByteString a = identities.get(0);
+        ByteString b = identities.get(1);
+        ByteString c = identities.get(identities.size() - 1);
+
+        IdentityCache cache = new IdentityCache(allCAs(), 2);
+        IdentityCache.Identity identity = cache.get(a);
+        Assert.assertTrue(identity.isTrusted());
+        Assert.assertSame(identity, cache.get(a));
+
+        // a is used again, b is the least recently used one when c comes
+        IdentityCache.Identity first = cache.get(b);
+        cache.get(a);
+        Assert.assertTrue(cache.get(c).isTrusted());
+        Assert.assertEquals(2, cache.size());
+        Assert.assertSame(identity, cache.get(a));
+        IdentityCache.Identity reloaded = cache.get(b);
+        Assert.assertTrue(reloaded.isTrusted());
+        Assert.assertNotSame(first, reloaded); // b was evicted
+        Assert.assertSame(reloaded, cache.get(b));
+    }
+
+    @Test
+    public void untrustedTest() throws Exception {
+        List<ByteString> identities = identitiesOfBlock();
+        Identities.SerializedIdentity endorser =
+                Identities.SerializedIdentity.parseFrom(identities.get(0));
+        Identities.SerializedIdentity orderer =
+                Identities.SerializedIdentity.parseFrom(identities.get(identities.size() - 1));
+
+        // the certificate of the orderer is not issued by the CA of the endorser's MSP
+        ByteString forged =
+                Identities.SerializedIdentity.newBuilder()
+                        .setMspid(endorser.getMspid())
+                        .setIdBytes(orderer.getIdBytes())
+                        .build()
+                        .toByteString();
+        IdentityCache cache = new IdentityCache(allCAs(), 2);
+        Assert.assertFalse(cache.get(forged).isTrusted());
+        Assert.assertEquals(0, cache.size());
+
+        // an unknown MSP
+        ByteString unknown =
+                Identities.SerializedIdentity.newBuilder()
+                        .setMspid("UnknownMSP")
+                        .setIdBytes(orderer.getIdBytes())
+                        .build()
+                        .toByteString();
+        Assert.assertNull(cache.get(unknown));
+    }
+}
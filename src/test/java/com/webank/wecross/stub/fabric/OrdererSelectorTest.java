@@ -0,0 +1,82 @@
+package com.webank.wecross.stub.fabric;
+
+import com.webank.wecross.stub.fabric2.orderer.OrdererSelector;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class OrdererSelectorTest {
+    private static final List<String> orderers = Arrays.asList("orderer0", "orderer1", "orderer2");
+
+    @Test
+    public void latencyTest() throws Exception {
+        OrdererSelector selector = new OrdererSelector(key -> true);
+        for (int i = 0; i < 10; i++) {
+            selector.onSuccess("orderer0", 50);
+            selector.onSuccess("orderer1", 5);
+            selector.onSuccess("orderer2", 8);
+        }
+
+        Assert.assertEquals(
+                Arrays.asList("orderer1", "orderer2", "orderer0"),
+                selector.rank(orderers, Function.identity()));
+
+        // errors weigh more than a little latency
+        selector.onFailure("orderer1");
+        Assert.assertEquals("orderer2", selector.rank(orderers, Function.identity()).get(0));
+    }
+
+    @Test
+    public void circuitBreakerTest() throws Exception {
+        boolean[] reachable = {false};
+        OrdererSelector selector = new OrdererSelector(key -> reachable[0]);
+        selector.onSuccess("orderer0", 1);
+        selector.onSuccess("orderer1", 50);
+        selector.onSuccess("orderer2", 100);
+
+        for (int i = 0; i < OrdererSelector.FAILURE_THRESHOLD; i++) {
+            selector.onFailure("orderer0");
+        }
+        Assert.assertEquals(OrdererSelector.State.OPEN, selector.getHealth("orderer0").getState());
+        Assert.assertEquals("orderer0", selector.rank(orderers, Function.identity()).get(2));
+
+        // probed before the cooldown, or unreachable
+        selector.probe(System.currentTimeMillis());
+        Assert.assertEquals(OrdererSelector.State.OPEN, selector.getHealth("orderer0").getState());
+        selector.probe(System.currentTimeMillis() + OrdererSelector.MAX_COOLDOWN);
+        Assert.assertEquals(OrdererSelector.State.OPEN, selector.getHealth("orderer0").getState());
+
+        reachable[0] = true;
+        selector.probe(System.currentTimeMillis() + 3 * OrdererSelector.MAX_COOLDOWN);
+        Assert.assertEquals(
+                OrdererSelector.State.HALF_OPEN, selector.getHealth("orderer0").getState());
+
+        selector.onSuccess("orderer0", 1);
+        Assert.assertEquals(
+                OrdererSelector.State.CLOSED, selector.getHealth("orderer0").getState());
+    }
+
+    @Test
+    public void strategyTest() throws Exception {
+        OrdererSelector selector = new OrdererSelector(key -> true);
+        selector.setStrategy(OrdererSelector.Strategy.of("roundRobin"));
+        Assert.assertEquals("orderer0", selector.rank(orderers, Function.identity()).get(0));
+        Assert.assertEquals("orderer1", selector.rank(orderers, Function.identity()).get(0));
+        Assert.assertEquals("orderer2", selector.rank(orderers, Function.identity()).get(0));
+        Assert.assertEquals("orderer0", selector.rank(orderers, Function.identity()).get(0));
+
+        selector.setStrategy(OrdererSelector.Strategy.of("leastOutstanding"));
+        selector.onSend("orderer0");
+        selector.onSend("orderer0");
+        selector.onSend("orderer2");
+        Assert.assertEquals(
+                Arrays.asList("orderer1", "orderer2", "orderer0"),
+                selector.rank(orderers, Function.identity()));
+
+        selector.onSuccess("orderer0", 1);
+        selector.onSuccess("orderer0", 1);
+        Assert.assertEquals("orderer2", selector.rank(orderers, Function.identity()).get(2));
+    }
+}
@@ -0,0 +1,144 @@
+package com.webank.wecross.stub.fabric;
+
+import com.webank.wecross.stub.fabric2.endorser.ProposalFanOut;
+import com.webank.wecross.stub.fabric2.endorser.ProposalSender;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ProposalFanOutTest {
+    private static final List<String> peers = Arrays.asList("peer0", "peer1", "peer2");
+
+    // Answer "<peer>:ok" after the delay of the peer, or "<peer>:failed" if the delay is negative
+    private static ProposalSender<String, String> sender(Map<String, Long> delays) {
+        return peer -> {
+            long delay = delays.get(peer);
+            Thread.sleep(Math.abs(delay));
+            return peer + (delay < 0 ? ":failed" : ":ok");
+        };
+    }
+
+    private static boolean isSuccess(String response) {
+        return response.endsWith(":ok");
+    }
+
+    @Test
+    public void earlyReturnTest() throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            ProposalFanOut fanOut = new ProposalFanOut(executor);
+            Map<String, Long> delays = new ConcurrentHashMap<>();
+            delays.put("peer0", 1L);
+            delays.put("peer1", 10L);
+            delays.put("peer2", 2000L);
+
+            // two endorsements are enough, the slow peer is not waited for
+            long start = System.currentTimeMillis();
+            List<String> responses =
+                    fanOut.send(
+                            peers,
+                            Function.identity(),
+                            sender(delays),
+                            ProposalFanOutTest::isSuccess,
+                            successResponses -> successResponses.size() >= 2,
+                            10000);
+            Assert.assertTrue(System.currentTimeMillis() - start < 2000);
+            Assert.assertEquals(Arrays.asList("peer0:ok", "peer1:ok"), responses);
+
+            // the slow answer is still recorded
+            Thread.sleep(2500);
+            Assert.assertEquals(1, fanOut.getLateCount());
+            Assert.assertEquals(1, fanOut.getLatency("peer2").getCount());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void saturatedCallerPoolTest() throws Exception {
+        // all the threads of the callers' pool wait for their fan-outs
+        int callers = 2;
+        ExecutorService callerPool = Executors.newFixedThreadPool(callers);
+        ExecutorService executor = Executors.newFixedThreadPool(1);
+        try {
+            ProposalFanOut fanOut = new ProposalFanOut(executor);
+            Map<String, Long> delays = new ConcurrentHashMap<>();
+            delays.put("peer0", 1L);
+            delays.put("peer1", 1L);
+            delays.put("peer2", 1L);
+
+            List<Future<List<String>>> futures = new ArrayList<>();
+            for (int i = 0; i < callers; i++) {
+                futures.add(
+                        callerPool.submit(
+                                () ->
+                                        fanOut.send(
+                                                peers,
+                                                Function.identity(),
+                                                sender(delays),
+                                                ProposalFanOutTest::isSuccess,
+                                                successResponses -> false,
+                                                10000)));
+            }
+            for (Future<List<String>> future : futures) {
+                Assert.assertEquals(3, future.get(5, TimeUnit.SECONDS).size());
+            }
+        } finally {
+            callerPool.shutdownNow();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void neverEnoughTest() throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            ProposalFanOut fanOut = new ProposalFanOut(executor);
+            Map<String, Long> delays = new ConcurrentHashMap<>();
+            delays.put("peer0", 1L);
+            delays.put("peer1", -1L);
+            delays.put("peer2", 10L);
+
+            // all the answers are returned, the failed one too
+            List<String> responses =
+                    fanOut.send(
+                            peers,
+                            Function.identity(),
+                            sender(delays),
+                            ProposalFanOutTest::isSuccess,
+                            successResponses -> successResponses.size() >= 3,
+                            10000);
+            Assert.assertEquals(3, responses.size());
+            Assert.assertEquals(0, fanOut.getLateCount());
+
+            // none answers in time
+            delays.put("peer0", 2000L);
+            delays.put("peer1", 2000L);
+            delays.put("peer2", 2000L);
+            try {
+                fanOut.send(
+                        peers,
+                        Function.identity(),
+                        sender(delays),
+                        ProposalFanOutTest::isSuccess,
+                        successResponses -> true,
+                        200);
+                Assert.fail();
+            } catch (TimeoutException e) {
+                // expected
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
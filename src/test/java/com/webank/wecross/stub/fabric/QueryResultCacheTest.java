@@ -0,0 +1,192 @@
+package com.webank.wecross.stub.fabric;
+
+import com.google.protobuf.ByteString;
+import com.webank.wecross.stub.fabric2.endorser.QueryResultCache;
+import java.util.Arrays;
+import java.util.Collections;
+import org.hyperledger.fabric.protos.common.Common;
+import org.hyperledger.fabric.protos.ledger.rwset.Rwset;
+import org.hyperledger.fabric.protos.ledger.rwset.kvrwset.KvRwset;
+import org.hyperledger.fabric.protos.peer.ProposalPackage;
+import org.hyperledger.fabric.protos.peer.ProposalResponsePackage;
+import org.hyperledger.fabric.protos.peer.TransactionPackage;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class QueryResultCacheTest {
+    // A block of one endorser transaction writing to the namespace
+    private static Common.Block newBlock(long number, String namespace, boolean valid) {
+        Rwset.TxReadWriteSet txReadWriteSet =
+                Rwset.TxReadWriteSet.newBuilder()
+                        .addNsRwset(
+                                Rwset.NsReadWriteSet.newBuilder()
+                                        .setNamespace(namespace)
+                                        .setRwset(
+                                                KvRwset.KVRWSet.newBuilder()
+                                                        .addWrites(
+                                                                KvRwset.KVWrite.newBuilder()
+                                                                        .setKey("a")
+                                                                        .setValue(
+                                                                                ByteString
+                                                                                        .copyFromUtf8(
+                                                                                                "1")))
+                                                        .build()
+                                                        .toByteString()))
+                        .build();
+        ProposalResponsePackage.ProposalResponsePayload responsePayload =
+                ProposalResponsePackage.ProposalResponsePayload.newBuilder()
+                        .setExtension(
+                                ProposalPackage.ChaincodeAction.newBuilder()
+                                        .setResults(txReadWriteSet.toByteString())
+                                        .build()
+                                        .toByteString())
+                        .build();
+        TransactionPackage.Transaction transaction =
+                TransactionPackage.Transaction.newBuilder()
+                        .addActions(
+                                TransactionPackage.TransactionAction.newBuilder()
+                                        .setPayload(
+                                                TransactionPackage.ChaincodeActionPayload
+                                                        .newBuilder()
+                                                        .setAction(
+                                                                TransactionPackage
+                                                                        .ChaincodeEndorsedAction
+                                                                        .newBuilder()
+                                                                        .setProposalResponsePayload(
+                                                                                responsePayload
+                                                                                        .toByteString()))
+                                                        .build()
+                                                        .toByteString()))
+                        .build();
+        Common.Payload payload =
+                Common.Payload.newBuilder()
+                        .setHeader(
+                                Common.Header.newBuilder()
+                                        .setChannelHeader(
+                                                Common.ChannelHeader.newBuilder()
+                                                        .setType(
+                                                                Common.HeaderType
+                                                                        .ENDORSER_TRANSACTION_VALUE)
+                                                        .setTxId("tx" + number)
+                                                        .build()
+                                                        .toByteString()))
+                        .setData(transaction.toByteString())
+                        .build();
+
+        byte[] txFilter = {
+            (byte)
+                    (valid
+                            ? TransactionPackage.TxValidationCode.VALID_VALUE
+                            : TransactionPackage.TxValidationCode.MVCC_READ_CONFLICT_VALUE)
+        };
+        Common.BlockMetadata.Builder metadata = Common.BlockMetadata.newBuilder();
+        for (int i = 0; i <= Common.BlockMetadataIndex.TRANSACTIONS_FILTER_VALUE; i++) {
+            metadata.addMetadata(
+                    i == Common.BlockMetadataIndex.TRANSACTIONS_FILTER_VALUE
+                            ? ByteString.copyFrom(txFilter)
+                            : ByteString.EMPTY);
+        }
+
+        return Common.Block.newBuilder()
+                .setHeader(Common.BlockHeader.newBuilder().setNumber(number))
+                .setData(
+                        Common.BlockData.newBuilder()
+                                .addData(
+                                        Common.Envelope.newBuilder()
+                                                .setPayload(payload.toByteString())
+                                                .build()
+                                                .toByteString()))
+                .setMetadata(metadata)
+                .build();
+    }
+
+    @Test
+    public void invalidateTest() throws Exception {
+        QueryResultCache cache = new QueryResultCache(Collections.singletonList("HelloWorld"));
+        Assert.assertTrue(cache.isCached("HelloWorld"));
+        Assert.assertFalse(cache.isCached("Other"));
+
+        String key =
+                QueryResultCache.keyOf("signer", "HelloWorld", "get", new String[] {"a"}, null);
+        Assert.assertNull(cache.get(key));
+        cache.put(key, "1".getBytes(), cache.getWriteSequence(), "HelloWorld");
+        Assert.assertEquals("1", new String(cache.get(key).getResult()));
+        Assert.assertEquals(0.5, cache.getHitRate(), 0.001);
+
+        // not written by an invalid transaction or by another chaincode
+        cache.onBlock(newBlock(1, "HelloWorld", false));
+        cache.onBlock(newBlock(2, "Other", true));
+        Assert.assertNotNull(cache.get(key));
+
+        cache.onBlock(newBlock(3, "HelloWorld", true));
+        Assert.assertNull(cache.get(key));
+        Assert.assertEquals(1, cache.getInvalidationCount());
+    }
+
+    @Test
+    public void writtenWhileQueryingTest() throws Exception {
+        QueryResultCache cache = new QueryResultCache(Collections.singletonList("HelloWorld"));
+        String key =
+                QueryResultCache.keyOf("signer", "HelloWorld", "get", new String[] {"a"}, null);
+
+        long writeSequence = cache.getWriteSequence();
+        cache.onBlock(newBlock(1, "HelloWorld", true)); // while querying
+        cache.put(key, "1".getBytes(), writeSequence, "HelloWorld");
+        Assert.assertNull(cache.get(key));
+
+        // unknown writes, e.g. filtered blocks
+        writeSequence = cache.getWriteSequence();
+        cache.onFilteredBlock(2, true);
+        cache.put(key, "1".getBytes(), writeSequence, "HelloWorld");
+        Assert.assertNull(cache.get(key));
+    }
+
+    @Test
+    public void staleAndEvictionTest() throws Exception {
+        QueryResultCache cache = new QueryResultCache(Arrays.asList("HelloWorld"), 2, 1024, 2);
+        String key0 =
+                QueryResultCache.keyOf("signer", "HelloWorld", "get", new String[] {"0"}, null);
+        String key1 =
+                QueryResultCache.keyOf("signer", "HelloWorld", "get", new String[] {"1"}, null);
+        String key2 =
+                QueryResultCache.keyOf("signer", "HelloWorld", "get", new String[] {"2"}, null);
+
+        cache.put(key0, "0".getBytes(), cache.getWriteSequence(), "HelloWorld");
+        cache.put(key1, "1".getBytes(), cache.getWriteSequence(), "HelloWorld");
+        Assert.assertNotNull(cache.get(key0)); // key1 is the least recently used now
+        cache.put(key2, "2".getBytes(), cache.getWriteSequence(), "HelloWorld");
+        Assert.assertEquals(2, cache.size());
+        Assert.assertNull(cache.get(key1));
+        Assert.assertEquals(1, cache.getEvictionCount());
+
+        // too large
+        cache.put(key1, new byte[2048], cache.getWriteSequence(), "HelloWorld");
+        Assert.assertNull(cache.get(key1));
+
+        // older than maxStaleBlocks
+        cache.onFilteredBlock(2, false);
+        Assert.assertNotNull(cache.get(key0));
+        cache.onFilteredBlock(3, false);
+        Assert.assertNull(cache.get(key0));
+    }
+
+    @Test
+    public void signerAndAgeTest() throws Exception {
+        QueryResultCache cache =
+                new QueryResultCache(Arrays.asList("HelloWorld"), 10, 1024, 10, 200);
+        String key =
+                QueryResultCache.keyOf("signer", "HelloWorld", "get", new String[] {"a"}, null);
+        String otherKey =
+                QueryResultCache.keyOf("other", "HelloWorld", "get", new String[] {"a"}, null);
+        Assert.assertNotEquals(key, otherKey);
+
+        // not answered for another signer
+        cache.put(key, "1".getBytes(), cache.getWriteSequence(), "HelloWorld");
+        Assert.assertNull(cache.get(otherKey));
+        Assert.assertNotNull(cache.get(key));
+
+        // older than maxStaleMillis, though no block came
+        Thread.sleep(300);
+        Assert.assertNull(cache.get(key));
+    }
+}
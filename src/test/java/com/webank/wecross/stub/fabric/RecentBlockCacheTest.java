@@ -0,0 +1,119 @@
+package com.webank.wecross.stub.fabric;
+
+import com.webank.wecross.stub.fabric2.block.RecentBlockCache;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RecentBlockCacheTest {
+    @Test
+    public void evictTest() throws Exception {
+        RecentBlockCache cache = new RecentBlockCache(3, 100);
+        for (long number = 1; number <= 4; number++) {
+            cache.put(number, new byte[10]);
+        }
+
+        // by number of blocks, the lowest first
+        Assert.assertEquals(3, cache.size());
+        Assert.assertNull(cache.get(1));
+        Assert.assertNotNull(cache.get(2));
+        Assert.assertEquals(30, cache.getTotalBytes());
+
+        // by bytes
+        cache.put(5, new byte[85]);
+        Assert.assertEquals(2, cache.size());
+        Assert.assertEquals(95, cache.getTotalBytes());
+        Assert.assertNull(cache.get(3));
+        Assert.assertNotNull(cache.get(4));
+
+        // replaced, and too large to be cached
+        cache.put(4, new byte[15]);
+        Assert.assertEquals(100, cache.getTotalBytes());
+        cache.put(6, new byte[101]);
+        Assert.assertNull(cache.get(6));
+        Assert.assertEquals(100, cache.getTotalBytes());
+    }
+
+    @Test
+    public void collapseLoadsTest() throws Exception {
+        RecentBlockCache cache = new RecentBlockCache();
+        AtomicInteger loads = new AtomicInteger(0);
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        RecentBlockCache.BlockLoader loader =
+                blockNumber -> {
+                    loads.incrementAndGet();
+                    loading.countDown();
+                    release.await();
+                    return new byte[] {(byte) blockNumber};
+                };
+
+        int callers = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(callers);
+        try {
+            List<Future<byte[]>> futures = new ArrayList<>();
+            for (int i = 0; i < callers; i++) {
+                futures.add(executor.submit(() -> cache.getOrLoad(5, loader)));
+            }
+            Assert.assertTrue(loading.await(5, TimeUnit.SECONDS));
+            Thread.sleep(100); // the others are waiting for the load
+            release.countDown();
+
+            for (Future<byte[]> future : futures) {
+                Assert.assertArrayEquals(new byte[] {5}, future.get(5, TimeUnit.SECONDS));
+            }
+            Assert.assertEquals(1, loads.get());
+            Assert.assertArrayEquals(new byte[] {5}, cache.get(5));
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void loadFailedTest() throws Exception {
+        RecentBlockCache cache = new RecentBlockCache();
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            RecentBlockCache.BlockLoader failed =
+                    blockNumber -> {
+                        loading.countDown();
+                        release.await();
+                        throw new Exception("load failed");
+                    };
+            Future<byte[]> first = executor.submit(() -> cache.getOrLoad(7, failed));
+            Assert.assertTrue(loading.await(5, TimeUnit.SECONDS));
+            Future<byte[]> second = executor.submit(() -> cache.getOrLoad(7, failed));
+            Thread.sleep(100);
+            release.countDown();
+
+            // the waiting caller gets the exception of the load too
+            for (Future<byte[]> future : Arrays.asList(first, second)) {
+                try {
+                    future.get(5, TimeUnit.SECONDS);
+                    Assert.fail();
+                } catch (ExecutionException e) {
+                    Assert.assertEquals("load failed", e.getCause().getMessage());
+                }
+            }
+
+            // not cached, loaded again
+            Assert.assertArrayEquals(
+                    new byte[] {7}, cache.getOrLoad(7, blockNumber -> new byte[] {7}));
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.webank.wecross.stub.fabric;
+
+import com.webank.wecross.stub.fabric2.timeout.LatencyTracker;
+import com.webank.wecross.stub.fabric2.timeout.RequestTimeouts;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RequestTimeoutsTest {
+    private static void record(
+            RequestTimeouts requestTimeouts, RequestTimeouts.Stage stage, int n, long latency) {
+        for (int i = 0; i < n; i++) {
+            requestTimeouts.record(stage, latency);
+        }
+    }
+
+    @Test
+    public void adaptiveTest() throws Exception {
+        RequestTimeouts requestTimeouts = new RequestTimeouts(60000, new HashMap<>(), true);
+
+        // the default until 100 samples of each stage
+        record(requestTimeouts, RequestTimeouts.Stage.ENDORSE, 99, 2000);
+        Assert.assertEquals(60000, requestTimeouts.getTimeout("HelloWorld"));
+        Assert.assertEquals(
+                60000, requestTimeouts.getTimeout("HelloWorld", RequestTimeouts.Stage.ENDORSE));
+        record(requestTimeouts, RequestTimeouts.Stage.ENDORSE, 1, 2000);
+        Assert.assertEquals(
+                4000, requestTimeouts.getTimeout("HelloWorld", RequestTimeouts.Stage.ENDORSE));
+        Assert.assertEquals(
+                60000,
+                requestTimeouts.getTimeout(
+                        "HelloWorld", RequestTimeouts.Stage.ENDORSE, RequestTimeouts.Stage.ORDER));
+
+        // p99 of the stages added up, then doubled
+        record(requestTimeouts, RequestTimeouts.Stage.ORDER, 100, 500);
+        Assert.assertEquals(
+                5000,
+                requestTimeouts.getTimeout(
+                        "HelloWorld", RequestTimeouts.Stage.ENDORSE, RequestTimeouts.Stage.ORDER));
+        Assert.assertTrue(
+                requestTimeouts.newDeadline("HelloWorld", RequestTimeouts.Stage.ENDORSE).remaining()
+                        <= 4000);
+    }
+
+    @Test
+    public void clampTest() throws Exception {
+        RequestTimeouts requestTimeouts = new RequestTimeouts(60000, new HashMap<>(), true);
+
+        // not below 3000ms
+        record(requestTimeouts, RequestTimeouts.Stage.ORDER, 100, 10);
+        Assert.assertEquals(3000, requestTimeouts.getTimeout(null, RequestTimeouts.Stage.ORDER));
+
+        // not above the default
+        record(requestTimeouts, RequestTimeouts.Stage.COMMIT, 100, 40000);
+        Assert.assertEquals(60000, requestTimeouts.getTimeout(null, RequestTimeouts.Stage.COMMIT));
+    }
+
+    @Test
+    public void resourceTimeoutTest() throws Exception {
+        Map<String, Long> resourceTimeouts = new HashMap<>();
+        resourceTimeouts.put("Slow", 120000L);
+        RequestTimeouts requestTimeouts = new RequestTimeouts(30000, resourceTimeouts, true);
+        record(requestTimeouts, RequestTimeouts.Stage.ENDORSE, 100, 2000);
+
+        // the configured budget, not adapted
+        Assert.assertEquals(
+                120000, requestTimeouts.getTimeout("Slow", RequestTimeouts.Stage.ENDORSE));
+        Assert.assertEquals(
+                4000, requestTimeouts.getTimeout("Other", RequestTimeouts.Stage.ENDORSE));
+
+        // not adaptive: the default
+        requestTimeouts = new RequestTimeouts(30000, resourceTimeouts, false);
+        record(requestTimeouts, RequestTimeouts.Stage.ENDORSE, 100, 2000);
+        Assert.assertEquals(
+                30000, requestTimeouts.getTimeout("Other", RequestTimeouts.Stage.ENDORSE));
+        Assert.assertEquals(
+                120000, requestTimeouts.getTimeout("Slow", RequestTimeouts.Stage.ENDORSE));
+    }
+
+    @Test
+    public void latencyTrackerTest() throws Exception {
+        LatencyTracker tracker = new LatencyTracker(256);
+        Assert.assertEquals(0, tracker.getP99());
+        for (int i = 1; i <= 100; i++) {
+            tracker.record(i);
+        }
+        Assert.assertEquals(99, tracker.getP99());
+        Assert.assertEquals(50, tracker.getPercentile(0.5));
+
+        // the snapshot is recomputed every 64 samples
+        for (int i = 0; i < 63; i++) {
+            tracker.record(1000);
+        }
+        Assert.assertEquals(99, tracker.getP99());
+        tracker.record(1000);
+        Assert.assertEquals(1000, tracker.getP99());
+        Assert.assertEquals(164, tracker.getCount());
+
+        // only the latest samples are kept
+        for (int i = 0; i < 256; i++) {
+            tracker.record(5);
+        }
+        Assert.assertEquals(256, tracker.getCount());
+        Assert.assertEquals(5, tracker.getP99());
+    }
+}
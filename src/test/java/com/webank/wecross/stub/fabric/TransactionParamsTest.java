@@ -0,0 +1,96 @@
+package com.webank.wecross.stub.fabric;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.webank.wecross.stub.TransactionRequest;
+import com.webank.wecross.stub.fabric2.TransactionParams;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TransactionParamsTest {
+    private static TransactionParams newTransactionParams(int dataSize) {
+        byte[] data = new byte[dataSize];
+        new Random(1).nextBytes(data);
+        TransactionRequest request = new TransactionRequest("set", new String[] {"a", "1"});
+        TransactionParams transactionParams = new TransactionParams(request, data, true);
+        transactionParams.setOrgNames(new String[] {"Org1", "Org2"});
+        return transactionParams;
+    }
+
+    @Test
+    public void binaryTest() throws Exception {
+        TransactionParams transactionParams = newTransactionParams(4096);
+        byte[] bytes = transactionParams.toBytes();
+
+        TransactionParams decoded = TransactionParams.parseFrom(bytes);
+        Assert.assertArrayEquals(transactionParams.getData(), decoded.getData());
+        Assert.assertArrayEquals(transactionParams.getOrgNames(), decoded.getOrgNames());
+        Assert.assertTrue(decoded.isByProxy());
+        Assert.assertEquals("set", decoded.getOriginTransactionRequest().getMethod());
+        Assert.assertArrayEquals(
+                new String[] {"a", "1"}, decoded.getOriginTransactionRequest().getArgs());
+
+        // re-encoded without parsing the origin request
+        Assert.assertArrayEquals(bytes, TransactionParams.parseFrom(bytes).toBytes());
+
+        // the proposal is kept raw, not Base64 encoded
+        byte[] json = new ObjectMapper().writeValueAsBytes(transactionParams);
+        Assert.assertTrue(bytes.length < json.length * 0.8);
+    }
+
+    @Test
+    public void brokenOriginRequestTest() throws Exception {
+        byte[] json = "{broken".getBytes();
+        ByteBuffer buffer = ByteBuffer.allocate(TransactionParams.MAGIC.length + 14 + json.length);
+        buffer.put(TransactionParams.MAGIC).put(TransactionParams.VERSION).put((byte) 0);
+        buffer.putInt(-1).putInt(-1).putInt(json.length).put(json);
+
+        // decoded only when asked for
+        TransactionParams decoded = TransactionParams.parseFrom(buffer.array());
+        Assert.assertTrue(decoded.toString().contains(json.length + " bytes"));
+        try {
+            decoded.getOriginTransactionRequest();
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void hugeOrgCountTest() throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(TransactionParams.MAGIC.length + 14);
+        buffer.put(TransactionParams.MAGIC).put(TransactionParams.VERSION).put((byte) 0);
+        buffer.putInt(-1).putInt(Integer.MAX_VALUE).putInt(-1);
+
+        try {
+            TransactionParams.parseFrom(buffer.array());
+            Assert.fail();
+        } catch (Exception e) {
+            Assert.assertTrue(e.getMessage().contains("org count"));
+        }
+    }
+
+    @Test
+    public void nullTest() throws Exception {
+        TransactionParams decoded =
+                TransactionParams.parseFrom(new TransactionParams(null, null, false).toBytes());
+        Assert.assertNull(decoded.getData());
+        Assert.assertNull(decoded.getOrgNames());
+        Assert.assertNull(decoded.getOriginTransactionRequest());
+        Assert.assertFalse(decoded.isByProxy());
+    }
+
+    @Test
+    public void jsonTest() throws Exception {
+        // encoded by an older stub
+        TransactionParams transactionParams = newTransactionParams(256);
+        byte[] json = new ObjectMapper().writeValueAsBytes(transactionParams);
+
+        TransactionParams decoded = TransactionParams.parseFrom(json);
+        Assert.assertArrayEquals(transactionParams.getData(), decoded.getData());
+        Assert.assertArrayEquals(transactionParams.getOrgNames(), decoded.getOrgNames());
+        Assert.assertTrue(decoded.isByProxy());
+        Assert.assertEquals("set", decoded.getOriginTransactionRequest().getMethod());
+    }
+}
@@ -0,0 +1,59 @@
+package com.webank.wecross.stub.fabric;
+
+import com.webank.wecross.stub.fabric2.FabricBlock;
+import com.webank.wecross.stub.fabric2.block.TxIndex;
+import java.io.File;
+import java.util.Set;
+import org.hyperledger.fabric.protos.common.Common;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TxIndexTest {
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void indexAndReopenTest() throws Exception {
+        File dir = temporaryFolder.newFolder("txindex");
+        Common.Block block = Common.Block.parseFrom(FabricBlockTest.blockBytes);
+        long number = block.getHeader().getNumber();
+        Set<String> txIDs = FabricBlock.encode(FabricBlockTest.blockBytes).getValidTxs();
+        Assert.assertFalse(txIDs.isEmpty());
+
+        TxIndex txIndex = TxIndex.open(dir.getPath(), 1000);
+        Assert.assertEquals(TxIndex.NOT_FOUND, txIndex.get(txIDs.iterator().next()));
+        Assert.assertTrue(txIndex.indexBlock(block) > 0);
+        Assert.assertEquals(0, txIndex.indexBlock(block));
+        txIndex.close();
+
+        txIndex = TxIndex.open(dir.getPath(), 1000);
+        for (String txID : txIDs) {
+            long entry = txIndex.get(txID);
+            Assert.assertNotEquals(TxIndex.NOT_FOUND, entry);
+            Assert.assertEquals(number, TxIndex.getBlockNumber(entry));
+            Assert.assertTrue(TxIndex.isValid(entry));
+        }
+        Assert.assertEquals(TxIndex.NOT_FOUND, txIndex.get("not a txID"));
+        txIndex.close();
+    }
+
+    @Test
+    public void indexDecodedBlockTest() throws Exception {
+        Common.Block block = Common.Block.parseFrom(FabricBlockTest.blockBytes);
+        FabricBlock fabricBlock = new FabricBlock(block, FabricBlockTest.blockBytes);
+
+        // the same entries as indexed from the protobuf block
+        TxIndex parsed = new TxIndex(1000);
+        TxIndex decoded = new TxIndex(1000);
+        Assert.assertEquals(
+                parsed.indexBlock(block),
+                decoded.indexBlock(
+                        block.getHeader().getNumber(),
+                        fabricBlock.getBlockData().getTxIDList(),
+                        fabricBlock.getMetaData().getTransactionFilter()));
+        for (String txID : fabricBlock.getBlockData().getTxIDList()) {
+            Assert.assertEquals(parsed.get(txID), decoded.get(txID));
+        }
+    }
+}